@@ -0,0 +1,267 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/** Statistics of the pages in each range of a dump file, kept in a sidecar file so that jobs can skip the ranges which their predicates cannot match.
+ * A range is a run of consecutive pages, delimited by the positions reported by the input stream right after each <code>&lt;page&gt;</code>: compressed offsets at bzip2 block granularity for compressed dumps, and exact offsets for uncompressed ones.
+ *
+ * The sidecar is a text file with one line per range: the positions of its first and last pages, the minimum and maximum revision timestamps (in seconds since the epoch), the minimum and maximum page ids, and the comma-separated namespaces, separated by tabs.  The first line records the length of the dump, so that stale statistics are ignored.
+ */
+public class BlockStats {
+  public static class Range {
+    public long start;
+    public long end;
+    public long minTimestamp = Long.MAX_VALUE;
+    public long maxTimestamp = Long.MIN_VALUE;
+    public long minPageId = Long.MAX_VALUE;
+    public long maxPageId = Long.MIN_VALUE;
+    public final SortedSet<Integer> namespaces = new TreeSet<Integer>();
+
+    void addPage(long pageId, int namespace) {
+      if ( pageId >= 0 ) {
+        this.minPageId = Math.min(this.minPageId, pageId);
+        this.maxPageId = Math.max(this.maxPageId, pageId);
+      }
+      this.namespaces.add(namespace);
+    }
+
+    void addTimestamp(long ts) {
+      if ( ts >= 0 ) {
+        this.minTimestamp = Math.min(this.minTimestamp, ts);
+        this.maxTimestamp = Math.max(this.maxTimestamp, ts);
+      }
+    }
+  }
+
+  /** The pages a job wants.  Unset bounds are not checked. */
+  public static class Filter {
+    public long minTimestamp = Long.MIN_VALUE;
+    public long maxTimestamp = Long.MAX_VALUE;
+    public Set<Integer> namespaces = null;
+    public long minPageId = Long.MIN_VALUE;
+    public long maxPageId = Long.MAX_VALUE;
+
+    public boolean matchesTimestamp(long ts) {
+      return ts < 0 || (ts >= this.minTimestamp && ts <= this.maxTimestamp);
+    }
+
+    public boolean matchesNamespace(int ns) {
+      return this.namespaces == null || this.namespaces.contains(ns);
+    }
+
+    public boolean hasPageIds() {
+      return this.minPageId != Long.MIN_VALUE || this.maxPageId != Long.MAX_VALUE;
+    }
+
+    public boolean matchesPageId(long id) {
+      return id >= this.minPageId && id <= this.maxPageId;
+    }
+
+    public boolean matches(Range r) {
+      if ( r.minTimestamp <= r.maxTimestamp
+           && (r.maxTimestamp < this.minTimestamp || r.minTimestamp > this.maxTimestamp) ) {
+        return false;
+      }
+      if ( this.namespaces != null ) {
+        for ( Integer ns: r.namespaces ) {
+          if ( this.namespaces.contains(ns) ) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return true;
+    }
+  }
+
+  private static final String HEADER = "# wikihadoop block stats length=";
+
+  private final List<Range> ranges;
+  private final long length;
+
+  public BlockStats(List<Range> ranges, long length) {
+    this.ranges = ranges;
+    this.length = length;
+  }
+
+  public List<Range> getRanges() {
+    return this.ranges;
+  }
+
+  public long getLength() {
+    return this.length;
+  }
+
+  /** Returns the range holding the page found at pos, or null. */
+  public Range find(long pos) {
+    int lo = 0;
+    int hi = this.ranges.size() - 1;
+    while ( lo <= hi ) {
+      int mid = (lo + hi) >>> 1;
+      Range r = this.ranges.get(mid);
+      if ( pos < r.start ) {
+        hi = mid - 1;
+      } else if ( pos > r.end ) {
+        lo = mid + 1;
+      } else {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /** Tells if a range near [from, to) may have a page matching the filter.  Ranges within margin bytes of either end are included, since the pages of a split are found at positions slightly off its boundaries. */
+  public boolean mayMatch(long from, long to, long margin, Filter filter) {
+    for ( Range r: this.ranges ) {
+      if ( r.end >= from - margin && r.start <= to + margin && filter.matches(r) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Collects the statistics of a dump read from the beginning, closing a range at the first page found at least rangeBytes after its first page. */
+  public static BlockStats collect(SeekableInputStream in, long length, long rangeBytes) throws IOException {
+    return collect(in, length, rangeBytes, null);
+  }
+
+  /** Collects the statistics as above, also adding every page to the offset index being built, unless it is null. */
+  public static BlockStats collect(SeekableInputStream in, long length, long rangeBytes, PageOffsetIndex.Builder pages) throws IOException {
+    byte[] timestampElement = XmlFields.ascii("timestamp");
+    byte[] idElement = XmlFields.ascii("id");
+    byte[] pageEnd = XmlFields.ascii("</page");
+    byte[] revisionBegin = XmlFields.ascii("<revision");
+    ByteMatcher matcher = new ByteMatcher(in, in);
+    DataOutputBuffer header = new DataOutputBuffer();
+    DataOutputBuffer buf = new DataOutputBuffer();
+    List<Range> ranges = new ArrayList<Range>();
+    Range range = null;
+    while ( matcher.readUntilMatch("<page>", null, Long.MAX_VALUE) ) {
+      long pos = matcher.getPos();
+      if ( range == null || (pos != range.end && pos - range.start >= rangeBytes) ) {
+        range = new Range();
+        range.start = pos;
+        ranges.add(range);
+      }
+      range.end = pos;
+      header.reset();
+      if ( !matcher.readUntilMatch("<revision", header, Long.MAX_VALUE) ) {
+        break;
+      }
+      long pageId = XmlFields.longElement(header.getData(), 0, header.getLength(), idElement);
+      range.addPage(pageId, WikiPageRecord.namespace(header.getData(), 0, header.getLength()));
+      if ( pages != null ) {
+        pages.add(pageId, pos, "<page>".length());
+      }
+      while ( true ) {
+        buf.reset();
+        if ( !matcher.readUntilMatch("</revision>", buf, Long.MAX_VALUE) ) {
+          break;
+        }
+        range.addTimestamp(WikiPageRecord.parseTimestamp(XmlFields.stringElement(buf.getData(), 0, buf.getLength(), timestampElement)));
+        // the next revision, the end of the page or another element follows
+        buf.reset();
+        if ( !matcher.readUntilMatch(">", buf, Long.MAX_VALUE)
+             || XmlFields.indexOf(buf.getData(), 0, buf.getLength(), pageEnd) >= 0 ) {
+          break;
+        }
+        if ( XmlFields.indexOf(buf.getData(), 0, buf.getLength(), revisionBegin) < 0 ) {
+          matcher.readUntilMatch("</page>", null, Long.MAX_VALUE);
+          break;
+        }
+      }
+    }
+    return new BlockStats(ranges, length);
+  }
+
+  public static BlockStats read(FileSystem fs, Path path) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if ( line == null || !line.startsWith(HEADER) ) {
+        throw new IOException("not a block stats file: " + path);
+      }
+      long length = Long.parseLong(line.substring(HEADER.length()));
+      List<Range> ranges = new ArrayList<Range>();
+      while ( (line = reader.readLine()) != null ) {
+        String[] fields = line.split("\t", -1);
+        if ( fields.length != 7 ) {
+          throw new IOException("malformed line in " + path + ": " + line);
+        }
+        Range r = new Range();
+        r.start = Long.parseLong(fields[0]);
+        r.end = Long.parseLong(fields[1]);
+        r.minTimestamp = Long.parseLong(fields[2]);
+        r.maxTimestamp = Long.parseLong(fields[3]);
+        r.minPageId = Long.parseLong(fields[4]);
+        r.maxPageId = Long.parseLong(fields[5]);
+        if ( fields[6].length() > 0 ) {
+          for ( String ns: fields[6].split(",") ) {
+            r.namespaces.add(Integer.parseInt(ns));
+          }
+        }
+        ranges.add(r);
+      }
+      return new BlockStats(ranges, length);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void write(FileSystem fs, Path path) throws IOException {
+    Writer writer = new OutputStreamWriter(fs.create(path), "UTF-8");
+    try {
+      writer.write(HEADER + this.length + "\n");
+      for ( Range r: this.ranges ) {
+        StringBuilder ns = new StringBuilder();
+        for ( Integer n: r.namespaces ) {
+          if ( ns.length() > 0 ) {
+            ns.append(',');
+          }
+          ns.append(n);
+        }
+        writer.write(r.start + "\t" + r.end + "\t" + r.minTimestamp + "\t" + r.maxTimestamp + "\t" + r.minPageId + "\t" + r.maxPageId + "\t" + ns + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /** Returns the statistics of a dump file kept in the directory, or null when there are none or they are stale. */
+  public static BlockStats forFile(FileSystem fs, Path dir, Path file, long length) throws IOException {
+    Path path = sidecar(dir, file);
+    if ( !fs.exists(path) ) {
+      return null;
+    }
+    BlockStats stats = read(fs, path);
+    if ( stats.getLength() != length ) {
+      return null;
+    }
+    return stats;
+  }
+
+  public static Path sidecar(Path dir, Path file) {
+    return new Path(dir, file.getName() + ".stats");
+  }
+}
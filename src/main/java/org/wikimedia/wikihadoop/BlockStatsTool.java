@@ -0,0 +1,71 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/** Writes the {@link BlockStats} and {@link PageOffsetIndex} sidecars of dump files.
+ * Usage: <code>hadoop jar wikihadoop.jar org.wikimedia.wikihadoop.BlockStatsTool STATS_DIR DUMP...</code>
+ */
+public class BlockStatsTool extends Configured implements Tool {
+  private static final Log LOG = LogFactory.getLog(BlockStatsTool.class);
+  private static final String KEY_RANGE_BYTES = "org.wikimedia.wikihadoop.blockStatsRange";
+
+  public int run(String[] args) throws Exception {
+    if ( args.length < 2 ) {
+      System.err.println("usage: BlockStatsTool STATS_DIR DUMP...");
+      return 1;
+    }
+    Path dir = new Path(args[0]);
+    long rangeBytes = getConf().getLong(KEY_RANGE_BYTES, 1L << 20);
+    CompressionCodecFactory codecs = new CompressionCodecFactory(getConf());
+    for ( int i = 1; i < args.length; ++i ) {
+      Path path = new Path(args[i]);
+      FileSystem fs = path.getFileSystem(getConf());
+      FileStatus status = fs.getFileStatus(path);
+      SeekableInputStream in = SeekableInputStream.getInstance(path, 0, status.getLen(), fs, codecs);
+      PageOffsetIndex.Builder pages = new PageOffsetIndex.Builder(in.isCompressed());
+      BlockStats stats;
+      try {
+        stats = BlockStats.collect(in, status.getLen(), rangeBytes, pages);
+      } finally {
+        in.close();
+      }
+      FileSystem outfs = dir.getFileSystem(getConf());
+      Path out = BlockStats.sidecar(dir, path);
+      stats.write(outfs, out);
+      LOG.info("wrote " + stats.getRanges().size() + " ranges of " + path + " to " + out);
+      PageOffsetIndex index = pages.build(status.getLen());
+      out = PageOffsetIndex.sidecar(dir, path);
+      index.write(outfs, out);
+      LOG.info("wrote " + index.size() + " page offsets of " + path + " to " + out);
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new BlockStatsTool(), args));
+  }
+}
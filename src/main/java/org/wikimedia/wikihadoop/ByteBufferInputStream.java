@@ -0,0 +1,197 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Seekable;
+
+/** An uncompressed input stream read through a {@link ByteBuffer}, which {@link ByteMatcher} scans directly instead of reading a byte at a time.
+ * Local files are memory-mapped in windows, so that scanning them copies nothing but the bytes kept.  Only one window is mapped at a time: each is unmapped as soon as the stream moves past it, rather than left to the garbage collector.  Other files are read into a buffer in large chunks from their {@link FSDataInputStream}.  Positions are exact offsets in the file either way.
+ * A mapped file is read without the checksums of {@link org.apache.hadoop.fs.LocalFileSystem}; see {@link SeekableInputStream#isMapped}.
+ */
+public class ByteBufferInputStream extends InputStream implements Seekable {
+  private static final int WINDOW_SIZE = 1 << 28;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final FileChannel channel;
+  private final long length;
+  private final FSDataInputStream in;
+  private final byte[] chunk;
+  private ByteBuffer buffer;
+  /** The offset in the file of the beginning of the buffer. */
+  private long bufferStart;
+
+  /** Reads a local file through memory mappings. */
+  public ByteBufferInputStream(File file) throws IOException {
+    this.channel = new RandomAccessFile(file, "r").getChannel();
+    this.length = this.channel.size();
+    this.in = null;
+    this.chunk = null;
+    this.buffer = EMPTY;
+    this.bufferStart = 0;
+  }
+
+  /** Reads a stream in chunks of bufferSize bytes. */
+  public ByteBufferInputStream(FSDataInputStream in, int bufferSize) throws IOException {
+    this.channel = null;
+    this.length = -1;
+    this.in = in;
+    this.chunk = new byte[bufferSize];
+    this.buffer = EMPTY;
+    this.bufferStart = in.getPos();
+  }
+
+  /** Returns the buffer holding the bytes from the current position, reading more when none remain, or null at the end of the file.
+   * Reading from the returned buffer advances the position of this stream.
+   */
+  ByteBuffer buffer() throws IOException {
+    if ( !this.buffer.hasRemaining() && !this.fill() ) {
+      return null;
+    }
+    return this.buffer;
+  }
+
+  private boolean fill() throws IOException {
+    long pos = this.getPos();
+    if ( this.channel != null ) {
+      if ( pos >= this.length ) {
+        return false;
+      }
+      this.release();
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, this.length - pos));
+    } else {
+      int n = this.in.read(this.chunk, 0, this.chunk.length);
+      if ( n <= 0 ) {
+        return false;
+      }
+      this.buffer = ByteBuffer.wrap(this.chunk, 0, n);
+    }
+    this.bufferStart = pos;
+    return true;
+  }
+
+  public int read() throws IOException {
+    ByteBuffer b = this.buffer();
+    return b == null ? -1: b.get() & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if ( len == 0 ) {
+      return 0;
+    }
+    ByteBuffer buf = this.buffer();
+    if ( buf == null ) {
+      return -1;
+    }
+    int n = Math.min(len, buf.remaining());
+    buf.get(b, off, n);
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    if ( n <= 0 ) {
+      return 0;
+    }
+    long pos = this.getPos();
+    if ( n <= this.buffer.remaining() ) {
+      this.buffer.position(this.buffer.position() + (int)n);
+      return n;
+    }
+    if ( this.channel != null ) {
+      long target = Math.min(pos + n, this.length);
+      this.reset(target);
+      return target - pos;
+    }
+    long skipped = this.buffer.remaining() + this.in.skip(n - this.buffer.remaining());
+    this.reset(this.in.getPos());
+    return skipped;
+  }
+
+  public int available() throws IOException {
+    return this.buffer.remaining();
+  }
+
+  public long getPos() {
+    return this.bufferStart + this.buffer.position();
+  }
+
+  public void seek(long pos) throws IOException {
+    if ( pos >= this.bufferStart && pos <= this.bufferStart + this.buffer.limit() ) {
+      this.buffer.position((int)(pos - this.bufferStart));
+      return;
+    }
+    if ( this.in != null ) {
+      this.in.seek(pos);
+    }
+    this.reset(pos);
+  }
+
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    if ( this.in == null || !this.in.seekToNewSource(targetPos) ) {
+      return false;
+    }
+    this.reset(targetPos);
+    return true;
+  }
+
+  /** Empties the buffer, to be filled from pos. */
+  private void reset(long pos) {
+    this.release();
+    this.bufferStart = pos;
+  }
+
+  /** Drops the buffer, unmapping it when it is a window of the file. */
+  private void release() {
+    ByteBuffer window = this.buffer;
+    this.buffer = EMPTY;
+    if ( this.channel != null && window != EMPTY ) {
+      unmap(window);
+    }
+  }
+
+  /** Unmaps a mapped buffer through the cleaner of the JVM, where there is one.  Without it, the buffer stays mapped until it is collected. */
+  private static void unmap(ByteBuffer buffer) {
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if ( cleaner != null ) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // left to the garbage collector
+    }
+  }
+
+  public void close() throws IOException {
+    if ( this.channel != null ) {
+      this.release();
+      this.channel.close();
+    } else {
+      this.in.close();
+    }
+  }
+
+  @Override public String toString() {
+    return this.channel != null ? "mapped " + this.channel: String.valueOf(this.in);
+  }
+}
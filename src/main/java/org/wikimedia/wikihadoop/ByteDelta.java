@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+/** Encodes bytes as copies from a base and literal additions, for storing a revision against the previous one.
+ * A delta is a sequence of operations, each starting with a variable-length integer holding the length shifted left by one, and one for a copy or zero for an addition.  A copy is followed by the offset in the base, an addition by the bytes added.
+ * Matches are found by looking up the fingerprints of the aligned blocks of the base, and extended byte by byte in both directions.
+ */
+public class ByteDelta {
+  private static final int BLOCK = 16;
+  private static final int ADD  = 0;
+  private static final int COPY = 1;
+
+  private int[] table = new int[0];
+
+  /** Writes the delta turning base[0, baseLength) into target[from, to). */
+  public void encode(byte[] base, int baseLength, byte[] target, int from, int to, DataOutput out) throws IOException {
+    if ( baseLength < BLOCK || to - from < BLOCK ) {
+      writeAdd(out, target, from, to);
+      return;
+    }
+    int size = Integer.highestOneBit(baseLength / BLOCK) * 2;
+    if ( this.table.length < size ) {
+      this.table = new int[size];
+    }
+    int mask = size - 1;
+    Arrays.fill(this.table, 0, size, -1);
+    for ( int off = baseLength - baseLength % BLOCK - BLOCK; off >= 0; off -= BLOCK ) {
+      // earlier blocks win, so that unchanged text is copied in order
+      this.table[hash(base, off) & mask] = off;
+    }
+    int literal = from;
+    int i = from;
+    while ( i + BLOCK <= to ) {
+      int cand = this.table[hash(target, i) & mask];
+      if ( cand < 0 || !same(base, cand, target, i, BLOCK) ) {
+        ++i;
+        continue;
+      }
+      while ( i > literal && cand > 0 && base[cand - 1] == target[i - 1] ) {
+        --i;
+        --cand;
+      }
+      int len = BLOCK;
+      while ( cand + len < baseLength && i + len < to && base[cand + len] == target[i + len] ) {
+        ++len;
+      }
+      if ( literal < i ) {
+        writeAdd(out, target, literal, i);
+      }
+      WritableUtils.writeVInt(out, len << 1 | COPY);
+      WritableUtils.writeVInt(out, cand);
+      i += len;
+      literal = i;
+    }
+    if ( literal < to ) {
+      writeAdd(out, target, literal, to);
+    }
+  }
+
+  /** Appends the bytes made by applying the delta in data[from, to) to base[0, baseLength). */
+  public static void decode(byte[] base, int baseLength, byte[] data, int from, int to, DataOutputBuffer out) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, from, to - from);
+    while ( in.getPosition() < to ) {
+      int op = WritableUtils.readVInt(in);
+      int len = op >>> 1;
+      if ( (op & 1) == COPY ) {
+        int off = WritableUtils.readVInt(in);
+        if ( off < 0 || off + len > baseLength ) {
+          throw new IOException("copy out of the base: offset=" + off + " length=" + len + " base=" + baseLength);
+        }
+        out.write(base, off, len);
+      } else {
+        out.write(in, len);
+      }
+    }
+  }
+
+  private static void writeAdd(DataOutput out, byte[] data, int from, int to) throws IOException {
+    WritableUtils.writeVInt(out, (to - from) << 1 | ADD);
+    out.write(data, from, to - from);
+  }
+
+  private static int hash(byte[] data, int off) {
+    int h = 0;
+    for ( int i = off; i < off + BLOCK; ++i ) {
+      h = h * 31 + data[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean same(byte[] a, int aoff, byte[] b, int boff, int len) {
+    for ( int i = 0; i < len; ++i ) {
+      if ( a[aoff + i] != b[boff + i] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -17,19 +17,27 @@
 package org.wikimedia.wikihadoop;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.util.Progressable;
 
 public class ByteMatcher {
   private final InputStream in;
   private final Seekable pos;
+  private final ByteBufferInputStream buffer;
+  private byte[] scratch;
   private long lastPos;
   private long currentPos;
   private long bytes;
+  private Progressable progress;
+  private long heartbeatBytes;
+  private long nextHeartbeat = Long.MAX_VALUE;
   public ByteMatcher(InputStream in, Seekable pos) throws IOException {
     this.in = in;
     this.pos = pos;
+    this.buffer = in == pos && in instanceof SeekableInputStream ? ((SeekableInputStream)in).getByteBufferInputStream(): null;
     this.bytes = 0;
     this.lastPos = -1;
     this.currentPos = -1;
@@ -45,13 +53,31 @@ public class ByteMatcher {
   }
   public long getLastUnmatchPos() { return this.lastPos; }
 
+  /** Calls the progressable every time this many more bytes have been read, so that a long scan, such as over a huge page, is not taken for a hung task. */
+  public void setProgress(Progressable progress, long bytes) {
+    this.progress = progress;
+    this.heartbeatBytes = bytes;
+    this.nextHeartbeat = progress != null && bytes > 0 ? this.bytes + bytes: Long.MAX_VALUE;
+  }
+
+  private void heartbeat() {
+    this.nextHeartbeat = this.bytes + this.heartbeatBytes;
+    this.progress.progress();
+  }
+
   public void skip(long len) throws IOException {
     this.in.skip(len);
     this.bytes += len;
+    if ( this.bytes >= this.nextHeartbeat ) {
+      this.heartbeat();
+    }
   }
 
   boolean readUntilMatch(String textPat, DataOutputBuffer outBufOrNull, long end) throws IOException {
     byte[] match = textPat.getBytes("UTF-8");
+    if ( this.buffer != null ) {
+      return this.scanUntilMatch(match, outBufOrNull, end);
+    }
     int i = 0;
     while (true) {
       int b = this.in.read();
@@ -61,6 +87,9 @@ public class ByteMatcher {
         return false;
       }
       ++this.bytes;    //! TODO: count up later in batch
+      if ( this.bytes >= this.nextHeartbeat ) {
+        this.heartbeat();
+      }
       // save to buffer:
       if (outBufOrNull != null)
         outBufOrNull.write(b);
@@ -84,4 +113,79 @@ public class ByteMatcher {
       }
     }
   }
+
+  /** Does the same as the loop of {@link #readUntilMatch}, scanning the buffer of the stream instead of reading a byte at a time. */
+  private boolean scanUntilMatch(byte[] match, DataOutputBuffer outBufOrNull, long end) throws IOException {
+    int i = 0;
+    while (true) {
+      ByteBuffer buf = this.buffer.buffer();
+      if (buf == null) {
+        return false;
+      }
+      long base = this.buffer.getPos();
+      int start = buf.position();
+      int limit = buf.limit();
+      if ( this.nextHeartbeat - this.bytes < limit - start ) {
+        // stop at the next heartbeat, since a mapped buffer can hold a whole huge page
+        limit = start + (int)Math.max(1, this.nextHeartbeat - this.bytes);
+      }
+      int k = start;
+      boolean found = false;
+      boolean stop = false;
+      while (k < limit) {
+        byte b = buf.get(k++);
+        if (b == match[i]) {
+          i++;
+          if (i >= match.length) {
+            found = true;
+            break;
+          }
+        } else {
+          i = 0;
+          long p = base + k - start;
+          if ( this.currentPos != p ) {
+            this.lastPos = this.currentPos;
+            this.currentPos = p;
+          }
+        }
+        if (i == 0 && base + k - start >= end) {
+          stop = true;
+          break;
+        }
+      }
+      if (outBufOrNull != null) {
+        this.copy(buf, start, k, outBufOrNull);
+      }
+      buf.position(k);
+      this.bytes += k - start;
+      if ( this.bytes >= this.nextHeartbeat ) {
+        this.heartbeat();
+      }
+      if (found) {
+        return true;
+      }
+      if (stop) {
+        return false;
+      }
+    }
+  }
+
+  private void copy(ByteBuffer buf, int from, int to, DataOutputBuffer out) throws IOException {
+    if ( buf.hasArray() ) {
+      out.write(buf.array(), buf.arrayOffset() + from, to - from);
+      return;
+    }
+    // mapped buffers have no array to write from
+    if ( this.scratch == null ) {
+      this.scratch = new byte[1 << 16];
+    }
+    ByteBuffer src = buf.duplicate();
+    src.position(from);
+    while ( from < to ) {
+      int n = Math.min(to - from, this.scratch.length);
+      src.get(this.scratch, 0, n);
+      out.write(this.scratch, 0, n);
+      from += n;
+    }
+  }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/** {@link WikiDumpInputFormat} packing many small splits, such as those of the dumps of small wikis, into fewer map tasks.
+ * The splits made by {@link StreamWikiDumpInputFormat} are grouped by their first host into {@link CombineFileSplit}s of about <code>org.wikimedia.wikihadoop.combineSplitSize</code> bytes, and the splits left over on each host are grouped regardless of hosts.  A task reads the splits of its group one after another.
+ */
+public class CombineWikiDumpInputFormat extends WikiDumpInputFormat {
+  private static final Log LOG = LogFactory.getLog(CombineWikiDumpInputFormat.class);
+  private static final String KEY_COMBINE_SPLIT_SIZE = "org.wikimedia.wikihadoop.combineSplitSize";
+  private static final String KEY_PAGE_RANGE_SIZE    = "org.wikimedia.wikihadoop.pageRangeSize";
+
+  @Override public List<InputSplit> getSplits(JobContext context) throws IOException {
+    if ( context.getConfiguration().getLong(KEY_PAGE_RANGE_SIZE, 0) > 0 ) {
+      throw new IOException(KEY_PAGE_RANGE_SIZE + " can not be used with combined splits");
+    }
+    long target = context.getConfiguration().getLong(KEY_COMBINE_SPLIT_SIZE, 256L << 20);
+    Map<String,List<FileSplit>> hosts = new LinkedHashMap<String,List<FileSplit>>();
+    List<InputSplit> splits = super.getSplits(context);
+    for ( InputSplit split: splits ) {
+      FileSplit fx = (FileSplit)split;
+      String[] locations = fx.getLocations();
+      String host = locations != null && locations.length > 0 ? locations[0]: "";
+      List<FileSplit> list = hosts.get(host);
+      if ( list == null ) {
+        list = new ArrayList<FileSplit>();
+        hosts.put(host, list);
+      }
+      list.add(fx);
+    }
+    List<InputSplit> ret = new ArrayList<InputSplit>();
+    List<FileSplit> rest = new ArrayList<FileSplit>();
+    for ( Map.Entry<String,List<FileSplit>> e: hosts.entrySet() ) {
+      List<FileSplit> group = new ArrayList<FileSplit>();
+      long size = 0;
+      for ( FileSplit fx: e.getValue() ) {
+        group.add(fx);
+        size += fx.getLength();
+        if ( size >= target ) {
+          ret.add(combine(group));
+          group.clear();
+          size = 0;
+        }
+      }
+      rest.addAll(group);
+    }
+    List<FileSplit> group = new ArrayList<FileSplit>();
+    long size = 0;
+    for ( FileSplit fx: rest ) {
+      group.add(fx);
+      size += fx.getLength();
+      if ( size >= target ) {
+        ret.add(combine(group));
+        group.clear();
+        size = 0;
+      }
+    }
+    if ( !group.isEmpty() ) {
+      ret.add(combine(group));
+    }
+    LOG.info("combined " + splits.size() + " splits into " + ret.size());
+    return ret;
+  }
+
+  private static CombineFileSplit combine(List<FileSplit> splits) throws IOException {
+    Path[] paths = new Path[splits.size()];
+    long[] starts = new long[splits.size()];
+    long[] lengths = new long[splits.size()];
+    Set<String> hosts = new LinkedHashSet<String>();
+    for ( int i = 0; i < paths.length; ++i ) {
+      FileSplit fx = splits.get(i);
+      paths[i] = fx.getPath();
+      starts[i] = fx.getStart();
+      lengths[i] = fx.getLength();
+      String[] locations = fx.getLocations();
+      if ( locations != null && locations.length > 0 ) {
+        hosts.add(locations[0]);
+      }
+    }
+    return new CombineFileSplit(paths, starts, lengths, hosts.toArray(new String[hosts.size()]));
+  }
+
+  @Override public RecordReader<Text,Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    return new CombineRecordReader();
+  }
+
+  /** Reads the splits of a {@link CombineFileSplit} one after another. */
+  private static class CombineRecordReader extends RecordReader<Text,Text> {
+    private CombineFileSplit split;
+    private TaskAttemptContext context;
+    private org.apache.hadoop.mapred.RecordReader<Text,Text> reader;
+    private int index;
+    private long doneBytes;
+    private final Text key = new Text();
+    private final Text value = new Text();
+
+    @Override public void initialize(InputSplit split, TaskAttemptContext context) {
+      this.split = (CombineFileSplit)split;
+      this.context = context;
+      this.index = -1;
+      this.doneBytes = 0;
+    }
+
+    @Override public boolean nextKeyValue() throws IOException {
+      while ( this.reader == null || !this.reader.next(this.key, this.value) ) {
+        if ( this.reader != null ) {
+          this.reader.close();
+          this.reader = null;
+          this.doneBytes += this.split.getLength(this.index);
+        }
+        if ( ++this.index >= this.split.getNumPaths() ) {
+          return false;
+        }
+        FileSplit fx = new FileSplit(this.split.getPath(this.index), this.split.getOffset(this.index), this.split.getLength(this.index), (String[])null);
+        this.reader = open(fx, this.context);
+      }
+      return true;
+    }
+
+    @Override public Text getCurrentKey() {
+      return this.key;
+    }
+
+    @Override public Text getCurrentValue() {
+      return this.value;
+    }
+
+    @Override public float getProgress() throws IOException {
+      long total = this.split.getLength();
+      if ( total == 0 ) {
+        return 1.0f;
+      }
+      float current = this.reader != null ? this.reader.getProgress() * this.split.getLength(this.index): 0;
+      return Math.min(1.0f, (this.doneBytes + current) / total);
+    }
+
+    @Override public void close() throws IOException {
+      if ( this.reader != null ) {
+        this.reader.close();
+        this.reader = null;
+      }
+    }
+  }
+}
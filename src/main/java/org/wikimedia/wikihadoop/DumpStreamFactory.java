@@ -0,0 +1,104 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileSplit;
+
+/** Opens {@link SeekableInputStream}s of dump files, keeping one open file system stream per file, which the streams opened one after another read by seeking.
+ * A stream opened from the factory has to be closed before the next one of the same file is opened, since they share the position of the file; closing it returns its decompressor to the pool but leaves the file open until the factory is closed.  Files which are memory-mapped are not kept open.
+ */
+public class DumpStreamFactory implements Closeable {
+  private final FileSystem fs;
+  private final CompressionCodecFactory codecs;
+  private final Configuration conf;
+  private final Map<Path,FSDataInputStream> files = new HashMap<Path,FSDataInputStream>();
+  private long opens;
+  private long reuses;
+
+  public DumpStreamFactory(FileSystem fs, CompressionCodecFactory codecs, Configuration conf) {
+    this.fs = fs;
+    this.codecs = codecs;
+    this.conf = conf;
+  }
+
+  public SeekableInputStream open(Path path, long start, long end) throws IOException {
+    if ( SeekableInputStream.isMapped(path, this.fs, this.codecs, this.conf) ) {
+      ++this.opens;
+      return SeekableInputStream.getInstance(path, start, end, this.fs, this.codecs, this.conf, null);
+    }
+    FSDataInputStream file = this.files.get(path);
+    if ( file == null ) {
+      file = new Unclosed(this.fs.open(path));
+      this.files.put(path, file);
+      ++this.opens;
+    } else {
+      ++this.reuses;
+    }
+    return SeekableInputStream.getInstance(path, start, end, this.fs, this.codecs, this.conf, file);
+  }
+
+  public SeekableInputStream open(FileSplit split) throws IOException {
+    return this.open(split.getPath(), split.getStart(), split.getStart() + split.getLength());
+  }
+
+  /** Returns the number of files opened. */
+  public long getOpens() {
+    return this.opens;
+  }
+
+  /** Returns the number of streams opened on files already open. */
+  public long getReuses() {
+    return this.reuses;
+  }
+
+  public void close() throws IOException {
+    IOException error = null;
+    for ( FSDataInputStream file: this.files.values() ) {
+      try {
+        ((Unclosed)file).release();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    this.files.clear();
+    if ( error != null ) {
+      throw error;
+    }
+  }
+
+  /** A stream of a file which the streams reading it cannot close. */
+  private static class Unclosed extends FSDataInputStream {
+    Unclosed(FSDataInputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override public void close() {
+    }
+
+    void release() throws IOException {
+      super.close();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+/** Counts of edits and of added bytes by page, contributor, month and namespace, kept by {@link StreamWikiDumpInputFormat} when <code>aggregate</code> is set.
+ * The counts are written as records whose keys are a dimension and a value of it separated by a tab, such as <code>month\t201104</code>, and whose values are the number of edits and the bytes added separated by a tab.  Contributors are given by their user ids, or by their IP addresses for anonymous edits.  Partial counts of the same key from different splits are summed by {@link SumReducer}.
+ */
+public class EditAggregates {
+  public static final String PAGE        = "page";
+  public static final String CONTRIBUTOR = "contributor";
+  public static final String MONTH       = "month";
+  public static final String NAMESPACE   = "namespace";
+
+  private final LongLongHashMap[] edits;
+  private final LongLongHashMap[] bytes;
+  private final Map<String,long[]> anonymous;
+  private static final String[] DIMENSIONS = {PAGE, CONTRIBUTOR, MONTH, NAMESPACE};
+
+  /** Counts along the given dimensions. */
+  public EditAggregates(Collection<String> dimensions) {
+    this.edits = new LongLongHashMap[DIMENSIONS.length];
+    this.bytes = new LongLongHashMap[DIMENSIONS.length];
+    for ( String d: dimensions ) {
+      int i = Arrays.asList(DIMENSIONS).indexOf(d.trim());
+      if ( i < 0 ) {
+        throw new IllegalArgumentException("unknown dimension: " + d);
+      }
+      this.edits[i] = new LongLongHashMap(1024, 0L);
+      this.bytes[i] = new LongLongHashMap(1024, 0L);
+    }
+    this.anonymous = this.edits[1] != null ? new HashMap<String,long[]>(): null;
+  }
+
+  /** Counts an edit.
+   * @param month the year and the month as a number, such as 201104, or -1 if unknown
+   * @param userId the id of the user, or -1 for anonymous edits
+   * @param ip the address of an anonymous user, or null
+   */
+  public void add(long pageId, int namespace, long month, long userId, String ip, long bytesAdded) {
+    this.add(0, pageId, bytesAdded);
+    if ( userId >= 0 || ip == null ) {
+      this.add(1, userId, bytesAdded);
+    } else if ( this.anonymous != null ) {
+      long[] counts = this.anonymous.get(ip);
+      if ( counts == null ) {
+        counts = new long[2];
+        this.anonymous.put(ip, counts);
+      }
+      ++counts[0];
+      counts[1] += bytesAdded;
+    }
+    this.add(2, month, bytesAdded);
+    this.add(3, namespace, bytesAdded);
+  }
+
+  private void add(int dimension, long key, long bytesAdded) {
+    if ( this.edits[dimension] != null ) {
+      this.edits[dimension].increment(key, 1);
+      this.bytes[dimension].increment(key, bytesAdded);
+    }
+  }
+
+  /** Returns the number of keys counted so far, which is about proportional to the memory used. */
+  public int size() {
+    int n = this.anonymous != null ? this.anonymous.size(): 0;
+    for ( LongLongHashMap m: this.edits ) {
+      if ( m != null ) {
+        n += m.size();
+      }
+    }
+    return n;
+  }
+
+  /** Appends the counts to out as pairs of a key and a value, and clears them. */
+  public void drain(List<String[]> out) {
+    for ( int i = 0; i < DIMENSIONS.length; ++i ) {
+      if ( this.edits[i] == null ) {
+        continue;
+      }
+      long[] keys = this.edits[i].keys();
+      Arrays.sort(keys);
+      for ( long k: keys ) {
+        out.add(new String[]{DIMENSIONS[i] + "\t" + k, this.edits[i].get(k) + "\t" + this.bytes[i].get(k)});
+      }
+      this.edits[i].clear();
+      this.bytes[i].clear();
+    }
+    if ( this.anonymous != null ) {
+      for ( Map.Entry<String,long[]> e: new TreeMap<String,long[]>(this.anonymous).entrySet() ) {
+        out.add(new String[]{CONTRIBUTOR + "\t" + e.getKey(), e.getValue()[0] + "\t" + e.getValue()[1]});
+      }
+      this.anonymous.clear();
+    }
+  }
+
+  /** Returns the year and the month of a timestamp such as 2011-04-05T12:34:56Z as a number such as 201104, or -1. */
+  public static long month(String timestamp) {
+    if ( timestamp == null || timestamp.length() < 7 || timestamp.charAt(4) != '-' ) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(timestamp.substring(0, 4)) * 100 + Integer.parseInt(timestamp.substring(5, 7));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Sums the tab-separated counts of each key; it can also be used as the combiner. */
+  public static class SumReducer extends MapReduceBase implements Reducer<Text,Text,Text,Text> {
+    private final Text sum = new Text();
+
+    public void reduce(Text key, Iterator<Text> values, OutputCollector<Text,Text> output, Reporter reporter) throws IOException {
+      long edits = 0;
+      long bytes = 0;
+      while ( values.hasNext() ) {
+        String v = values.next().toString();
+        int tab = v.indexOf('\t');
+        if ( tab < 0 ) {
+          throw new IOException("malformed counts of " + key + ": " + v);
+        }
+        edits += Long.parseLong(v.substring(0, tab));
+        bytes += Long.parseLong(v.substring(tab + 1));
+      }
+      this.sum.set(edits + "\t" + bytes);
+      output.collect(key, this.sum);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.util.Arrays;
+
+/** An open-addressing hash map from long to long, which does not box its keys and values.
+ * Lookups of absent keys return the missing value given to the constructor.
+ */
+public class LongLongHashMap {
+  private static final int DEFAULT_CAPACITY = 16;
+  private final int initialCapacity;
+  private final long missing;
+  private long[] keys;
+  private long[] values;
+  private boolean[] used;
+  private int size;
+  private int mask;
+
+  public LongLongHashMap() {
+    this(DEFAULT_CAPACITY, -1L);
+  }
+  public LongLongHashMap(int capacity, long missingValue) {
+    int cap = DEFAULT_CAPACITY;
+    while ( cap < capacity * 2 ) {
+      cap <<= 1;
+    }
+    this.initialCapacity = cap;
+    this.missing = missingValue;
+    allocate(cap);
+  }
+
+  public int size() {
+    return this.size;
+  }
+  public long getMissingValue() {
+    return this.missing;
+  }
+
+  public long get(long key) {
+    int i = slot(key);
+    while ( this.used[i] ) {
+      if ( this.keys[i] == key ) {
+        return this.values[i];
+      }
+      i = (i + 1) & this.mask;
+    }
+    return this.missing;
+  }
+
+  public boolean containsKey(long key) {
+    int i = slot(key);
+    while ( this.used[i] ) {
+      if ( this.keys[i] == key ) {
+        return true;
+      }
+      i = (i + 1) & this.mask;
+    }
+    return false;
+  }
+
+  /** Stores the value and returns the previous one, or the missing value. */
+  public long put(long key, long value) {
+    int i = slot(key);
+    while ( this.used[i] ) {
+      if ( this.keys[i] == key ) {
+        long old = this.values[i];
+        this.values[i] = value;
+        return old;
+      }
+      i = (i + 1) & this.mask;
+    }
+    this.used[i] = true;
+    this.keys[i] = key;
+    this.values[i] = value;
+    if ( ++this.size * 4 > this.keys.length * 3 ) {
+      rehash(this.keys.length * 2);
+    }
+    return this.missing;
+  }
+
+  /** Adds delta to the value (absent keys count as zero) and returns the new value. */
+  public long increment(long key, long delta) {
+    int i = slot(key);
+    while ( this.used[i] ) {
+      if ( this.keys[i] == key ) {
+        return this.values[i] += delta;
+      }
+      i = (i + 1) & this.mask;
+    }
+    put(key, delta);
+    return delta;
+  }
+
+  /** Returns the keys present in this map, in no particular order. */
+  public long[] keys() {
+    long[] ret = new long[this.size];
+    int n = 0;
+    for ( int i = 0; i < this.keys.length; ++i ) {
+      if ( this.used[i] ) {
+        ret[n++] = this.keys[i];
+      }
+    }
+    return ret;
+  }
+
+  /** Removes all entries, shrinking the table back if it has grown. */
+  public void clear() {
+    if ( this.keys.length > this.initialCapacity ) {
+      allocate(this.initialCapacity);
+    } else if ( this.size > 0 ) {
+      Arrays.fill(this.used, false);
+    }
+    this.size = 0;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32)) & this.mask;
+  }
+
+  private void allocate(int capacity) {
+    this.keys   = new long[capacity];
+    this.values = new long[capacity];
+    this.used   = new boolean[capacity];
+    this.mask   = capacity - 1;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = this.keys;
+    long[] oldValues = this.values;
+    boolean[] oldUsed = this.used;
+    allocate(capacity);
+    for ( int j = 0; j < oldKeys.length; ++j ) {
+      if ( oldUsed[j] ) {
+        int i = slot(oldKeys[j]);
+        while ( this.used[i] ) {
+          i = (i + 1) & this.mask;
+        }
+        this.used[i] = true;
+        this.keys[i] = oldKeys[j];
+        this.values[i] = oldValues[j];
+      }
+    }
+  }
+}
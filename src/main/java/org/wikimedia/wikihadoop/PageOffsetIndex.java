@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/** Maps page ids to the offsets in a dump file from which reading finds the page.
+ * For compressed dumps an offset is the position of a block two blocks before the one holding the beginning of the page, so that the codec can always find a block boundary before the page.  For uncompressed dumps it is the exact offset of the page.
+ *
+ * The index is kept as a text sidecar named after the dump, with one page id and offset per line after a line recording the length of the dump.
+ */
+public class PageOffsetIndex {
+  private static final String HEADER = "# wikihadoop page offsets length=";
+
+  private final long[] ids;
+  private final long[] offsets;
+  private final long length;
+
+  private PageOffsetIndex(long[] ids, long[] offsets, long length) {
+    this.ids = ids;
+    this.offsets = offsets;
+    this.length = length;
+  }
+
+  public int size() {
+    return this.ids.length;
+  }
+
+  public long getLength() {
+    return this.length;
+  }
+
+  /** Returns the i-th page id, in ascending order. */
+  public long getIdAt(int i) {
+    return this.ids[i];
+  }
+
+  public long getOffsetAt(int i) {
+    return this.offsets[i];
+  }
+
+  /** Returns the offset to read page id from, or -1 if the page is not in the dump. */
+  public long getOffset(long id) {
+    int i = Arrays.binarySearch(this.ids, id);
+    return i < 0 ? -1: this.offsets[i];
+  }
+
+  /** Collects page ids and offsets in the order of the dump. */
+  public static class Builder {
+    private long[] ids = new long[1024];
+    private long[] offsets = new long[1024];
+    private int size = 0;
+    private final boolean compressed;
+    private long lastPos = 0;
+    private long lastButOnePos = 0;
+    private long currentPos = -1;
+
+    public Builder(boolean compressed) {
+      this.compressed = compressed;
+    }
+
+    /** Adds a page whose <code>&lt;page&gt;</code> has just been read at pos, as reported by the input stream. */
+    public void add(long id, long pos, int tagLength) {
+      if ( id < 0 ) {
+        return;
+      }
+      if ( pos != this.currentPos ) {
+        this.lastButOnePos = this.lastPos;
+        this.lastPos = Math.max(this.currentPos, 0);
+        this.currentPos = pos;
+      }
+      if ( this.size == this.ids.length ) {
+        this.ids = grow(this.ids);
+        this.offsets = grow(this.offsets);
+      }
+      this.ids[this.size] = id;
+      this.offsets[this.size] = this.compressed ? this.lastButOnePos: pos - tagLength;
+      ++this.size;
+    }
+
+    public PageOffsetIndex build(long length) {
+      Integer[] order = new Integer[this.size];
+      for ( int i = 0; i < order.length; ++i ) {
+        order[i] = i;
+      }
+      final long[] keys = this.ids;
+      Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return keys[a] < keys[b] ? -1: keys[a] > keys[b] ? 1: a.compareTo(b);
+          }
+        });
+      // a page appearing twice is looked up from its first occurrence
+      long[] ids = new long[this.size];
+      long[] offsets = new long[this.size];
+      int n = 0;
+      for ( Integer i: order ) {
+        if ( n > 0 && ids[n - 1] == this.ids[i] ) {
+          continue;
+        }
+        ids[n] = this.ids[i];
+        offsets[n] = this.offsets[i];
+        ++n;
+      }
+      if ( n < this.size ) {
+        long[] ids2 = new long[n];
+        long[] offsets2 = new long[n];
+        System.arraycopy(ids, 0, ids2, 0, n);
+        System.arraycopy(offsets, 0, offsets2, 0, n);
+        ids = ids2;
+        offsets = offsets2;
+      }
+      return new PageOffsetIndex(ids, offsets, length);
+    }
+
+    private static long[] grow(long[] a) {
+      long[] ret = new long[a.length * 2];
+      System.arraycopy(a, 0, ret, 0, a.length);
+      return ret;
+    }
+  }
+
+  public static PageOffsetIndex read(FileSystem fs, Path path) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if ( line == null || !line.startsWith(HEADER) ) {
+        throw new IOException("not a page offset index: " + path);
+      }
+      long length = Long.parseLong(line.substring(HEADER.length()));
+      List<long[]> entries = new ArrayList<long[]>();
+      while ( (line = reader.readLine()) != null ) {
+        int tab = line.indexOf('\t');
+        if ( tab < 0 ) {
+          throw new IOException("malformed line in " + path + ": " + line);
+        }
+        entries.add(new long[]{Long.parseLong(line.substring(0, tab)), Long.parseLong(line.substring(tab + 1))});
+      }
+      long[] ids = new long[entries.size()];
+      long[] offsets = new long[entries.size()];
+      for ( int i = 0; i < ids.length; ++i ) {
+        ids[i] = entries.get(i)[0];
+        offsets[i] = entries.get(i)[1];
+      }
+      return new PageOffsetIndex(ids, offsets, length);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void write(FileSystem fs, Path path) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(fs.create(path), "UTF-8"));
+    try {
+      writer.write(HEADER + this.length + "\n");
+      for ( int i = 0; i < this.ids.length; ++i ) {
+        writer.write(this.ids[i] + "\t" + this.offsets[i] + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /** Returns the index of a dump file kept in the directory, or null when there is none or it is stale. */
+  public static PageOffsetIndex forFile(FileSystem fs, Path dir, Path file, long length) throws IOException {
+    Path path = sidecar(dir, file);
+    if ( !fs.exists(path) ) {
+      return null;
+    }
+    PageOffsetIndex index = read(fs, path);
+    if ( index.getLength() != length ) {
+      return null;
+    }
+    return index;
+  }
+
+  public static Path sidecar(Path dir, Path file) {
+    return new Path(dir, file.getName() + ".pages");
+  }
+}
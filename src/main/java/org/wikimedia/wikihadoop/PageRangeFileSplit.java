@@ -0,0 +1,66 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+
+/** A split whose record reader reads only the pages with ids from minPageId (inclusive) to maxPageId (exclusive), made by {@link StreamWikiDumpInputFormat} when <code>pageRangeSize</code> is set. */
+public class PageRangeFileSplit extends FileSplit {
+  private long minPageId;
+  private long maxPageId;
+
+  public PageRangeFileSplit() {
+    super();
+  }
+
+  public PageRangeFileSplit(Path file, long start, long length, String[] hosts, long minPageId, long maxPageId) {
+    super(file, start, length, hosts);
+    this.minPageId = minPageId;
+    this.maxPageId = maxPageId;
+  }
+
+  public long getMinPageId() {
+    return this.minPageId;
+  }
+
+  public long getMaxPageId() {
+    return this.maxPageId;
+  }
+
+  public boolean contains(long pageId) {
+    return this.minPageId <= pageId && pageId < this.maxPageId;
+  }
+
+  @Override public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeLong(this.minPageId);
+    out.writeLong(this.maxPageId);
+  }
+
+  @Override public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    this.minPageId = in.readLong();
+    this.maxPageId = in.readLong();
+  }
+
+  @Override public String toString() {
+    return super.toString() + " pages=" + this.minPageId + "-" + this.maxPageId;
+  }
+}
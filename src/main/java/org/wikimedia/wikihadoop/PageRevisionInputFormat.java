@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+/** Reads dumps into the same records as {@link StreamWikiDumpInputFormat}, given as values with {@link PageRevisionKey} keys.
+ * A key holds the page id and the id of the first revision in the record, taken from the bytes the record reader scans anyway, so that jobs sorting or joining revisions need not parse the records to make keys.  Splits and all the settings are those of {@link StreamWikiDumpInputFormat}.
+ */
+public class PageRevisionInputFormat implements InputFormat<PageRevisionKey,Text>, JobConfigurable {
+  private final StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+
+  public void configure(JobConf job) {
+    this.format.configure(job);
+  }
+
+  public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+    return this.format.getSplits(job, numSplits);
+  }
+
+  public RecordReader<PageRevisionKey,Text> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+    return new KeyRecordReader(this.format.getRecordReader(split, job, reporter, true));
+  }
+
+  private static class KeyRecordReader implements RecordReader<PageRevisionKey,Text> {
+    private final StreamWikiDumpInputFormat.MyRecordReader reader;
+    private final Text empty = new Text();
+
+    KeyRecordReader(StreamWikiDumpInputFormat.MyRecordReader reader) {
+      this.reader = reader;
+    }
+
+    public boolean next(PageRevisionKey key, Text value) throws IOException {
+      if ( !this.reader.next(value, this.empty) ) {
+        return false;
+      }
+      key.set(this.reader.getRecordPageId(), this.reader.getRecordRevisionId());
+      return true;
+    }
+
+    public PageRevisionKey createKey() {
+      return new PageRevisionKey();
+    }
+
+    public Text createValue() {
+      return new Text();
+    }
+
+    public long getPos() throws IOException {
+      return this.reader.getPos();
+    }
+
+    public float getProgress() throws IOException {
+      return this.reader.getProgress();
+    }
+
+    public void close() throws IOException {
+      this.reader.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/** A revision identified by its page id and revision id, ordered by page and then by revision.
+ * The key is serialized in 16 fixed bytes, which {@link Comparator} compares without deserializing.  For jobs reducing each page as a whole, {@link PagePartitioner} sends all the revisions of a page to the same reducer, and {@link PageComparator} groups them into one call of the reducer, in the order of the revisions.
+ */
+public class PageRevisionKey implements WritableComparable<PageRevisionKey> {
+  private long pageId;
+  private long revisionId;
+
+  public PageRevisionKey() {
+    this(-1, -1);
+  }
+
+  public PageRevisionKey(long pageId, long revisionId) {
+    this.pageId = pageId;
+    this.revisionId = revisionId;
+  }
+
+  public long getPageId() {
+    return this.pageId;
+  }
+
+  public long getRevisionId() {
+    return this.revisionId;
+  }
+
+  public void set(long pageId, long revisionId) {
+    this.pageId = pageId;
+    this.revisionId = revisionId;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(this.pageId);
+    out.writeLong(this.revisionId);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    this.pageId = in.readLong();
+    this.revisionId = in.readLong();
+  }
+
+  public int compareTo(PageRevisionKey o) {
+    if ( this.pageId != o.pageId ) {
+      return this.pageId < o.pageId ? -1: 1;
+    }
+    if ( this.revisionId != o.revisionId ) {
+      return this.revisionId < o.revisionId ? -1: 1;
+    }
+    return 0;
+  }
+
+  @Override public boolean equals(Object o) {
+    if ( !(o instanceof PageRevisionKey) ) {
+      return false;
+    }
+    PageRevisionKey k = (PageRevisionKey)o;
+    return this.pageId == k.pageId && this.revisionId == k.revisionId;
+  }
+
+  @Override public int hashCode() {
+    long h = this.pageId * 31 + this.revisionId;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  @Override public String toString() {
+    return this.pageId + "\t" + this.revisionId;
+  }
+
+  /** Compares serialized keys by page id and then by revision id. */
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(PageRevisionKey.class);
+    }
+
+    @Override public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int c = compareLongs(readLong(b1, s1), readLong(b2, s2));
+      return c != 0 ? c: compareLongs(readLong(b1, s1 + 8), readLong(b2, s2 + 8));
+    }
+  }
+
+  /** Compares serialized keys by page id only, for use as the output value grouping comparator. */
+  public static class PageComparator extends WritableComparator {
+    public PageComparator() {
+      super(PageRevisionKey.class);
+    }
+
+    @Override public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return compareLongs(readLong(b1, s1), readLong(b2, s2));
+    }
+
+    @Override public int compare(WritableComparable a, WritableComparable b) {
+      return compareLongs(((PageRevisionKey)a).pageId, ((PageRevisionKey)b).pageId);
+    }
+  }
+
+  /** Partitions keys by page id. */
+  public static class PagePartitioner<V> implements Partitioner<PageRevisionKey,V> {
+    public void configure(JobConf job) {
+    }
+
+    public int getPartition(PageRevisionKey key, V value, int numPartitions) {
+      long h = key.pageId * 0x9e3779b97f4a7c15L;
+      return (int)((h >>> 33) % numPartitions);
+    }
+  }
+
+  private static int compareLongs(long a, long b) {
+    return a < b ? -1: a > b ? 1: 0;
+  }
+
+  static {
+    WritableComparator.define(PageRevisionKey.class, new Comparator());
+  }
+}
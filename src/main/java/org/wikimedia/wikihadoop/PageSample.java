@@ -0,0 +1,50 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+/** A deterministic sample of pages, chosen by a hash of their ids.
+ * The same rate and seed choose the same pages in any dump and any split of it, and a larger rate with the same seed chooses a superset of them.
+ */
+public class PageSample {
+  private final double rate;
+  private final long seed;
+
+  public PageSample(double rate, long seed) {
+    this.rate = rate;
+    this.seed = seed;
+  }
+
+  public double getRate() {
+    return this.rate;
+  }
+
+  public long getSeed() {
+    return this.seed;
+  }
+
+  public boolean contains(long pageId) {
+    return (mix(pageId ^ this.seed) >>> 11) / (double)(1L << 53) < this.rate;
+  }
+
+  /** The finalizer of SplitMix64, which spreads consecutive ids uniformly. */
+  private static long mix(long z) {
+    z += 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.UnsupportedEncodingException;
+
+/** Formats values as Python 2's <code>repr()</code> does, as the diffdb format requires. */
+public class PyRepr {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The repr of a unicode string, such as <code>u'abc'</code>, or <code>None</code> for null.  Characters outside the BMP are written as one eight-digit escape such as <code>\U0001f600</code>, as Python does; unpaired surrogates keep four-digit escapes. */
+  public static String unicode(String str) {
+    if ( str == null ) {
+      return "None";
+    }
+    StringBuilder buf = new StringBuilder(str.length() + 3);
+    buf.append('u');
+    quote(buf, str, true);
+    return buf.toString();
+  }
+
+  /** The repr of a byte string holding the UTF-8 encoding of str, such as <code>'abc'</code>, or <code>None</code> for null. */
+  public static String bytes(String str) {
+    if ( str == null ) {
+      return "None";
+    }
+    try {
+      byte[] b = str.getBytes("UTF-8");
+      char[] chars = new char[b.length];
+      for ( int i = 0; i < b.length; ++i ) {
+        chars[i] = (char)(b[i] & 0xff);
+      }
+      StringBuilder buf = new StringBuilder(b.length + 2);
+      quote(buf, new String(chars), false);
+      return buf.toString();
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String bool(boolean b) {
+    return b ? "True": "False";
+  }
+
+  /** The repr of an integer, or <code>None</code> for a negative value, which stands for a missing one. */
+  public static String number(long n) {
+    return n < 0 ? "None": Long.toString(n);
+  }
+
+  private static void quote(StringBuilder buf, String str, boolean unicode) {
+    char q = str.indexOf('\'') >= 0 && str.indexOf('"') < 0 ? '"': '\'';
+    buf.append(q);
+    for ( int i = 0; i < str.length(); ++i ) {
+      char c = str.charAt(i);
+      if ( c == q || c == '\\' ) {
+        buf.append('\\').append(c);
+      } else if ( c == '\t' ) {
+        buf.append("\\t");
+      } else if ( c == '\n' ) {
+        buf.append("\\n");
+      } else if ( c == '\r' ) {
+        buf.append("\\r");
+      } else if ( c < ' ' || (c >= 0x7f && c < 0x100) ) {
+        buf.append("\\x").append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+      } else if ( unicode && Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1)) ) {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        buf.append("\\U");
+        for ( int shift = 28; shift >= 0; shift -= 4 ) {
+          buf.append(HEX[(cp >> shift) & 0xf]);
+        }
+      } else if ( c >= 0x100 && unicode ) {
+        buf.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+      } else {
+        buf.append(c);
+      }
+    }
+    buf.append(q);
+  }
+}
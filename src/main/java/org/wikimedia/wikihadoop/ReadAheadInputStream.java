@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.fs.Seekable;
+
+/** An input stream that reads (and decompresses) a {@link SeekableInputStream} ahead in a background thread.
+ * Blocks are handed over through a bounded queue, so the reader thread blocks when it runs out of data and the background thread blocks when the queue is full.
+ *
+ * Positions are reported as {@link SeekableInputStream} would report them when read byte by byte: exact offsets for uncompressed input, and the position after the block was read for compressed input.
+ */
+public class ReadAheadInputStream extends InputStream implements Seekable {
+  private static class Block {
+    final byte[] data;
+    final int length;
+    final long startPos;
+    final long endPos;
+    Block(byte[] data, int length, long startPos, long endPos) {
+      this.data = data;
+      this.length = length;
+      this.startPos = startPos;
+      this.endPos = endPos;
+    }
+  }
+  private static final Block EOF = new Block(null, 0, -1, -1);
+
+  private final SeekableInputStream in;
+  private final BlockingQueue<Block> queue;
+  private final BlockingQueue<byte[]> free;
+  private final int blockSize;
+  private final boolean exactPos;
+  private final Thread thread;
+  private volatile boolean closed;
+  private volatile IOException error;
+  private Block current;
+  private int offset;
+  private long lastPos;
+
+  public ReadAheadInputStream(SeekableInputStream in, int blocks, int blockSize) throws IOException {
+    this.in = in;
+    this.queue = new ArrayBlockingQueue<Block>(blocks);
+    this.free = new ArrayBlockingQueue<byte[]>(blocks + 2);
+    this.blockSize = blockSize;
+    this.exactPos = !in.isCompressed();
+    this.lastPos = in.getPos();
+    this.closed = false;
+    this.current = null;
+    this.offset = 0;
+    this.thread = new Thread(new Runnable() {
+        public void run() {
+          fill();
+        }
+      }, "wikihadoop-readahead " + in);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void fill() {
+    try {
+      while ( !this.closed ) {
+        byte[] buf = this.free.poll();
+        if ( buf == null ) {
+          buf = new byte[this.blockSize];
+        }
+        long startPos = this.in.getPos();
+        int len = this.in.read(buf, 0, buf.length);
+        if ( len < 0 ) {
+          break;
+        }
+        if ( len > 0 ) {
+          this.queue.put(new Block(buf, len, startPos, this.in.getPos()));
+        } else {
+          this.free.offer(buf);
+        }
+      }
+      this.queue.put(EOF);
+    } catch (InterruptedException e) {
+      // closed while waiting for the reader
+    } catch (IOException e) {
+      this.error = e;
+      try {
+        this.queue.put(EOF);
+      } catch (InterruptedException ie) {
+        // closed while reporting the error
+      }
+    }
+  }
+
+  private boolean nextBlock() throws IOException {
+    while ( this.current == null || this.offset >= this.current.length ) {
+      if ( this.current == EOF ) {
+        return false;
+      }
+      if ( this.current != null ) {
+        this.lastPos = this.current.endPos;
+        this.free.offer(this.current.data);
+      }
+      try {
+        this.current = this.queue.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("interrupted while reading ahead " + this.in);
+      }
+      this.offset = 0;
+      if ( this.current == EOF && this.error != null ) {
+        throw this.error;
+      }
+    }
+    return true;
+  }
+
+  @Override public int read() throws IOException {
+    if ( !nextBlock() ) {
+      return -1;
+    }
+    return this.current.data[this.offset++] & 0xff;
+  }
+
+  @Override public int read(byte[] b, int off, int len) throws IOException {
+    if ( len == 0 ) {
+      return 0;
+    }
+    if ( !nextBlock() ) {
+      return -1;
+    }
+    int n = Math.min(len, this.current.length - this.offset);
+    System.arraycopy(this.current.data, this.offset, b, off, n);
+    this.offset += n;
+    return n;
+  }
+
+  @Override public long skip(long len) throws IOException {
+    long skipped = 0;
+    while ( skipped < len && nextBlock() ) {
+      int n = (int)Math.min(len - skipped, this.current.length - this.offset);
+      this.offset += n;
+      skipped += n;
+    }
+    return skipped;
+  }
+
+  @Override public int available() throws IOException {
+    if ( this.current == null || this.current == EOF ) {
+      return 0;
+    }
+    return this.current.length - this.offset;
+  }
+
+  public long getPos() throws IOException {
+    if ( this.current == null || this.current == EOF ) {
+      return this.lastPos;
+    }
+    return this.exactPos ? this.current.startPos + this.offset: this.current.endPos;
+  }
+  public void seek(long pos) throws IOException {
+    throw new IOException("seek is not supported while reading ahead: " + this.in);
+  }
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override public void close() throws IOException {
+    this.closed = true;
+    this.thread.interrupt();
+    try {
+      this.thread.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("interrupted while closing " + this.in);
+    } finally {
+      this.queue.clear();
+      this.free.clear();
+      this.in.close();
+    }
+  }
+
+  @Override public String toString() {
+    return this.in.toString();
+  }
+}
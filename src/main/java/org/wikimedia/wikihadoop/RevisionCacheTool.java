@@ -0,0 +1,177 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/** Converts dumps into block-compressed SequenceFiles of {@link PageRevisionKey} and {@link RevisionWritable}, to be read by {@link WikiRevisionSequenceFileInputFormat} instead of decompressing and scanning the dumps again.
+ * Usage: <code>hadoop jar wikihadoop.jar org.wikimedia.wikihadoop.RevisionCacheTool OUTPUT DUMP...</code>
+ *
+ * The codec is the one set by <code>mapred.output.compression.codec</code>.  The other variables of {@link StreamWikiDumpInputFormat} apply to the records stored, except that the previous revisions are always read.
+ * Revisions are stored as deltas against their previous ones unless <code>org.wikimedia.wikihadoop.cacheDeltas</code> is false, with a keyframe at the beginning of every page and after every <code>org.wikimedia.wikihadoop.keyframeInterval</code> revisions.
+ */
+public class RevisionCacheTool extends Configured implements Tool {
+  private static final String KEY_DELTAS            = "org.wikimedia.wikihadoop.cacheDeltas";
+  private static final String KEY_KEYFRAME_INTERVAL = "org.wikimedia.wikihadoop.keyframeInterval";
+
+  /** Converts the records of {@link StreamWikiDumpInputFormat}, in the order of the input. */
+  public static class CacheMapper extends MapReduceBase implements Mapper<Text,Text,PageRevisionKey,RevisionWritable> {
+    private static final byte[] revisionBegin = XmlFields.ascii("<revision");
+    private static final byte[] beginningAttribute = XmlFields.ascii(" beginningofpage=");
+    private static final byte[] pageFooter = XmlFields.ascii("\n</page>\n");
+    private static final byte[] idElement = XmlFields.ascii("id");
+    private static final byte[] timestampElement = XmlFields.ascii("timestamp");
+
+    private final PageRevisionKey outKey = new PageRevisionKey();
+    private final RevisionWritable outValue = new RevisionWritable();
+    private final DataOutputBuffer lastHeader = new DataOutputBuffer();
+    private final DataOutputBuffer lastRevision = new DataOutputBuffer();
+    private final DataOutputBuffer bufDelta = new DataOutputBuffer();
+    private final ByteDelta delta = new ByteDelta();
+    private long lastPageId = -1;
+    private boolean first = true;
+    private boolean deltas = true;
+    private int keyframeInterval = 64;
+    private int sinceKeyframe = 0;
+
+    @Override public void configure(JobConf job) {
+      this.deltas = job.getBoolean(KEY_DELTAS, true);
+      this.keyframeInterval = job.getInt(KEY_KEYFRAME_INTERVAL, 64);
+    }
+
+    public void map(Text key, Text value, OutputCollector<PageRevisionKey,RevisionWritable> collector, Reporter reporter) throws IOException {
+      byte[] data = key.getBytes();
+      int end = key.getLength();
+      if ( end >= pageFooter.length
+           && WritableComparator.compareBytes(data, end - pageFooter.length, pageFooter.length, pageFooter, 0, pageFooter.length) == 0 ) {
+        end -= pageFooter.length;
+      }
+      int headerEnd = XmlFields.indexOf(data, 0, end, revisionBegin);
+      if ( headerEnd < 0 ) {
+        return;
+      }
+      headerEnd += revisionBegin.length;
+      long pageId = XmlFields.longElement(data, 0, headerEnd, idElement);
+      int namespace = WikiPageRecord.namespace(data, 0, headerEnd);
+
+      // the first revision of a record is the previous one of the second, and so on
+      int prevFrom = -1;
+      int prevTo = -1;
+      int from = headerEnd;
+      while ( true ) {
+        int next = XmlFields.indexOf(data, from, end, revisionBegin);
+        int to = next < 0 ? end: next;
+        if ( prevFrom >= 0 ) {
+          this.emit(data, headerEnd, pageId, namespace, prevFrom, prevTo, from, to, collector);
+        }
+        prevFrom = from;
+        prevTo = to;
+        if ( next < 0 ) {
+          break;
+        }
+        from = next + revisionBegin.length;
+      }
+    }
+
+    private void emit(byte[] data, int headerEnd, long pageId, int namespace, int prevFrom, int prevTo, int from, int to,
+                      OutputCollector<PageRevisionKey,RevisionWritable> collector) throws IOException {
+      int flags = 0;
+      boolean samePage = !this.first && pageId == this.lastPageId;
+      boolean keyframe = this.keyframeInterval > 0 && this.sinceKeyframe >= this.keyframeInterval;
+      if ( !samePage || keyframe || !equal(this.lastHeader, data, 0, headerEnd) ) {
+        flags |= RevisionWritable.HEADER;
+      }
+      if ( XmlFields.indexOf(data, prevFrom, Math.min(prevTo, prevFrom + beginningAttribute.length), beginningAttribute) == prevFrom ) {
+        flags |= RevisionWritable.BEGINNING;
+      } else if ( !samePage || keyframe || !equal(this.lastRevision, data, prevFrom, prevTo) ) {
+        flags |= RevisionWritable.PREVIOUS;
+      }
+      if ( this.deltas && (flags & (RevisionWritable.BEGINNING | RevisionWritable.PREVIOUS)) == 0 ) {
+        // the previous revision is the last one written, against which a delta is tried
+        this.bufDelta.reset();
+        this.delta.encode(this.lastRevision.getData(), this.lastRevision.getLength(), data, from, to, this.bufDelta);
+        if ( this.bufDelta.getLength() < to - from ) {
+          flags |= RevisionWritable.DELTA;
+        }
+      }
+      this.outValue.reset(flags, WikiPageRecord.parseTimestamp(XmlFields.stringElement(data, from, to, timestampElement)), namespace);
+      if ( (flags & RevisionWritable.HEADER) != 0 ) {
+        this.outValue.getHeader().write(data, 0, headerEnd);
+        this.lastHeader.reset();
+        this.lastHeader.write(data, 0, headerEnd);
+      }
+      if ( (flags & RevisionWritable.PREVIOUS) != 0 ) {
+        this.outValue.getPrevious().write(data, prevFrom, prevTo - prevFrom);
+      }
+      if ( (flags & RevisionWritable.DELTA) != 0 ) {
+        this.outValue.getRevision().write(this.bufDelta.getData(), 0, this.bufDelta.getLength());
+      } else {
+        this.outValue.getRevision().write(data, from, to - from);
+      }
+      this.sinceKeyframe = this.outValue.isKeyframe() ? 0: this.sinceKeyframe + 1;
+      this.lastRevision.reset();
+      this.lastRevision.write(data, from, to - from);
+      this.lastPageId = pageId;
+      this.first = false;
+      this.outKey.set(pageId, XmlFields.longElement(data, from, to, idElement));
+      collector.collect(this.outKey, this.outValue);
+    }
+
+    private static boolean equal(DataOutputBuffer buf, byte[] data, int from, int to) {
+      return buf.getLength() == to - from
+        && WritableComparator.compareBytes(buf.getData(), 0, buf.getLength(), data, from, to - from) == 0;
+    }
+  }
+
+  public int run(String[] args) throws Exception {
+    if ( args.length < 2 ) {
+      System.err.println("usage: RevisionCacheTool OUTPUT DUMP...");
+      return 1;
+    }
+    JobConf job = new JobConf(getConf(), RevisionCacheTool.class);
+    job.setJobName("wikihadoop revision cache");
+    job.setInputFormat(StreamWikiDumpInputFormat.class);
+    for ( int i = 1; i < args.length; ++i ) {
+      FileInputFormat.addInputPath(job, new Path(args[i]));
+    }
+    job.setBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, true);
+    job.setMapperClass(CacheMapper.class);
+    job.setNumReduceTasks(0);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(PageRevisionKey.class);
+    job.setOutputValueClass(RevisionWritable.class);
+    FileOutputFormat.setOutputPath(job, new Path(args[0]));
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    JobClient.runJob(job);
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new RevisionCacheTool(), args));
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+/** A mapper writing the rows of the diffdb format (see fileformat.rst) from the page-like elements of {@link StreamWikiDumpInputFormat}.
+ * It gives the same rows as <code>python/revision_differ.py</code>, without passing the records through Hadoop Streaming and a Python interpreter.
+ * Every revision except the first one of a record is diffed against the one before it, so the input format needs to be used with <code>previousRevision=true</code> (the default); batched records are also accepted.
+ */
+public class RevisionDiffMapper extends MapReduceBase implements Mapper<Text, Text, Text, NullWritable> {
+  static final String KEY_DIFF_TIMEOUT = "org.wikimedia.wikihadoop.diffTimeout";
+
+  private RevisionDiffer differ;
+  private final Text row = new Text();
+
+  @Override public void configure(JobConf job) {
+    // the same as Diff_Timeout of diff_match_patch.py
+    this.differ = new RevisionDiffer(job.getLong(KEY_DIFF_TIMEOUT, 1000));
+  }
+
+  public void map(Text key, Text value, OutputCollector<Text, NullWritable> output, Reporter reporter) throws IOException {
+    WikiPageRecord page = WikiPageRecord.parse(key.getBytes(), key.getLength());
+    List<List<RevisionDiffer.Operation>> diffs = this.differ.diff(page);
+    for ( int i = 0; i < diffs.size(); ++i ) {
+      this.row.set(formatRow(page, page.revisions.get(i + 1), diffs.get(i)));
+      output.collect(this.row, NullWritable.get());
+      reporter.incrCounter(SkipBadRecords.COUNTER_GROUP, SkipBadRecords.COUNTER_MAP_PROCESSED_RECORDS, 1);
+    }
+  }
+
+  private static String formatRow(WikiPageRecord page, WikiPageRecord.Revision rev, List<RevisionDiffer.Operation> ops) {
+    StringBuilder buf = new StringBuilder();
+    buf.append(PyRepr.number(rev.id)).append('\t');
+    buf.append(PyRepr.number(page.pageId)).append('\t');
+    buf.append(page.namespace).append('\t');
+    buf.append(PyRepr.bytes(page.title)).append('\t');
+    buf.append(PyRepr.number(rev.timestamp)).append('\t');
+    buf.append(PyRepr.unicode(rev.comment)).append('\t');
+    buf.append(PyRepr.bool(rev.minor)).append('\t');
+    buf.append(PyRepr.number(rev.userId)).append('\t');
+    buf.append(PyRepr.unicode(rev.userName));
+    for ( RevisionDiffer.Operation op: ops ) {
+      buf.append('\t').append(op.position).append(':').append(op.action).append(':').append(PyRepr.unicode(op.content));
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.IOException;
+import java.util.*;
+
+/** Diffs the consecutive revisions of a page-like element by their tokens, as <code>python/revision_differ.py</code> does. */
+public class RevisionDiffer {
+  /** An insertion or a deletion, at a position in code points of the new text. */
+  public static class Operation {
+    public final long position;
+    public final int action;
+    public final String content;
+
+    Operation(long position, int action, String content) {
+      this.position = position;
+      this.action = action;
+      this.content = content;
+    }
+  }
+
+  private final TokenDiff differ;
+  private final Map<String,Integer> tokenIds = new HashMap<String,Integer>();
+  private final List<String> tokens = new ArrayList<String>();
+
+  public RevisionDiffer(long timeoutMs) {
+    this.differ = new TokenDiff(timeoutMs);
+  }
+
+  /** Returns the operations of every revision except the first one, against the revision before it. */
+  public List<List<Operation>> diff(WikiPageRecord page) throws IOException {
+    // token ids only need to be consistent within a record
+    this.tokenIds.clear();
+    this.tokens.clear();
+    List<List<Operation>> ret = new ArrayList<List<Operation>>();
+    int[] prev = null;
+    for ( WikiPageRecord.Revision rev: page.revisions ) {
+      int[] cur = this.intern(rev.getText());
+      if ( prev != null ) {
+        ret.add(this.operations(this.differ.diff(prev, cur)));
+      }
+      prev = cur;
+    }
+    return ret;
+  }
+
+  private List<Operation> operations(List<TokenDiff.Diff> diffs) {
+    List<Operation> ret = new ArrayList<Operation>();
+    long position = 0;
+    StringBuilder content = new StringBuilder();
+    for ( TokenDiff.Diff d: diffs ) {
+      content.setLength(0);
+      for ( int t: d.tokens ) {
+        content.append(this.tokens.get(t));
+      }
+      if ( d.op != TokenDiff.EQUAL ) {
+        ret.add(new Operation(position, d.op, content.toString()));
+      }
+      if ( d.op != TokenDiff.DELETE ) {
+        position += content.codePointCount(0, content.length());
+      }
+    }
+    return ret;
+  }
+
+  private int[] intern(String text) {
+    List<String> list = WikiTokenizer.tokenize(text);
+    int[] ret = new int[list.size()];
+    for ( int i = 0; i < ret.length; ++i ) {
+      String t = list.get(i);
+      Integer id = this.tokenIds.get(t);
+      if ( id == null ) {
+        id = this.tokens.size();
+        this.tokenIds.put(t, id);
+        this.tokens.add(t);
+      }
+      ret[i] = id;
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/** A revision with the fields of its page, as read by {@link RevisionRowInputFormat}.
+ * The fields are the columns of the revisions written by <code>RevisionParquetTool</code>.  Strings of the columns not read are null, and missing numbers are -1.
+ */
+public class RevisionRow implements Writable {
+  public long pageId;
+  public int namespace;
+  /** The title without the namespace prefix. */
+  public String title;
+  public long revId;
+  /** Seconds since the epoch. */
+  public long timestamp;
+  public String comment;
+  public boolean minor;
+  public long userId;
+  /** The user name, or the IP address of an anonymous user. */
+  public String userText;
+  /** The length of the text in UTF-8 bytes, as the <code>bytes</code> attribute of the dumps gives it. */
+  public long textLength;
+  public String text;
+
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVLong(out, this.pageId);
+    WritableUtils.writeVInt(out, this.namespace);
+    writeString(out, this.title);
+    WritableUtils.writeVLong(out, this.revId);
+    WritableUtils.writeVLong(out, this.timestamp);
+    writeString(out, this.comment);
+    out.writeBoolean(this.minor);
+    WritableUtils.writeVLong(out, this.userId);
+    writeString(out, this.userText);
+    WritableUtils.writeVLong(out, this.textLength);
+    writeString(out, this.text);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    this.pageId = WritableUtils.readVLong(in);
+    this.namespace = WritableUtils.readVInt(in);
+    this.title = readString(in);
+    this.revId = WritableUtils.readVLong(in);
+    this.timestamp = WritableUtils.readVLong(in);
+    this.comment = readString(in);
+    this.minor = in.readBoolean();
+    this.userId = WritableUtils.readVLong(in);
+    this.userText = readString(in);
+    this.textLength = WritableUtils.readVLong(in);
+    this.text = readString(in);
+  }
+
+  private static void writeString(DataOutput out, String str) throws IOException {
+    out.writeBoolean(str != null);
+    if ( str != null ) {
+      Text.writeString(out, str);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? Text.readString(in): null;
+  }
+
+  @Override public String toString() {
+    return this.pageId + "\t" + this.namespace + "\t" + this.title + "\t" + this.revId + "\t" + this.timestamp + "\t" + this.comment + "\t" + this.minor + "\t" + this.userId + "\t" + this.userText + "\t" + this.textLength + "\t" + this.text;
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/** Reads dumps into a {@link RevisionRow} for each revision, keyed by its page id and revision id, through the <code>org.apache.hadoop.mapreduce</code> API, as taken by <code>newAPIHadoopFile</code> of Spark.
+ * Splits are made by {@link WikiDumpInputFormat}, and the records of {@link StreamWikiDumpInputFormat} are parsed into rows as they are read.  Only the columns listed in <code>org.wikimedia.wikihadoop.columns</code> are filled, and when <code>text</code> is not among them, the record reader skips the text of revisions without copying it.  Page ids, namespaces and timestamps are filtered with the settings of {@link StreamWikiDumpInputFormat}, which also drop the splits without matching pages when block statistics and page offset indexes are given.
+ */
+public class RevisionRowInputFormat extends FileInputFormat<PageRevisionKey,RevisionRow> {
+  private static final String KEY_COLUMNS = "org.wikimedia.wikihadoop.columns";
+  /** The columns of rows, in the order of their fields. */
+  public static final List<String> COLUMNS = Collections.unmodifiableList(Arrays.asList
+    ("page_id", "namespace", "title", "rev_id", "timestamp", "comment", "minor", "user_id", "user_text", "text_length", "text"));
+
+  @Override public List<InputSplit> getSplits(JobContext context) throws IOException {
+    return new WikiDumpInputFormat().getSplits(context);
+  }
+
+  @Override public RecordReader<PageRevisionKey,RevisionRow> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    return new RowRecordReader();
+  }
+
+  /** Returns the columns to be read, or all of them when none are given. */
+  static Set<String> getColumns(JobConf job) {
+    String[] columns = job.getStrings(KEY_COLUMNS);
+    if ( columns == null ) {
+      return new HashSet<String>(COLUMNS);
+    }
+    Set<String> ret = new HashSet<String>();
+    for ( String c: columns ) {
+      c = c.trim();
+      if ( !COLUMNS.contains(c) ) {
+        throw new IllegalArgumentException("unknown column: " + KEY_COLUMNS + "=" + c);
+      }
+      ret.add(c);
+    }
+    return ret;
+  }
+
+  private static class RowRecordReader extends RecordReader<PageRevisionKey,RevisionRow> {
+    private org.apache.hadoop.mapred.RecordReader<Text,Text> reader;
+    private Set<String> columns;
+    private final Text record = new Text();
+    private final Text empty = new Text();
+    private final PageRevisionKey key = new PageRevisionKey();
+    private final RevisionRow row = new RevisionRow();
+    private WikiPageRecord page;
+    private final LinkedList<WikiPageRecord.Revision> revisions = new LinkedList<WikiPageRecord.Revision>();
+
+    @Override public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      JobConf job = new JobConf(context.getConfiguration());
+      this.columns = getColumns(job);
+      // one row is made of each revision, so the previous revisions are not needed
+      job.setBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, false);
+      if ( !this.columns.contains("text") ) {
+        job.setBoolean(StreamWikiDumpInputFormat.KEY_SKIP_TEXT, true);
+      }
+      StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+      format.configure(job);
+      FileSplit fileSplit = (FileSplit)split;
+      this.reader = format.getRecordReader(fileSplit, job, new WikiDumpInputFormat.ContextReporter(context, fileSplit));
+    }
+
+    @Override public boolean nextKeyValue() throws IOException {
+      while ( this.revisions.isEmpty() ) {
+        if ( !this.reader.next(this.record, this.empty) ) {
+          return false;
+        }
+        this.page = WikiPageRecord.parse(this.record.getBytes(), this.record.getLength());
+        for ( WikiPageRecord.Revision rev: this.page.revisions ) {
+          if ( !rev.beginningOfPage ) {
+            this.revisions.add(rev);
+          }
+        }
+      }
+      WikiPageRecord.Revision rev = this.revisions.removeFirst();
+      RevisionRow r = this.row;
+      r.pageId = this.page.pageId;
+      r.namespace = this.page.namespace;
+      r.title = this.columns.contains("title") ? this.page.title: null;
+      r.revId = rev.id;
+      r.timestamp = rev.timestamp;
+      r.comment = this.columns.contains("comment") ? rev.comment: null;
+      r.minor = rev.minor;
+      r.userId = rev.userId;
+      r.userText = this.columns.contains("user_text") ? rev.userName: null;
+      r.textLength = rev.getTextBytes();
+      r.text = this.columns.contains("text") ? rev.getText(): null;
+      this.key.set(r.pageId, r.revId);
+      return true;
+    }
+
+    @Override public PageRevisionKey getCurrentKey() {
+      return this.key;
+    }
+
+    @Override public RevisionRow getCurrentValue() {
+      return this.row;
+    }
+
+    @Override public float getProgress() throws IOException {
+      return this.reader.getProgress();
+    }
+
+    @Override public void close() throws IOException {
+      if ( this.reader != null ) {
+        this.reader.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/** A revision as stored by {@link RevisionCacheTool}: its timestamp and namespace, and the bytes of the page-like element it came from.
+ * The page header and the previous revision are stored only when they differ from those of the record before, which {@link WikiRevisionSequenceFileInputFormat} remembers.  The revision bytes are those following <code>&lt;revision</code>, as in the records of {@link StreamWikiDumpInputFormat}, or a {@link ByteDelta} against the previous revision.
+ * A keyframe stores all of them in full, so that reading can start from it.
+ */
+public class RevisionWritable implements Writable {
+  /** The page header is stored. */
+  public static final int HEADER = 1;
+  /** The previous revision is stored. */
+  public static final int PREVIOUS = 2;
+  /** The revision is the first one of its page. */
+  public static final int BEGINNING = 4;
+  /** The revision is stored as a delta against the previous one. */
+  public static final int DELTA = 8;
+
+  private int flags;
+  private long timestamp;
+  private int namespace;
+  private final DataOutputBuffer header = new DataOutputBuffer();
+  private final DataOutputBuffer previous = new DataOutputBuffer();
+  private final DataOutputBuffer revision = new DataOutputBuffer();
+
+  public int getFlags() {
+    return this.flags;
+  }
+
+  public boolean has(int flag) {
+    return (this.flags & flag) != 0;
+  }
+
+  /** Tells if the record can be read without the records before it. */
+  public boolean isKeyframe() {
+    return this.has(HEADER) && (this.has(BEGINNING) || this.has(PREVIOUS)) && !this.has(DELTA);
+  }
+
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  public int getNamespace() {
+    return this.namespace;
+  }
+
+  public DataOutputBuffer getHeader() {
+    return this.header;
+  }
+
+  public DataOutputBuffer getPrevious() {
+    return this.previous;
+  }
+
+  public DataOutputBuffer getRevision() {
+    return this.revision;
+  }
+
+  /** Clears the value and sets its fields.  The bytes are to be written into the buffers afterwards. */
+  public void reset(int flags, long timestamp, int namespace) {
+    this.flags = flags;
+    this.timestamp = timestamp;
+    this.namespace = namespace;
+    this.header.reset();
+    this.previous.reset();
+    this.revision.reset();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(this.flags);
+    WritableUtils.writeVLong(out, this.timestamp);
+    WritableUtils.writeVInt(out, this.namespace);
+    if ( this.has(HEADER) ) {
+      writeBuffer(out, this.header);
+    }
+    if ( this.has(PREVIOUS) ) {
+      writeBuffer(out, this.previous);
+    }
+    writeBuffer(out, this.revision);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    this.reset(in.readByte(), WritableUtils.readVLong(in), WritableUtils.readVInt(in));
+    if ( this.has(HEADER) ) {
+      readBuffer(in, this.header);
+    }
+    if ( this.has(PREVIOUS) ) {
+      readBuffer(in, this.previous);
+    }
+    readBuffer(in, this.revision);
+  }
+
+  private static void writeBuffer(DataOutput out, DataOutputBuffer buf) throws IOException {
+    WritableUtils.writeVInt(out, buf.getLength());
+    out.write(buf.getData(), 0, buf.getLength());
+  }
+
+  private static void readBuffer(DataInput in, DataOutputBuffer buf) throws IOException {
+    buf.write(in, WritableUtils.readVInt(in));
+  }
+}
@@ -18,7 +18,10 @@ package org.wikimedia.wikihadoop;
 
 import java.io.*;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.Seekable;
@@ -27,55 +30,122 @@ import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.io.compress.*;
 
 public class SeekableInputStream extends FilterInputStream implements Seekable {
+  private static final String KEY_MMAP = "org.wikimedia.wikihadoop.mmap";
+  private static final String KEY_BUFFER_SIZE = "org.wikimedia.wikihadoop.bufferSize";
   private final Seekable seek;
   private final SplitCompressionInputStream sin;
+  private final boolean compressed;
+  private Decompressor decompressor;
   public SeekableInputStream(FSDataInputStream in) {
     super(in);
     this.seek = in;
     this.sin = null;
+    this.compressed = false;
+  }
+  public SeekableInputStream(ByteBufferInputStream in) {
+    super(in);
+    this.seek = in;
+    this.sin = null;
+    this.compressed = false;
   }
   public SeekableInputStream(SplitCompressionInputStream cin) {
     super(cin);
     this.seek = cin;
     this.sin = cin;
+    this.compressed = true;
   }
   public SeekableInputStream(CompressionInputStream cin, FSDataInputStream in) {
     super(cin);
     this.seek = in;
     this.sin = null;
+    this.compressed = true;
   }
   public static SeekableInputStream getInstance(Path path, long start, long end, FileSystem fs, CompressionCodecFactory compressionCodecs) throws IOException {
+    return getInstance(path, start, end, fs, compressionCodecs, fs.getConf());
+  }
+  public static SeekableInputStream getInstance(Path path, long start, long end, FileSystem fs, CompressionCodecFactory compressionCodecs, Configuration conf) throws IOException {
+    return getInstance(path, start, end, fs, compressionCodecs, conf, null);
+  }
+  /** Opens a stream from start, reading the file through din when it is given, or else through a stream opened for it.
+   * The decompressor taken from the pool is returned to it when the stream is closed.
+   */
+  static SeekableInputStream getInstance(Path path, long start, long end, FileSystem fs, CompressionCodecFactory compressionCodecs, Configuration conf, FSDataInputStream din) throws IOException {
     CompressionCodec codec = compressionCodecs.getCodec(path);
-    FSDataInputStream din = fs.open(path);
-    if (codec != null) {
-      Decompressor decompressor = CodecPool.getDecompressor(codec);
-      if (codec instanceof SplittableCompressionCodec) {
-        SplittableCompressionCodec scodec = (SplittableCompressionCodec)codec;
-        SplitCompressionInputStream cin = scodec.createInputStream
-          (din, decompressor, start, end,
-           SplittableCompressionCodec.READ_MODE.BYBLOCK);
-        return new SeekableInputStream(cin);
+    if (codec == null) {
+      // non compression input stream
+      // we seek to the start of the split, and the matcher scans the buffer of the stream
+      ByteBufferInputStream bin;
+      if ( isMapped(path, fs, compressionCodecs, conf) ) {
+        bin = new ByteBufferInputStream(localFile(fs, path));
       } else {
-        // non-splittable compression input stream
-        // no seeking or offsetting is needed
-        assert start == 0;
-        CompressionInputStream cin = codec.createInputStream(din, decompressor);
-        return new SeekableInputStream(cin, din);
+        bin = new ByteBufferInputStream(din != null ? din: fs.open(path), conf == null ? 1 << 16: conf.getInt(KEY_BUFFER_SIZE, 1 << 16));
       }
+      bin.seek(start);
+      return new SeekableInputStream(bin);
+    }
+    if ( din == null ) {
+      din = fs.open(path);
+    }
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    SeekableInputStream ret;
+    if (codec instanceof SplittableCompressionCodec) {
+      SplittableCompressionCodec scodec = (SplittableCompressionCodec)codec;
+      SplitCompressionInputStream cin = scodec.createInputStream
+        (din, decompressor, start, end,
+         SplittableCompressionCodec.READ_MODE.BYBLOCK);
+      ret = new SeekableInputStream(cin);
     } else {
-      // non compression input stream
-      // we seek to the start of the split
-      din.seek(start);
-      return new SeekableInputStream(din);
+      // non-splittable compression input stream
+      // no offsetting is needed, but a reused stream may be anywhere
+      assert start == 0;
+      din.seek(0);
+      CompressionInputStream cin = codec.createInputStream(din, decompressor);
+      ret = new SeekableInputStream(cin, din);
+    }
+    ret.decompressor = decompressor;
+    return ret;
+  }
+  /** Tells if the file is read through memory mappings rather than through a stream of the file system.
+   * Mappings bypass the checksums of {@link LocalFileSystem}, so a file of it is mapped only when it has no checksum file to verify.
+   */
+  static boolean isMapped(Path path, FileSystem fs, CompressionCodecFactory compressionCodecs, Configuration conf) throws IOException {
+    if ( compressionCodecs.getCodec(path) != null || localFile(fs, path) == null || (conf != null && !conf.getBoolean(KEY_MMAP, true)) ) {
+      return false;
+    }
+    return !(fs instanceof LocalFileSystem) || !fs.exists(((LocalFileSystem)fs).getChecksumFile(path));
+  }
+  /** Returns the file of a path of the local file system, or null for other file systems. */
+  private static File localFile(FileSystem fs, Path path) {
+    if ( fs instanceof LocalFileSystem ) {
+      return ((LocalFileSystem)fs).pathToFile(path);
+    } else if ( fs instanceof RawLocalFileSystem ) {
+      return ((RawLocalFileSystem)fs).pathToFile(path);
     }
+    return null;
   }
   public static SeekableInputStream getInstance(FileSplit split, FileSystem fs, CompressionCodecFactory compressionCodecs) throws IOException {
     return getInstance(split.getPath(), split.getStart(), split.getStart() + split.getLength(), fs, compressionCodecs);
   }
+  public static SeekableInputStream getInstance(FileSplit split, FileSystem fs, CompressionCodecFactory compressionCodecs, Configuration conf) throws IOException {
+    return getInstance(split.getPath(), split.getStart(), split.getStart() + split.getLength(), fs, compressionCodecs, conf);
+  }
   public SplitCompressionInputStream getSplitCompressionInputStream() { return this.sin; }
+  /** Returns the underlying stream when it can be scanned through its buffer, or null. */
+  public ByteBufferInputStream getByteBufferInputStream() { return this.in instanceof ByteBufferInputStream ? (ByteBufferInputStream)this.in: null; }
+  public boolean isCompressed() { return this.compressed; }
   public long getPos() throws IOException { return this.seek.getPos(); }
   public void seek(long pos) throws IOException { this.seek.seek(pos); } 
   public boolean seekToNewSource(long targetPos) throws IOException { return this.seek.seekToNewSource(targetPos); }
+  @Override public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if ( this.decompressor != null ) {
+        CodecPool.returnDecompressor(this.decompressor);
+        this.decompressor = null;
+      }
+    }
+  }
   @Override public String toString() {
     return this.in.toString();
   }
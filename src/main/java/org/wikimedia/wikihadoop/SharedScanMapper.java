@@ -0,0 +1,179 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/** A mapper passing each record of {@link StreamWikiDumpInputFormat} to several consumers, so that several analyses of a dump share one pass of decompressing and scanning it.
+ * A consumer is a mapper of its own, whose output goes to the named output of the same name (see {@link MultipleOutputs}).  Consumers are added with {@link #addConsumer}, and configured with the settings of the job overridden by the ones prefixed with <code>org.wikimedia.wikihadoop.consumer.NAME.</code>; a suffix without dots stands for a setting of wikihadoop, such as <code>org.wikimedia.wikihadoop.consumer.NAME.namespaces</code> for <code>org.wikimedia.wikihadoop.namespaces</code>.
+ * Of the settings of a consumer, <code>namespaces</code>, <code>minPageId</code>, <code>maxPageId</code>, <code>minTimestamp</code> and <code>maxTimestamp</code> select the records given to it, by the page and by the timestamp of the last revision in the record, and <code>skipText</code> empties the texts of the revisions given to it.
+ */
+public class SharedScanMapper extends MapReduceBase implements Mapper<Text, Text, NullWritable, NullWritable> {
+  private static final String KEY_CONSUMERS = "org.wikimedia.wikihadoop.consumers";
+  private static final String CONSUMER_PREFIX = "org.wikimedia.wikihadoop.consumer.";
+  private static final String WIKIHADOOP_PREFIX = "org.wikimedia.wikihadoop.";
+  private static final String COUNTER_GROUP = "SharedScanMapper";
+
+  private static final byte[] revisionElement  = XmlFields.ascii("revision");
+  private static final byte[] idElement        = XmlFields.ascii("id");
+  private static final byte[] timestampElement = XmlFields.ascii("timestamp");
+  private static final byte[] textElement      = XmlFields.ascii("text");
+
+  private static class Consumer {
+    String name;
+    Mapper mapper;
+    BlockStats.Filter filter;
+    boolean skipText;
+  }
+
+  private final List<Consumer> consumers = new ArrayList<Consumer>();
+  private MultipleOutputs outputs;
+  private final Text projected = new Text();
+
+  /** Adds a consumer writing keys and values of the given classes with the output format. */
+  public static void addConsumer(JobConf job, String name, Class<? extends Mapper> mapper, Class<? extends OutputFormat> outputFormat, Class<?> keyClass, Class<?> valueClass) {
+    String names = job.get(KEY_CONSUMERS);
+    job.set(KEY_CONSUMERS, names == null || names.length() == 0 ? name: names + "," + name);
+    job.setClass(CONSUMER_PREFIX + name + ".mapper", mapper, Mapper.class);
+    MultipleOutputs.addNamedOutput(job, name, outputFormat, keyClass, valueClass);
+  }
+
+  /** Returns the settings of the job with the ones of the consumer put in place. */
+  static JobConf getConsumerConf(JobConf job, String name) {
+    JobConf ret = new JobConf(job);
+    String prefix = CONSUMER_PREFIX + name + ".";
+    for ( Map.Entry<String,String> e: job ) {
+      if ( e.getKey().startsWith(prefix) ) {
+        String key = e.getKey().substring(prefix.length());
+        ret.set(key.indexOf('.') < 0 ? WIKIHADOOP_PREFIX + key: key, e.getValue());
+      }
+    }
+    return ret;
+  }
+
+  @Override public void configure(JobConf job) {
+    String[] names = job.getStrings(KEY_CONSUMERS);
+    if ( names == null ) {
+      throw new IllegalArgumentException("no consumers are given in " + KEY_CONSUMERS);
+    }
+    for ( String name: names ) {
+      JobConf conf = getConsumerConf(job, name.trim());
+      Consumer c = new Consumer();
+      c.name = name.trim();
+      Class<? extends Mapper> cls = conf.getClass(WIKIHADOOP_PREFIX + "mapper", null, Mapper.class);
+      if ( cls == null ) {
+        throw new IllegalArgumentException("no mapper is given for the consumer " + c.name);
+      }
+      c.mapper = ReflectionUtils.newInstance(cls, conf);
+      c.filter = StreamWikiDumpInputFormat.getFilter(conf);
+      c.skipText = conf.getBoolean(StreamWikiDumpInputFormat.KEY_SKIP_TEXT, false);
+      this.consumers.add(c);
+    }
+    this.outputs = new MultipleOutputs(job);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void map(Text key, Text value, OutputCollector<NullWritable, NullWritable> output, Reporter reporter) throws IOException {
+    byte[] data = key.getBytes();
+    int length = key.getLength();
+    int[] first = XmlFields.element(data, 0, length, revisionElement);
+    int headerEnd = first == null ? length: first[XmlFields.TAG_START];
+    long pageId = -2;
+    int namespace = Integer.MIN_VALUE;
+    long timestamp = -2;
+    for ( Consumer c: this.consumers ) {
+      BlockStats.Filter f = c.filter;
+      if ( f != null ) {
+        // the fields are parsed only once, when the first consumer needs them
+        if ( f.hasPageIds() ) {
+          if ( pageId == -2 ) {
+            pageId = XmlFields.longElement(data, 0, headerEnd, idElement);
+          }
+          if ( !f.matchesPageId(pageId) ) {
+            continue;
+          }
+        }
+        if ( f.namespaces != null ) {
+          if ( namespace == Integer.MIN_VALUE ) {
+            namespace = WikiPageRecord.namespace(data, 0, headerEnd);
+          }
+          if ( !f.matchesNamespace(namespace) ) {
+            continue;
+          }
+        }
+        if ( f.minTimestamp != Long.MIN_VALUE || f.maxTimestamp != Long.MAX_VALUE ) {
+          if ( timestamp == -2 ) {
+            timestamp = lastTimestamp(data, headerEnd, length);
+          }
+          if ( !f.matchesTimestamp(timestamp) ) {
+            continue;
+          }
+        }
+      }
+      Text record = key;
+      if ( c.skipText ) {
+        withoutText(data, length, this.projected);
+        record = this.projected;
+      }
+      c.mapper.map(record, value, this.outputs.getCollector(c.name, reporter), reporter);
+      reporter.incrCounter(COUNTER_GROUP, c.name, 1);
+    }
+  }
+
+  /** Returns the timestamp of the last revision in data[from, to), or -1. */
+  private static long lastTimestamp(byte[] data, int from, int to) {
+    int[] last = null;
+    int[] e;
+    while ( (e = XmlFields.element(data, from, to, revisionElement)) != null ) {
+      last = e;
+      from = e[XmlFields.ELEMENT_END];
+    }
+    if ( last == null ) {
+      return -1;
+    }
+    return WikiPageRecord.parseTimestamp(XmlFields.stringElement(data, last[XmlFields.CONTENT_START], last[XmlFields.CONTENT_END], timestampElement));
+  }
+
+  /** Sets ret to data[0, length) with the contents of the text elements removed. */
+  static void withoutText(byte[] data, int length, Text ret) {
+    ret.clear();
+    int pos = 0;
+    int[] e;
+    while ( (e = XmlFields.element(data, pos, length, textElement)) != null ) {
+      ret.append(data, pos, e[XmlFields.CONTENT_START] - pos);
+      pos = e[XmlFields.CONTENT_END];
+    }
+    ret.append(data, pos, length - pos);
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      for ( Consumer c: this.consumers ) {
+        c.mapper.close();
+      }
+    } finally {
+      this.outputs.close();
+    }
+  }
+}
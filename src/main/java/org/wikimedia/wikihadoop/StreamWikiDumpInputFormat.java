@@ -18,11 +18,17 @@ package org.wikimedia.wikihadoop;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -31,6 +37,7 @@ import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobConf;
@@ -122,8 +129,37 @@ import java.util.regex.*;
 public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
 
   private static final String KEY_EXCLUDE_PAGE_PATTERN = "org.wikimedia.wikihadoop.excludePagesWith";
-  private static final String KEY_PREVIOUS_REVISION    = "org.wikimedia.wikihadoop.previousRevision";
+  static final String KEY_PREVIOUS_REVISION            = "org.wikimedia.wikihadoop.previousRevision";
   private static final String KEY_SKIP_FACTOR          = "org.wikimedia.wikihadoop.skipFactor";
+  private static final String KEY_TAG_IDENTITY_REVERTS = "org.wikimedia.wikihadoop.tagIdentityReverts";
+  private static final String KEY_ELIDE_DUPLICATE_TEXT = "org.wikimedia.wikihadoop.elideDuplicateText";
+  private static final String KEY_BATCH_REVISIONS      = "org.wikimedia.wikihadoop.batchRevisions";
+  private static final String KEY_BATCH_BYTES          = "org.wikimedia.wikihadoop.batchBytes";
+  private static final String KEY_READ_AHEAD_BLOCKS    = "org.wikimedia.wikihadoop.readAheadBlocks";
+  private static final String KEY_READ_AHEAD_BLOCKSIZE = "org.wikimedia.wikihadoop.readAheadBlockSize";
+  private static final String KEY_PARSE_THREADS        = "org.wikimedia.wikihadoop.parseThreads";
+  private static final String KEY_PARSE_WINDOW         = "org.wikimedia.wikihadoop.parseWindow";
+  private static final String KEY_TOKENIZE_TEXT        = "org.wikimedia.wikihadoop.tokenizeText";
+  private static final String KEY_BLOCK_STATS          = "org.wikimedia.wikihadoop.blockStats";
+  private static final String KEY_MIN_TIMESTAMP        = "org.wikimedia.wikihadoop.minTimestamp";
+  private static final String KEY_MAX_TIMESTAMP        = "org.wikimedia.wikihadoop.maxTimestamp";
+  private static final String KEY_NAMESPACES           = "org.wikimedia.wikihadoop.namespaces";
+  private static final String KEY_WATERMARKS           = "org.wikimedia.wikihadoop.watermarks";
+  private static final String KEY_WATERMARK_OUTPUT     = "org.wikimedia.wikihadoop.watermarkOutput";
+  private static final String KEY_PAGE_RANGE_SIZE      = "org.wikimedia.wikihadoop.pageRangeSize";
+  private static final String KEY_SPLIT_MIN_PAGE_ID    = "org.wikimedia.wikihadoop.splitMinPageId";
+  private static final String KEY_SPLIT_MAX_PAGE_ID    = "org.wikimedia.wikihadoop.splitMaxPageId";
+  private static final String KEY_SAMPLE_RATE          = "org.wikimedia.wikihadoop.sampleRate";
+  private static final String KEY_SAMPLE_SEED          = "org.wikimedia.wikihadoop.sampleSeed";
+  private static final String KEY_AGGREGATE            = "org.wikimedia.wikihadoop.aggregate";
+  private static final String KEY_AGGREGATE_ENTRIES    = "org.wikimedia.wikihadoop.aggregateEntries";
+  static final String KEY_SKIP_TEXT                    = "org.wikimedia.wikihadoop.skipText";
+  private static final String KEY_MIN_PAGE_ID          = "org.wikimedia.wikihadoop.minPageId";
+  private static final String KEY_MAX_PAGE_ID          = "org.wikimedia.wikihadoop.maxPageId";
+  private static final String KEY_PAGE_ELEMENT         = "org.wikimedia.wikihadoop.pageElement";
+  private static final String KEY_REVISION_ELEMENT     = "org.wikimedia.wikihadoop.revisionElement";
+  private static final String KEY_COMPRESS_TEXT        = "org.wikimedia.wikihadoop.compressText";
+  private static final String KEY_HEARTBEAT_BYTES      = "org.wikimedia.wikihadoop.heartbeatBytes";
   private CompressionCodecFactory compressionCodecs = null;
    
   public void configure(JobConf conf) {
@@ -159,6 +195,10 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     }
     long minSize = job.getLong(org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MINSIZE, 1);
     long goalSize = totalSize / (numSplits == 0 ? 1 : numSplits);
+    BlockStats.Filter filter = getFilter(job);
+    String statsDir = job.get(KEY_BLOCK_STATS);
+    long rangeSize = job.getLong(KEY_PAGE_RANGE_SIZE, 0);
+    PageSample sample = getSample(job);
     for (FileStatus file: files) {
       if (file.isDirectory()) {
         throw new IOException("Not a file: "+ file.getPath());
@@ -167,8 +207,36 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
       long splitSize = computeSplitSize(goalSize, minSize, blockSize);
       LOG.info(String.format("goalsize=%d splitsize=%d blocksize=%d", goalSize, splitSize, blockSize));
       //System.err.println(String.format("goalsize=%d splitsize=%d blocksize=%d", goalSize, splitSize, blockSize));
-      for (InputSplit x: getSplits(job, file, pageBeginPattern, splitSize) ) 
+      BlockStats stats = null;
+      if ( filter != null && statsDir != null ) {
+        stats = BlockStats.forFile(file.getPath().getFileSystem(job), new Path(statsDir), file.getPath(), file.getLen());
+      }
+      long[] sampled = null;
+      if ( (sample != null || (filter != null && filter.hasPageIds())) && statsDir != null ) {
+        PageOffsetIndex index = PageOffsetIndex.forFile(file.getPath().getFileSystem(job), new Path(statsDir), file.getPath(), file.getLen());
+        if ( index != null ) {
+          sampled = sampledOffsets(index, sample, filter);
+        }
+      }
+      // the indexed offsets of compressed dumps precede the pages by up to a few blocks
+      long before = this.compressionCodecs.getCodec(file.getPath()) != null ? 3 * STATS_MARGIN: 0;
+      long after  = this.compressionCodecs.getCodec(file.getPath()) != null ? STATS_MARGIN: 0;
+      List<InputSplit> fileSplits = getSplits(job, file, pageBegin(job), splitSize);
+      if ( rangeSize > 0 ) {
+        fileSplits = alignToPageRanges(job, file, fileSplits, rangeSize);
+      }
+      for (InputSplit x: fileSplits ) {
+        FileSplit fx = (FileSplit)x;
+        if ( stats != null && !stats.mayMatch(fx.getStart(), fx.getStart() + fx.getLength(), STATS_MARGIN, filter) ) {
+          LOG.info("no page can match in " + x);
+          continue;
+        }
+        if ( sampled != null && !anyOffset(sampled, fx.getStart() - before, fx.getStart() + fx.getLength() + after) ) {
+          LOG.info("no sampled or selected page in " + x);
+          continue;
+        }
         splits.add(x);
+      }
     }
     System.err.println("splits="+splits);
     return splits.toArray(new InputSplit[splits.size()]);
@@ -181,6 +249,7 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
   }
 
   public List<InputSplit> getSplits(JobConf job, FileStatus file, String pattern, long splitSize) throws IOException {
+    String pageEndPattern = pageEnd(job);
     NetworkTopology clusterMap = new NetworkTopology();
     List<InputSplit> splits = new ArrayList<InputSplit>();
     Path path = file.getPath();
@@ -188,80 +257,84 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     FileSystem fs = file.getPath().getFileSystem(job);
     BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0, length);
     if ((length != 0) && isSplitable(fs, path)) { 
+      DumpStreamFactory streams = new DumpStreamFactory(fs, this.compressionCodecs, job);
+      try {
       
-      long bytesRemaining = length;
-      SeekableInputStream in = SeekableInputStream.getInstance
-        (path, 0, length, fs, this.compressionCodecs);
-      SplitCompressionInputStream is = in.getSplitCompressionInputStream();
-      long start = 0;
-      long skip = 0;
-      if ( is != null ) {
-        start = is.getAdjustedStart();
-        length = is.getAdjustedEnd();
-        is.close();
-        in = null;
-      }
-      LOG.info("locations=" + Arrays.asList(blkLocations));
-      FileSplit split = null;
-      Set<Long> processedPageEnds = new HashSet<Long>();
-      float factor = job.getFloat(KEY_SKIP_FACTOR, 1.2F);
-
-      READLOOP:
-      while (((double) bytesRemaining)/splitSize > factor  &&  bytesRemaining > 0) {
-        // prepare matcher
-        ByteMatcher matcher;
-        {
-          long st = Math.min(start + skip + splitSize, length - 1);
-          split = makeSplit(path,
-                            st,
-                            Math.min(splitSize, length - st),
-                            clusterMap, blkLocations);
-          System.err.println("split move to: " + split);
-          if ( in != null )
-            in.close();
-          if ( split.getLength() <= 1 ) {
-            break;
+        long bytesRemaining = length;
+        SeekableInputStream in = streams.open(path, 0, length);
+        SplitCompressionInputStream is = in.getSplitCompressionInputStream();
+        long start = 0;
+        long skip = 0;
+        if ( is != null ) {
+          start = is.getAdjustedStart();
+          length = is.getAdjustedEnd();
+          in.close();
+          in = null;
+        }
+        LOG.info("locations=" + Arrays.asList(blkLocations));
+        FileSplit split = null;
+        Set<Long> processedPageEnds = new HashSet<Long>();
+        float factor = job.getFloat(KEY_SKIP_FACTOR, 1.2F);
+
+        READLOOP:
+        while (((double) bytesRemaining)/splitSize > factor  &&  bytesRemaining > 0) {
+          // prepare matcher
+          ByteMatcher matcher;
+          {
+            long st = Math.min(start + skip + splitSize, length - 1);
+            split = makeSplit(path,
+                              st,
+                              Math.min(splitSize, length - st),
+                              clusterMap, blkLocations);
+            System.err.println("split move to: " + split);
+            if ( in != null )
+              in.close();
+            if ( split.getLength() <= 1 ) {
+              break;
+            }
+            in = streams.open(split);
+            SplitCompressionInputStream cin = in.getSplitCompressionInputStream();
+          }
+          matcher = new ByteMatcher(in);
+
+          // read until the next page end in the look-ahead split
+          boolean reach = false;
+          while ( !matcher.readUntilMatch(pageEndPattern, null, split.getStart() + split.getLength()) ) {
+            if (matcher.getPos() >= length  ||  split.getLength() == length - split.getStart())
+              break READLOOP;
+            reach = false;
+            split = makeSplit(path,
+                              split.getStart(),
+                              Math.min(split.getLength() + splitSize, length - split.getStart()),
+                              clusterMap, blkLocations);
+            System.err.println("split extend to: " + split);
+          }
+          System.err.println(path + ": #" + splits.size() + " " + pageEndPattern + " found: pos=" + matcher.getPos() + " last=" + matcher.getLastUnmatchPos() + " read=" + matcher.getReadBytes() + " current=" + start + " remaining=" + bytesRemaining + " split=" + split);
+          if ( matcher.getLastUnmatchPos() > 0
+               &&  matcher.getPos() > matcher.getLastUnmatchPos()
+               &&  !processedPageEnds.contains(matcher.getPos()) ) {
+            splits.add(makeSplit(path, start, matcher.getPos() - start, clusterMap, blkLocations));
+            processedPageEnds.add(matcher.getPos());
+            long newstart = Math.max(matcher.getLastUnmatchPos(), start);
+            bytesRemaining = length - newstart;
+            start = newstart;
+            skip = 0;
+          } else {
+            skip = matcher.getPos() - start;
           }
-          in = SeekableInputStream.getInstance(split,
-                                               fs, this.compressionCodecs);
-          SplitCompressionInputStream cin = in.getSplitCompressionInputStream();
-        }
-        matcher = new ByteMatcher(in);
-
-        // read until the next page end in the look-ahead split
-        boolean reach = false;
-        while ( !matcher.readUntilMatch(pageEndPattern, null, split.getStart() + split.getLength()) ) {
-          if (matcher.getPos() >= length  ||  split.getLength() == length - split.getStart())
-            break READLOOP;
-          reach = false;
-          split = makeSplit(path,
-                            split.getStart(),
-                            Math.min(split.getLength() + splitSize, length - split.getStart()),
-                            clusterMap, blkLocations);
-          System.err.println("split extend to: " + split);
-        }
-        System.err.println(path + ": #" + splits.size() + " " + pageEndPattern + " found: pos=" + matcher.getPos() + " last=" + matcher.getLastUnmatchPos() + " read=" + matcher.getReadBytes() + " current=" + start + " remaining=" + bytesRemaining + " split=" + split);
-        if ( matcher.getLastUnmatchPos() > 0
-             &&  matcher.getPos() > matcher.getLastUnmatchPos()
-             &&  !processedPageEnds.contains(matcher.getPos()) ) {
-          splits.add(makeSplit(path, start, matcher.getPos() - start, clusterMap, blkLocations));
-          processedPageEnds.add(matcher.getPos());
-          long newstart = Math.max(matcher.getLastUnmatchPos(), start);
-          bytesRemaining = length - newstart;
-          start = newstart;
-          skip = 0;
-        } else {
-          skip = matcher.getPos() - start;
         }
-      }
       
-      if (bytesRemaining > 0 && !processedPageEnds.contains(length)) {
-        System.err.println(pageEndPattern + " remaining: pos=" + (length-bytesRemaining) + " end=" + length);
-        splits.add(makeSplit(path, length-bytesRemaining, bytesRemaining, 
-                             blkLocations[blkLocations.length-1].getHosts()));
+        if (bytesRemaining > 0 && !processedPageEnds.contains(length)) {
+          System.err.println(pageEndPattern + " remaining: pos=" + (length-bytesRemaining) + " end=" + length);
+          splits.add(makeSplit(path, length-bytesRemaining, bytesRemaining, 
+                               blkLocations[blkLocations.length-1].getHosts()));
+        }
+        if ( in != null )
+          in.close();
+      } finally {
+        streams.close();
+        LOG.info("opened " + path + " " + streams.getOpens() + " times and reused it " + streams.getReuses() + " times for planning splits");
       }
-      if ( in != null )
-        in.close();
     } else if (length != 0) {
       splits.add(makeSplit(path, 0, length, clusterMap, blkLocations));
     } else { 
@@ -271,12 +344,93 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     return splits;
   }
 
+  /** Regroups the splits of a file so that each of them reads the pages of whole ranges of rangeSize page ids.
+   * A group of consecutive splits whose first pages fall in the same range reads from the last split of the group before it, which may hold the first pages of the range, and its reader skips the pages out of the ids of the group.  This relies on the pages being sorted by id, as they are in the dumps.
+   */
+  private List<InputSplit> alignToPageRanges(JobConf job, FileStatus file, List<InputSplit> splits, long rangeSize) throws IOException {
+    FileSystem fs = file.getPath().getFileSystem(job);
+    List<FileSplit> base = new ArrayList<FileSplit>();
+    List<Long> firstIds = new ArrayList<Long>();
+    DumpStreamFactory streams = new DumpStreamFactory(fs, this.compressionCodecs, job);
+    try {
+      for ( InputSplit x: splits ) {
+        FileSplit fx = (FileSplit)x;
+        long id = firstPageId(fx, streams, job);
+        if ( id < 0 ) {
+          // no page begins in it
+          continue;
+        }
+        if ( !firstIds.isEmpty() && id < firstIds.get(firstIds.size() - 1) ) {
+          throw new IOException("page ids are not sorted in " + file.getPath() + ": " + id + " after " + firstIds.get(firstIds.size() - 1));
+        }
+        base.add(fx);
+        firstIds.add(id);
+      }
+    } finally {
+      streams.close();
+    }
+    List<InputSplit> ret = new ArrayList<InputSplit>();
+    int i = 0;
+    while ( i < base.size() ) {
+      long range = firstIds.get(i) / rangeSize;
+      int j = i + 1;
+      while ( j < base.size() && firstIds.get(j) / rangeSize == range ) {
+        ++j;
+      }
+      FileSplit first = i > 0 && firstIds.get(i) > range * rangeSize ? base.get(i - 1): base.get(i);
+      FileSplit last = base.get(j - 1);
+      long start = first.getStart();
+      ret.add(new PageRangeFileSplit(file.getPath(), start, last.getStart() + last.getLength() - start, base.get(i).getLocations(),
+                                     i == 0 ? Long.MIN_VALUE: range * rangeSize,
+                                     j == base.size() ? Long.MAX_VALUE: firstIds.get(j) / rangeSize * rangeSize));
+      i = j;
+    }
+    LOG.info("aligned " + splits.size() + " splits of " + file.getPath() + " to " + ret.size() + " page ranges");
+    return ret;
+  }
+
+  /** Returns the id of the first page beginning in the split, or -1 if there is none. */
+  private static long firstPageId(FileSplit split, DumpStreamFactory streams, JobConf job) throws IOException {
+    SeekableInputStream in = streams.open(split);
+    try {
+      long end = split.getStart() + split.getLength();
+      SplitCompressionInputStream cin = in.getSplitCompressionInputStream();
+      if ( cin != null ) {
+        end = cin.getAdjustedEnd() + 1;
+      }
+      ByteMatcher matcher = new ByteMatcher(in, in);
+      if ( !matcher.readUntilMatch(pageBegin(job), null, end) ) {
+        return -1;
+      }
+      DataOutputBuffer header = new DataOutputBuffer();
+      // the header of a page beginning in the split may continue past its end
+      String revision = job.get(KEY_REVISION_ELEMENT, "revision");
+      if ( !matcher.readUntilMatch("".equals(revision) ? pageEnd(job): "<" + revision, header, Long.MAX_VALUE) ) {
+        return -1;
+      }
+      return XmlFields.longElement(header.getData(), 0, header.getLength(), idElement);
+    } finally {
+      in.close();
+    }
+  }
+
   public RecordReader<Text, Text> getRecordReader(final InputSplit genericSplit,
                                                   JobConf job, Reporter reporter) throws IOException {
+    return this.getRecordReader(genericSplit, job, reporter, false);
+  }
+
+  /** Creates a record reader, which also finds the ids of the page and the first revision of each record when keyIds is set. */
+  MyRecordReader getRecordReader(final InputSplit genericSplit,
+                                 JobConf job, Reporter reporter, boolean keyIds) throws IOException {
     // handling non-standard record reader (likely StreamXmlRecordReader) 
     FileSplit split = (FileSplit) genericSplit;
     LOG.info("getRecordReader start.....split=" + split);
     reporter.setStatus(split.toString());
+    if ( split instanceof PageRangeFileSplit ) {
+      // made visible to the mapper, as map.input.start is
+      job.setLong(KEY_SPLIT_MIN_PAGE_ID, ((PageRangeFileSplit)split).getMinPageId());
+      job.setLong(KEY_SPLIT_MAX_PAGE_ID, ((PageRangeFileSplit)split).getMaxPageId());
+    }
 
     // Open the file and seek to the start of the split
     FileSystem fs = split.getPath().getFileSystem(job);
@@ -284,44 +438,224 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     boolean prev = job.getBoolean(KEY_PREVIOUS_REVISION, true);
     return new MyRecordReader(split, reporter, job, fs,
                               patt != null && !"".equals(patt) ? Pattern.compile(patt): null,
-                              prev);
+                              prev, keyIds);
+  }
+
+  /** Returns the start tag of the elements read as pages, which are <code>&lt;page&gt;</code> unless another name is configured, such as <code>logitem</code> for logging dumps. */
+  static String pageBegin(JobConf job) {
+    return "<" + job.get(KEY_PAGE_ELEMENT, "page") + ">";
+  }
+
+  static String pageEnd(JobConf job) {
+    return "</" + job.get(KEY_PAGE_ELEMENT, "page") + ">";
   }
 
-  private class MyRecordReader implements RecordReader<Text,Text> {
+  /** Returns the sorted offsets of the pages in the index which are in the sample and the page ids of the filter, if given. */
+  private static long[] sampledOffsets(PageOffsetIndex index, PageSample sample, BlockStats.Filter filter) {
+    long[] offsets = new long[index.size()];
+    int n = 0;
+    for ( int i = 0; i < index.size(); ++i ) {
+      long id = index.getIdAt(i);
+      if ( (sample == null || sample.contains(id)) && (filter == null || filter.matchesPageId(id)) ) {
+        offsets[n++] = index.getOffsetAt(i);
+      }
+    }
+    long[] ret = new long[n];
+    System.arraycopy(offsets, 0, ret, 0, n);
+    Arrays.sort(ret);
+    return ret;
+  }
+
+  /** Tells if any of the sorted offsets is in [from, to). */
+  private static boolean anyOffset(long[] offsets, long from, long to) {
+    int i = Arrays.binarySearch(offsets, from);
+    if ( i < 0 ) {
+      i = -i - 1;
+    }
+    return i < offsets.length && offsets[i] < to;
+  }
+
+  /** Returns the sample of pages selected by the job, or null when all of them are. */
+  static PageSample getSample(JobConf job) {
+    float rate = job.getFloat(KEY_SAMPLE_RATE, 1.0F);
+    if ( rate < 0 || rate > 1 ) {
+      throw new IllegalArgumentException("invalid rate: " + KEY_SAMPLE_RATE + "=" + rate);
+    }
+    if ( rate == 1 ) {
+      return null;
+    }
+    return new PageSample(rate, job.getLong(KEY_SAMPLE_SEED, 0));
+  }
+
+  /** Returns the pages and revisions selected by the job, or null when all of them are. */
+  static BlockStats.Filter getFilter(JobConf job) {
+    String min = job.get(KEY_MIN_TIMESTAMP);
+    String max = job.get(KEY_MAX_TIMESTAMP);
+    String[] namespaces = job.getStrings(KEY_NAMESPACES);
+    String minPage = job.get(KEY_MIN_PAGE_ID);
+    String maxPage = job.get(KEY_MAX_PAGE_ID);
+    if ( min == null && max == null && namespaces == null && minPage == null && maxPage == null ) {
+      return null;
+    }
+    BlockStats.Filter filter = new BlockStats.Filter();
+    if ( min != null ) {
+      filter.minTimestamp = WikiPageRecord.parseTimestamp(min);
+      if ( filter.minTimestamp < 0 ) {
+        throw new IllegalArgumentException("invalid timestamp: " + KEY_MIN_TIMESTAMP + "=" + min);
+      }
+    }
+    if ( max != null ) {
+      filter.maxTimestamp = WikiPageRecord.parseTimestamp(max);
+      if ( filter.maxTimestamp < 0 ) {
+        throw new IllegalArgumentException("invalid timestamp: " + KEY_MAX_TIMESTAMP + "=" + max);
+      }
+    }
+    if ( namespaces != null ) {
+      filter.namespaces = new HashSet<Integer>();
+      for ( String ns: namespaces ) {
+        filter.namespaces.add(Integer.parseInt(ns.trim()));
+      }
+    }
+    if ( minPage != null ) {
+      filter.minPageId = Long.parseLong(minPage.trim());
+    }
+    if ( maxPage != null ) {
+      filter.maxPageId = Long.parseLong(maxPage.trim());
+    }
+    return filter;
+  }
+
+  class MyRecordReader implements RecordReader<Text,Text> {
     
     public MyRecordReader(FileSplit split, Reporter reporter,
                           JobConf job, FileSystem fs,
-                          Pattern exclude, boolean prev) throws IOException {
-      this.revisionBeginPattern = "<revision";
-      this.revisionEndPattern   = "</revision>";
+                          Pattern exclude, boolean prev, boolean keyIds) throws IOException {
+      String page = job.get(KEY_PAGE_ELEMENT, "page");
+      String revision = job.get(KEY_REVISION_ELEMENT, "revision");
+      this.pageBeginPattern = pageBegin(job);
+      this.pageEndPattern   = pageEnd(job);
+      this.wholePages = "".equals(revision);
+      this.revisionBeginPattern = "<" + revision;
+      this.revisionEndPattern   = "</" + revision + ">";
       this.pageHeader   = new DataOutputBuffer();
-      this.prevRevision = new DataOutputBuffer();
-      this.pageFooter = getBuffer("\n</page>\n".getBytes("UTF-8"));
+      this.pageFooter = getBuffer(("\n</" + page + ">\n").getBytes("UTF-8"));
       this.revHeader  = getBuffer(this.revisionBeginPattern.getBytes("UTF-8"));
-      this.firstDummyRevision = getBuffer(" beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n".getBytes("UTF-8"));
+      this.firstDummyRevision = (" beginningofpage=\"true\"><text xml:space=\"preserve\"></text></" + revision + ">\n").getBytes("UTF-8");
       this.bufInRev = new DataOutputBuffer();
       this.bufBeforeRev = new DataOutputBuffer();
+      this.bufScratch = new DataOutputBuffer();
+      this.bufRecord = new DataOutputBuffer();
       this.split = split;
+      this.pageRange = split instanceof PageRangeFileSplit ? (PageRangeFileSplit)split: null;
       this.fs = fs;
       this.exclude = exclude;
       this.recordPrevRevision = prev;
-      SeekableInputStream in = SeekableInputStream.getInstance(split, fs, compressionCodecs);
-      SplitCompressionInputStream sin = in.getSplitCompressionInputStream();
-      if ( sin == null ) {
+      this.keyIds = keyIds;
+      this.recordPageId = -1;
+      this.recordRevisionId = -1;
+      this.tagReverts = job.getBoolean(KEY_TAG_IDENTITY_REVERTS, false);
+      this.elideDuplicates = job.getBoolean(KEY_ELIDE_DUPLICATE_TEXT, false);
+      this.revisionHashes = this.tagReverts || this.elideDuplicates ? new Sha1Table(): null;
+      this.tokenIds = job.getBoolean(KEY_TOKENIZE_TEXT, false) ? new HashMap<String,Integer>(): null;
+      this.pendingTokens = new StringBuilder();
+      this.pendingTokensFrom = -1;
+      this.compressTextBytes = job.getInt(KEY_COMPRESS_TEXT, 0);
+      this.lastRevisionId = -1;
+      this.batchRevisions = Math.max(1, job.getInt(KEY_BATCH_REVISIONS, 1));
+      this.batchBytes = job.getLong(KEY_BATCH_BYTES, 4L << 20);
+      this.finished = false;
+      this.records = 0;
+      this.tasks = new LinkedList<RevisionTask>();
+      int threads = job.getInt(KEY_PARSE_THREADS, 0);
+      if ( threads > 0 ) {
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "wikihadoop-parser");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+        this.taskWindow = Math.max(1, job.getInt(KEY_PARSE_WINDOW, threads * 4));
+      } else {
+        this.workers = null;
+        this.taskWindow = 1;
+      }
+      // the split is opened three times in a row, for its adjusted boundaries, for its pages and for reading, all through one open file
+      this.streams = new DumpStreamFactory(fs, compressionCodecs, job);
+      SeekableInputStream in = this.streams.open(split);
+      SplitCompressionInputStream cin = in.getSplitCompressionInputStream();
+      if ( cin == null ) {
         this.start = split.getStart();
         this.end   = split.getStart() + split.getLength();
       } else {
-        this.start = sin.getAdjustedStart();
-        this.end   = sin.getAdjustedEnd() + 1;
+        this.start = cin.getAdjustedStart();
+        this.end   = cin.getAdjustedEnd() + 1;
       }
+      in.close();
       this.reporter = reporter;
 
-      allWrite(this.prevRevision, this.firstDummyRevision);
+      this.prevRevision = this.firstDummyRevision;
+      this.currentHeader = new byte[0];
       this.currentPageNum = -1;
-      this.pageBytes = getPageBytes(this.split, this.fs, compressionCodecs, this.reporter);
+      this.filter = getFilter(job);
+      this.sample = getSample(job);
+      String[] dimensions = job.getStrings(KEY_AGGREGATE);
+      if ( dimensions != null ) {
+        this.aggregates = new EditAggregates(Arrays.asList(dimensions));
+        this.maxAggregates = job.getInt(KEY_AGGREGATE_ENTRIES, 1 << 20);
+        this.aggregateOutput = new LinkedList<String[]>();
+      } else {
+        this.aggregates = null;
+        this.maxAggregates = 0;
+        this.aggregateOutput = null;
+      }
+      this.skipText = job.getBoolean(KEY_SKIP_TEXT, false);
+      String statsDir = job.get(KEY_BLOCK_STATS);
+      if ( this.filter != null && statsDir != null ) {
+        this.blockStats = BlockStats.forFile(fs, new Path(statsDir), split.getPath(), fs.getFileStatus(split.getPath()).getLen());
+      } else {
+        this.blockStats = null;
+      }
+      this.pagePositions = this.blockStats != null ? new ArrayList<Long>(): null;
+      String watermarks = job.get(KEY_WATERMARKS);
+      this.watermarks = watermarks != null ? new Watermarks(new Path(watermarks).getFileSystem(job), new Path(watermarks)): null;
+      String watermarkOutput = job.get(KEY_WATERMARK_OUTPUT);
+      if ( watermarkOutput != null ) {
+        // a relative directory is taken within the output of the task, which is published only when the task attempt is committed
+        Path workOutput = FileOutputFormat.getWorkOutputPath(job);
+        Path dir = workOutput != null ? new Path(workOutput, watermarkOutput): new Path(watermarkOutput);
+        this.watermarkOutput = new Path(dir, split.getPath().getName() + "-" + split.getStart());
+        this.watermarkFs = this.watermarkOutput.getFileSystem(job);
+        this.newWatermarks = new LongLongHashMap(1024, -1L);
+      } else {
+        this.watermarkOutput = null;
+        this.watermarkFs = null;
+        this.newWatermarks = null;
+      }
+      this.bufPairing = new DataOutputBuffer();
+      this.pageId = -1;
+      this.pageWatermark = -1;
+      long heartbeatBytes = job.getLong(KEY_HEARTBEAT_BYTES, 16L << 20);
+      this.pageBytes = getPageBytes(this.split, this.streams, this.reporter, this.pagePositions, this.pageBeginPattern, this.pageEndPattern, heartbeatBytes);
 
-      this.istream = SeekableInputStream.getInstance(this.split, this.fs, compressionCodecs);
-      this.matcher = new ByteMatcher(this.istream, this.istream);
+      SeekableInputStream sin = this.streams.open(this.split);
+      this.reporter.incrCounter(WikiDumpCounters.STREAM_OPENS, this.streams.getOpens());
+      this.reporter.incrCounter(WikiDumpCounters.STREAM_REUSES, this.streams.getReuses());
+      int readAhead = job.getInt(KEY_READ_AHEAD_BLOCKS, 0);
+      if ( readAhead > 0 ) {
+        // decompress in a background thread while this one matches and copies
+        ReadAheadInputStream rin = new ReadAheadInputStream(sin, readAhead, job.getInt(KEY_READ_AHEAD_BLOCKSIZE, 64 * 1024));
+        this.istream = rin;
+        this.matcher = new ByteMatcher(rin, rin);
+      } else {
+        this.istream = sin;
+        this.matcher = new ByteMatcher(sin, sin);
+      }
+      this.matcher.setProgress(new Progressable() {
+          public void progress() {
+            heartbeat();
+          }
+        }, heartbeatBytes);
       this.seekNextRecordBoundary();
       this.reporter.incrCounter(WikiDumpCounters.WRITTEN_REVISIONS, 0);
       this.reporter.incrCounter(WikiDumpCounters.WRITTEN_PAGES, 0);
@@ -336,17 +670,43 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     }
     
     @Override public void close() throws IOException {
-      this.istream.close();
+      if ( this.workers != null ) {
+        this.workers.shutdownNow();
+      }
+      try {
+        this.istream.close();
+      } finally {
+        this.streams.close();
+      }
+      if ( this.newWatermarks != null ) {
+        Watermarks.write(this.watermarkFs, this.watermarkOutput, this.newWatermarks);
+      }
     }
     
+    /** Returns the share of the decompressed bytes of the split read so far.
+     * Their total is known from the pass of {@link #getPageBytes} over the split, and moves evenly, while the position in a bzip2 file moves by whole blocks.  The compressed position is only used for a split without pages.
+     */
     @Override public float getProgress() throws IOException {
       float rate = 0.0f;
-      if (this.end == this.start) {
+      long total = this.tailPageEnd();
+      if ( total > 0 ) {
+        rate = (float)this.matcher.getReadBytes() / (float)total;
+      } else if (this.end == this.start) {
         rate = 1.0f;
       } else {
         rate = ((float)(this.getPos() - this.start)) / ((float)(this.end - this.start));
       }
-      return rate;
+      return Math.max(0.0f, Math.min(1.0f, rate));
+    }
+
+    /** Tells that the task is alive while a long page is read, naming the page and the bytes read of it so far. */
+    private void heartbeat() {
+      DataOutputBuffer header = this.wholePages ? this.bufRecord: this.pageHeader;
+      long id = XmlFields.longElement(header.getData(), 0, header.getLength(), idElement);
+      long bytes = this.matcher.getReadBytes();
+      long begin = this.currentPageNum >= 0 && this.currentPageNum * 2 < this.pageBytes.size() ? this.pageBytes.get(this.currentPageNum * 2): bytes;
+      this.reporter.setStatus("StreamWikiDumpInputFormat: read page id=" + id + " pageBytes=" + (bytes - begin) + " bytes=" + bytes + " of " + this.tailPageEnd());
+      this.reporter.progress();
     }
     
     @Override public long getPos() throws IOException {
@@ -356,10 +716,288 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     public synchronized long getReadBytes() throws IOException {
         return this.matcher.getReadBytes();
       }
+
+    /** Returns the page id of the last record, or -1 when the reader does not find ids. */
+    long getRecordPageId() {
+      return this.recordPageId;
+    }
+
+    /** Returns the id of the first revision in the last record, or -1 when the reader does not find ids. */
+    long getRecordRevisionId() {
+      return this.recordRevisionId;
+    }
     
     @Override synchronized public boolean next(Text key, Text value) throws IOException {
       //LOG.info("StreamWikiDumpInputFormat: split=" + split + " start=" + this.start + " end=" + this.end + " pos=" + this.getPos());
 
+      if ( this.aggregates != null ) {
+        return this.nextAggregate(key, value);
+      }
+      if ( this.wholePages ) {
+        return this.nextPage(key, value);
+      }
+      RevisionTask task = this.pollTask();
+      while ( task != null && !task.selected ) {
+        // revisions out of the time window are not written, but still precede the next one
+        this.finishTask(task);
+        this.prevRevision = task.revision;
+        reporter.incrCounter(WikiDumpCounters.SKIPPED_REVISIONS, 1);
+        task = this.pollTask();
+      }
+      if ( task == null ) {
+        return false;
+      }
+
+      // consecutive revisions of the same page are packed into one record, up to the batch limits
+      this.bufRecord.reset();
+      this.bufRecord.write(task.header);
+      this.finishTask(task);
+      this.recordPageId = task.pageId;
+      this.recordRevisionId = task.revisionId;
+      if ( this.recordPrevRevision ) {
+        this.bufRecord.write(this.prevRevision);
+        this.bufRecord.write(this.revHeader.getData(), 0, this.revHeader.getLength());
+      }
+      this.bufRecord.write(task.revision);
+      this.prevRevision = task.revision;
+      int revisions = 1;
+      while ( revisions < this.batchRevisions  &&  this.bufRecord.getLength() < this.batchBytes ) {
+        task = this.peekTask();
+        if ( task == null || task.pageStart || !task.selected ) {
+          break;
+        }
+        this.pollTask();
+        this.finishTask(task);
+        this.bufRecord.write(this.revHeader.getData(), 0, this.revHeader.getLength());
+        this.bufRecord.write(task.revision);
+        this.prevRevision = task.revision;
+        ++revisions;
+      }
+      this.bufRecord.write(this.pageFooter.getData(), 0, this.pageFooter.getLength());
+
+      key.set(this.bufRecord.getData(), 0, this.bufRecord.getLength());
+      //System.out.print(key.toString());//!
+      value.set("");
+      if ( this.records++ % STATUS_INTERVAL == 0 ) {
+        this.reporter.setStatus("StreamWikiDumpInputFormat: write new record pos=" + this.getPos() + " bytes=" + this.getReadBytes() + " next=" + this.nextPageBegin() + " prev=" + this.prevPageEnd());
+      }
+      reporter.incrCounter(WikiDumpCounters.WRITTEN_REVISIONS, revisions);
+      return true;
+    }
+
+    /** Writes each page-like element as it is, for dumps whose elements have no revisions, such as the <code>&lt;logitem&gt;</code> elements of logging dumps.
+     * Only the exclusion pattern and the time window of the filter apply to them.
+     */
+    private boolean nextPage(Text key, Text value) throws IOException {
+      while ( true ) {
+        long begin = this.nextPageBegin();
+        if ( begin < 0 || begin >= this.tailPageEnd() ) {
+          return false;
+        }
+        this.seekNextRecordBoundary();
+        this.currentPageNum++;
+        if ( !readUntilMatch(this.pageEndPattern, this.bufRecord) ) {
+          return false;
+        }
+        byte[] data = this.bufRecord.getData();
+        int length = this.bufRecord.getLength();
+        if ( this.exclude != null && this.exclude.matcher(new String(data, 0, length, "UTF-8")).find() ) {
+          reporter.incrCounter(WikiDumpCounters.SKIPPED_PAGES, 1);
+          continue;
+        }
+        if ( this.filter != null && !this.filter.matchesTimestamp(WikiPageRecord.parseTimestamp(XmlFields.stringElement(data, 0, length, timestampElement))) ) {
+          reporter.incrCounter(WikiDumpCounters.SKIPPED_PAGES, 1);
+          continue;
+        }
+        key.set(data, 0, length);
+        value.set("");
+        if ( this.records++ % STATUS_INTERVAL == 0 ) {
+          this.reporter.setStatus("StreamWikiDumpInputFormat: write new record pos=" + this.getPos() + " bytes=" + this.getReadBytes());
+        }
+        reporter.incrCounter(WikiDumpCounters.WRITTEN_PAGES, 1);
+        return true;
+      }
+    }
+
+    /** Counts revisions until the aggregates grow too large or the split ends, and then writes the aggregates out one by one. */
+    private boolean nextAggregate(Text key, Text value) throws IOException {
+      while ( this.aggregateOutput.isEmpty() && !this.aggregated ) {
+        RevisionTask task = this.pollTask();
+        if ( task != null ) {
+          this.aggregate(task);
+        } else {
+          this.aggregated = true;
+        }
+        if ( this.aggregated || this.aggregates.size() >= this.maxAggregates ) {
+          this.aggregates.drain(this.aggregateOutput);
+        }
+      }
+      if ( this.aggregateOutput.isEmpty() ) {
+        return false;
+      }
+      String[] kv = this.aggregateOutput.removeFirst();
+      key.set(kv[0]);
+      value.set(kv[1]);
+      return true;
+    }
+
+    private void aggregate(RevisionTask task) throws IOException {
+      this.finishTask(task);
+      if ( task.pageStart ) {
+        this.pageNamespace = WikiPageRecord.namespace(task.header, 0, task.header.length);
+        this.prevTextBytes = task.pairing != null ? task.pairingTextBytes: 0;
+      }
+      long added = Math.max(0, task.textBytes - this.prevTextBytes);
+      this.prevTextBytes = task.textBytes;
+      if ( !task.selected ) {
+        reporter.incrCounter(WikiDumpCounters.SKIPPED_REVISIONS, 1);
+        return;
+      }
+      this.aggregates.add(task.pageId, this.pageNamespace, task.month, task.userId, task.ip, added);
+      reporter.incrCounter(WikiDumpCounters.AGGREGATED_REVISIONS, 1);
+    }
+
+    /** Returns the next prepared revision without removing it.  It is awaited, since its fields, such as selected, are set by {@link RevisionTask#run} in a worker thread. */
+    private RevisionTask peekTask() throws IOException {
+      // keep the window full, so that the workers prepare revisions while earlier ones are written
+      while ( this.tasks.size() < this.taskWindow  &&  this.readRevision() ) {
+        if ( this.pageChanged ) {
+          this.currentHeader = copyOf(this.pageHeader);
+        }
+        RevisionTask task = new RevisionTask(this.currentHeader, this.pageId, this.pageChanged, copyOf(this.bufInRev));
+        task.textBytes = this.textBytes;
+        if ( this.pageChanged && this.hasPairing ) {
+          task.pairing = copyOf(this.bufPairing);
+          task.pairingTextBytes = this.pairingTextBytes;
+        }
+        if ( this.workers != null ) {
+          task.future = this.workers.submit(task);
+        } else {
+          task.run();
+        }
+        this.tasks.addLast(task);
+      }
+      if ( this.tasks.isEmpty() ) {
+        return null;
+      }
+      RevisionTask task = this.tasks.getFirst();
+      task.await();
+      return task;
+    }
+
+    private RevisionTask pollTask() throws IOException {
+      RevisionTask task = this.peekTask();
+      if ( task != null ) {
+        this.tasks.removeFirst();
+      }
+      return task;
+    }
+
+    private void updateWatermark(long pageId, long revisionId) {
+      if ( this.newWatermarks != null && pageId >= 0 && revisionId > this.newWatermarks.get(pageId) ) {
+        this.newWatermarks.put(pageId, revisionId);
+      }
+    }
+
+    /** Applies the per-page state to a prepared revision, in the order of the input. */
+    private void finishTask(RevisionTask task) throws IOException {
+      if ( task.selected ) {
+        // revisions out of the time window are left to a later run
+        this.updateWatermark(task.pageId, task.revisionId);
+      }
+      if ( task.pageStart ) {
+        this.prevRevision = task.pairing != null ? task.pairing: this.firstDummyRevision;
+        if ( this.revisionHashes != null ) {
+          this.revisionHashes.clear();
+          this.lastRevisionId = -1;
+        }
+        if ( this.tokenIds != null ) {
+          this.tokenIds.clear();
+          this.pendingTokens.setLength(0);
+          this.pendingTokensFrom = -1;
+        }
+      }
+      if ( this.revisionHashes != null ) {
+        this.checkIdentityRevert(task);
+      }
+      if ( task.tokens != null && !task.elided ) {
+        this.writeTokens(task);
+      }
+      if ( !task.elided ) {
+        // put in place only now, since elision needs the text as it is
+        task.applyCompression();
+      }
+      if ( task.compressed ) {
+        reporter.incrCounter(WikiDumpCounters.COMPRESSED_TEXTS, 1);
+      }
+    }
+
+    /** Replaces the text of a revision with the ids of its tokens in the dictionary of the page, followed by the tokens new to the dictionary.
+     * The tokens new in revisions out of the time window are also written with the next revision written, so that no id is used before it is defined.
+     */
+    private void writeTokens(RevisionTask task) throws IOException {
+      byte[] data = task.revision;
+      int[] text = XmlFields.element(data, 0, data.length, textElement);
+      if ( text == null ) {
+        return;
+      }
+      StringBuilder ids = new StringBuilder();
+      StringBuilder added = new StringBuilder();
+      int first = this.tokenIds.size();
+      for ( String t: task.tokens ) {
+        Integer id = this.tokenIds.get(t);
+        if ( id == null ) {
+          id = this.tokenIds.size();
+          this.tokenIds.put(t, id);
+          added.append("<t>");
+          escapeXml(added, t);
+          added.append("</t>");
+        }
+        if ( ids.length() > 0 ) {
+          ids.append(' ');
+        }
+        ids.append(id);
+      }
+      reporter.incrCounter(WikiDumpCounters.NEW_TOKENS, this.tokenIds.size() - first);
+      if ( !task.selected ) {
+        if ( this.pendingTokensFrom < 0 ) {
+          this.pendingTokensFrom = first;
+        }
+        this.pendingTokens.append(added);
+      } else if ( this.pendingTokensFrom >= 0 ) {
+        added.insert(0, this.pendingTokens);
+        first = this.pendingTokensFrom;
+        this.pendingTokens.setLength(0);
+        this.pendingTokensFrom = -1;
+      }
+      this.bufScratch.reset();
+      this.bufScratch.write(data, 0, text[XmlFields.TAG_START]);
+      this.bufScratch.write(("<tokens>" + ids + "</tokens>").getBytes("UTF-8"));
+      if ( added.length() > 0 ) {
+        this.bufScratch.write(("<newtokens from=\"" + first + "\">" + added + "</newtokens>").getBytes("UTF-8"));
+      }
+      this.bufScratch.write(data, text[XmlFields.ELEMENT_END], data.length - text[XmlFields.ELEMENT_END]);
+      task.revision = copyOf(this.bufScratch);
+    }
+
+    /** Reads the next revision to be written into bufInRev, skipping excluded pages.  Sets pageChanged when the revision begins a new page.
+     * Only this is done in the thread calling {@link #next}; the rest of the record is built by {@link RevisionTask}.
+     */
+    private boolean readRevision() throws IOException {
+      this.pageChanged = false;
+      if ( this.finished ) {
+        return false;
+      }
+      do {
+        if ( !this.scanRevision() ) {
+          this.finished = true;
+          return false;
+        }
+      } while ( this.belowWatermark() );
+      return true;
+    }
+
+    private boolean scanRevision() throws IOException {
       while (true) {
         if ( this.nextPageBegin() < 0 ) {
           return false;
@@ -379,16 +1017,28 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
         //System.err.println("4.5 check if exceed: " + this.getReadBytes() + " " + nextPageBegin() + " " + prevPageEnd());//!
         if ( this.getReadBytes() >= this.nextPageBegin() ) {
           // int off = (int)(this.nextPageBegin() - this.prevPageEnd());
-          int off = findIndex(pageBeginPattern.getBytes("UTF-8"), this.bufBeforeRev);
+          int off = findIndex(this.pageBeginPattern.getBytes("UTF-8"), this.bufBeforeRev);
           if ( off >= 0 ) {
             offsetWrite(this.pageHeader, off, this.bufBeforeRev);
-            allWrite(this.prevRevision, this.firstDummyRevision);
             this.currentPageNum++;
+            this.pageChanged = true;
             if ( this.exclude != null && this.exclude.matcher(new String(this.pageHeader.getData(), "UTF-8")).find() ) {
               reporter.incrCounter(WikiDumpCounters.SKIPPED_PAGES, 1);
               this.seekNextRecordBoundary();
+            } else if ( !this.inPageRange() ) {
+              if ( this.pageId >= this.pageRange.getMaxPageId() ) {
+                // the rest of the pages belong to the following splits
+                return false;
+              }
+              this.seekNextRecordBoundary();
+            } else if ( !this.inSample() ) {
+              reporter.incrCounter(WikiDumpCounters.UNSAMPLED_PAGES, 1);
+              this.seekNextRecordBoundary();
+            } else if ( !this.acceptPage() ) {
+              this.seekNextRecordBoundary();
             } else {
               reporter.incrCounter(WikiDumpCounters.WRITTEN_PAGES, 1);
+              this.startPage();
               break;
             }
             //System.err.println("4.6 exceed");//!
@@ -400,6 +1050,9 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
         }
       }
       
+      if ( this.aggregates != null || this.skipText ) {
+        return this.readRevisionHead();
+      }
       //System.err.println("4 read rev from: " + this.getReadBytes());//!
       if (!readUntilMatch(this.revisionEndPattern, this.bufInRev)) { // store the revision
         //System.err.println("no revision end" + this.getReadBytes() + " " + this.end);//!
@@ -407,30 +1060,314 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
           return false;
         }
       //System.err.println("4.1 read rev to: " + this.getReadBytes());//!
-        
-      //System.err.println("5 read rev pos " + this.getReadBytes());//!
-      byte[] record = this.recordPrevRevision ?
-        writeInSequence(new DataOutputBuffer[]{ this.pageHeader,
-                                                this.prevRevision,
-                                                this.revHeader,
-                                                this.bufInRev,
-                                                this.pageFooter}):
-        writeInSequence(new DataOutputBuffer[]{ this.pageHeader,
-                                                this.bufInRev,
-                                                this.pageFooter});
-      key.set(record);
-      //System.out.print(key.toString());//!
-      value.set("");
-      this.reporter.setStatus("StreamWikiDumpInputFormat: write new record pos=" + this.getPos() + " bytes=" + this.getReadBytes() + " next=" + this.nextPageBegin() + " prev=" + this.prevPageEnd());
-      reporter.incrCounter(WikiDumpCounters.WRITTEN_REVISIONS, 1);
-      
-      if ( this.recordPrevRevision ) {
-        allWrite(this.prevRevision, this.bufInRev);
-      }
-      
       return true;
     }
     
+    /** Reads a revision up to the start tag of its text into bufInRev, and skips the text, only counting its bytes into textBytes.
+     * The text follows all the other fields of a revision in every version of the dump schema.  Unless aggregating, the rest of the revision is also read, after an empty text element whose <code>bytes</code> attribute gives textBytes.
+     */
+    private boolean readRevisionHead() throws IOException {
+      if ( !readUntilMatch(textBeginPattern, this.bufInRev)
+           || !this.matcher.readUntilMatch(">", this.bufInRev, this.end) ) {
+        return false;
+      }
+      byte[] data = this.bufInRev.getData();
+      int length = this.bufInRev.getLength();
+      int tag = length - 1;
+      while ( tag > 0 && data[tag] != '<' ) {
+        --tag;
+      }
+      boolean empty = data[length - 2] == '/';
+      // the length of the unescaped text in UTF-8, given by newer dumps even when the text itself is not
+      long declared = XmlFields.longAttribute(data, tag, length, bytesAttribute);
+      this.textBytes = Math.max(0, declared);
+      if ( !empty ) {
+        if ( declared >= 0 ) {
+          if ( !this.matcher.readUntilMatch(textEndPattern, null, this.end) ) {
+            return false;
+          }
+        } else {
+          // otherwise the text is read, to count it in the same way
+          this.bufScratch.reset();
+          if ( !this.matcher.readUntilMatch(textEndPattern, this.bufScratch, this.end) ) {
+            return false;
+          }
+          this.textBytes = XmlFields.unescapedLength(this.bufScratch.getData(), 0, this.bufScratch.getLength() - textEndPattern.length());
+        }
+      }
+      if ( this.aggregates != null ) {
+        return this.matcher.readUntilMatch(this.revisionEndPattern, null, this.end);
+      }
+      if ( declared < 0 ) {
+        this.bufScratch.reset();
+        this.bufScratch.write(data, tag, length - tag);
+        this.bufInRev.reset();
+        this.bufInRev.write(data, 0, tag);
+        this.bufInRev.write(textBeginPattern.getBytes("UTF-8"));
+        this.bufInRev.write((" bytes=\"" + this.textBytes + "\"").getBytes("UTF-8"));
+        this.bufInRev.write(this.bufScratch.getData(), textBeginPattern.length(), this.bufScratch.getLength() - textBeginPattern.length());
+      }
+      if ( !empty ) {
+        this.bufInRev.write(textEndPattern.getBytes("UTF-8"));
+      }
+      return this.matcher.readUntilMatch(this.revisionEndPattern, this.bufInRev, this.end);
+    }
+
+    /** Reads the id of the page which has just begun, when it is needed, and looks up its watermark. */
+    private void startPage() throws IOException {
+      this.hasPairing = false;
+      if ( !this.keyIds && this.aggregates == null && this.watermarks == null && this.newWatermarks == null ) {
+        return;
+      }
+      this.pageId = XmlFields.longElement(this.pageHeader.getData(), 0, this.pageHeader.getLength(), idElement);
+      this.pageWatermark = this.watermarks != null && this.pageId >= 0 ? this.watermarks.get(this.pageId): -1;
+    }
+
+    /** Tells if the previous run has already processed the revision in bufInRev, and then keeps it in the updated watermarks.
+     * Such a revision is not written.  Only the last of them is kept, by swapping the buffers, to be paired with the first new revision.
+     * The other revisions are added to the updated watermarks by {@link #finishTask}, only when they are selected.
+     */
+    private boolean belowWatermark() throws IOException {
+      if ( this.watermarks == null && this.newWatermarks == null ) {
+        return false;
+      }
+      long id = XmlFields.longElement(this.bufInRev.getData(), 0, this.bufInRev.getLength(), idElement);
+      if ( id < 0 ) {
+        return false;
+      }
+      if ( id > this.pageWatermark ) {
+        return false;
+      }
+      this.updateWatermark(this.pageId, id);
+      DataOutputBuffer buf = this.bufPairing;
+      this.bufPairing = this.bufInRev;
+      this.bufInRev = buf;
+      this.pairingTextBytes = this.textBytes;
+      this.hasPairing = true;
+      reporter.incrCounter(WikiDumpCounters.OLD_REVISIONS, 1);
+      return true;
+    }
+
+    /** Tells if the page which has just begun is in the page id range of the split, if it has one. */
+    private boolean inPageRange() throws IOException {
+      if ( this.pageRange == null ) {
+        return true;
+      }
+      this.pageId = XmlFields.longElement(this.pageHeader.getData(), 0, this.pageHeader.getLength(), idElement);
+      return this.pageRange.contains(this.pageId);
+    }
+
+    /** Tells if the page which has just begun is in the sample of the job, if it has one. */
+    private boolean inSample() throws IOException {
+      if ( this.sample == null ) {
+        return true;
+      }
+      this.pageId = XmlFields.longElement(this.pageHeader.getData(), 0, this.pageHeader.getLength(), idElement);
+      return this.sample.contains(this.pageId);
+    }
+
+    /** Checks the page which has just begun against the filter, first by the statistics of its range and then by its namespace. */
+    private boolean acceptPage() throws IOException {
+      if ( this.filter == null ) {
+        return true;
+      }
+      if ( this.pagePositions != null && this.currentPageNum < this.pagePositions.size() ) {
+        BlockStats.Range range = this.blockStats.find(this.pagePositions.get(this.currentPageNum));
+        if ( range != null && !this.filter.matches(range) ) {
+          reporter.incrCounter(WikiDumpCounters.PRUNED_PAGES, 1);
+          return false;
+        }
+      }
+      if ( this.filter.hasPageIds() ) {
+        this.pageId = XmlFields.longElement(this.pageHeader.getData(), 0, this.pageHeader.getLength(), idElement);
+        if ( !this.filter.matchesPageId(this.pageId) ) {
+          reporter.incrCounter(WikiDumpCounters.SKIPPED_PAGES, 1);
+          return false;
+        }
+      }
+      if ( this.filter.namespaces != null
+           && !this.filter.matchesNamespace(WikiPageRecord.namespace(this.pageHeader.getData(), 0, this.pageHeader.getLength())) ) {
+        reporter.incrCounter(WikiDumpCounters.SKIPPED_PAGES, 1);
+        return false;
+      }
+      return true;
+    }
+
+    /** Tags a revision whose text is identical to an earlier revision of the same page, and optionally replaces its text with a reference to that revision. */
+    private void checkIdentityRevert(RevisionTask task) throws IOException {
+      long previousId = this.lastRevisionId;
+      this.lastRevisionId = task.revisionId;
+      if ( task.revisionId < 0 || !task.hasSha1 ) {
+        return;
+      }
+      long earlier = this.revisionHashes.put(task.sha1, task.sha1Text, task.revisionId);
+      if ( earlier < 0 ) {
+        return;
+      }
+      byte[] data = task.revision;
+      boolean changed = false;
+      this.bufScratch.reset();
+      if ( this.tagReverts && earlier != previousId ) {
+        // a match with the immediately preceding revision is a null edit, not a revert
+        this.bufScratch.write((" revertedto=\"" + earlier + "\"").getBytes("UTF-8"));
+        reporter.incrCounter(WikiDumpCounters.IDENTITY_REVERTS, 1);
+        changed = true;
+      }
+      int[] text = task.text;
+      if ( this.elideDuplicates && text != null && text[XmlFields.CONTENT_START] < text[XmlFields.CONTENT_END] ) {
+        this.bufScratch.write(data, 0, text[XmlFields.CONTENT_START] - 1);
+        this.bufScratch.write((" sameas=\"" + earlier + "\"/>").getBytes("UTF-8"));
+        this.bufScratch.write(data, text[XmlFields.ELEMENT_END], data.length - text[XmlFields.ELEMENT_END]);
+        reporter.incrCounter(WikiDumpCounters.ELIDED_TEXTS, 1);
+        task.elided = true;
+        changed = true;
+      } else {
+        this.bufScratch.write(data, 0, data.length);
+      }
+      if ( changed ) {
+        task.revision = copyOf(this.bufScratch);
+      }
+    }
+
+    /** A revision on its way to the output.  It is located by the scanning thread, prepared by {@link #run} (in a worker thread when parseThreads is set), and then finished in the original order by {@link #finishTask}. */
+    private class RevisionTask implements Runnable {
+      final byte[] header;
+      final long pageId;
+      final boolean pageStart;
+      byte[] revision;
+      /** The last revision processed by the previous run, to be paired with the first one of the page. */
+      byte[] pairing;
+      long textBytes;
+      long pairingTextBytes;
+      long month;
+      long userId;
+      String ip;
+      Future<?> future;
+      long revisionId;
+      boolean hasSha1;
+      long sha1;
+      byte[] sha1Text;
+      int[] text;
+      boolean elided;
+      List<String> tokens;
+      boolean compressed;
+      byte[] compressedText;
+      long compressedTextBytes;
+      boolean selected;
+
+      RevisionTask(byte[] header, long pageId, boolean pageStart, byte[] revision) {
+        this.header = header;
+        this.pageId = pageId;
+        this.pageStart = pageStart;
+        this.revision = revision;
+        this.revisionId = -1;
+        this.selected = true;
+      }
+
+      /** Does the work which does not depend on other revisions. */
+      public void run() {
+        byte[] data = this.revision;
+        if ( revisionHashes != null || keyIds || newWatermarks != null ) {
+          this.revisionId = XmlFields.longElement(data, 0, data.length, idElement);
+        }
+        if ( revisionHashes != null ) {
+          int[] sha1 = XmlFields.element(data, 0, data.length, sha1Element);
+          this.hasSha1 = sha1 != null && sha1[XmlFields.CONTENT_START] < sha1[XmlFields.CONTENT_END];
+          if ( this.hasSha1 ) {
+            this.sha1 = fingerprint(data, sha1[XmlFields.CONTENT_START], sha1[XmlFields.CONTENT_END]);
+            this.sha1Text = new byte[sha1[XmlFields.CONTENT_END] - sha1[XmlFields.CONTENT_START]];
+            System.arraycopy(data, sha1[XmlFields.CONTENT_START], this.sha1Text, 0, this.sha1Text.length);
+          }
+          if ( elideDuplicates ) {
+            this.text = XmlFields.element(data, 0, data.length, textElement);
+          }
+        }
+        if ( filter != null ) {
+          this.selected = filter.matchesTimestamp(WikiPageRecord.parseTimestamp(XmlFields.stringElement(data, 0, data.length, timestampElement)));
+        }
+        if ( aggregates != null ) {
+          this.month = EditAggregates.month(XmlFields.stringElement(data, 0, data.length, timestampElement));
+          int[] contributor = XmlFields.element(data, 0, data.length, contributorElement);
+          this.userId = -1;
+          if ( contributor != null ) {
+            this.userId = XmlFields.longElement(data, contributor[XmlFields.CONTENT_START], contributor[XmlFields.CONTENT_END], idElement);
+            if ( this.userId < 0 ) {
+              this.ip = XmlFields.stringElement(data, contributor[XmlFields.CONTENT_START], contributor[XmlFields.CONTENT_END], ipElement);
+            }
+          }
+        }
+        if ( tokenIds != null ) {
+          int[] text = this.text != null ? this.text: XmlFields.element(data, 0, data.length, textElement);
+          if ( text != null ) {
+            this.tokens = WikiTokenizer.tokenize(XmlFields.text(data, text[XmlFields.CONTENT_START], text[XmlFields.CONTENT_END]));
+          }
+        }
+        if ( compressTextBytes > 0 && this.tokens == null ) {
+          // deflated here in any case; a text elided later by finishTask only wastes the work
+          this.prepareCompression();
+          if ( !elideDuplicates ) {
+            this.applyCompression();
+          }
+        }
+      }
+
+      /** Compresses the content of the text element, when it is at least compressText bytes long, to be put in place by {@link #applyCompression}. */
+      void prepareCompression() {
+        byte[] data = this.revision;
+        int[] text = XmlFields.element(data, 0, data.length, textElement);
+        if ( text == null || text[XmlFields.CONTENT_END] - text[XmlFields.CONTENT_START] < compressTextBytes
+             || TextCodec.isCompressed(data, text[XmlFields.TAG_START], text[XmlFields.CONTENT_START]) ) {
+          return;
+        }
+        this.compressedText = TextCodec.compress(data, text[XmlFields.CONTENT_START], text[XmlFields.CONTENT_END]);
+        this.compressedTextBytes = XmlFields.unescapedLength(data, text[XmlFields.CONTENT_START], text[XmlFields.CONTENT_END]);
+      }
+
+      /** Replaces the content of the text element with its form compressed by {@link #prepareCompression}, if any.
+       * The <code>bytes</code> attribute is added when missing, so that the length of the text is known without decompressing it.
+       */
+      void applyCompression() {
+        byte[] compressed = this.compressedText;
+        if ( compressed == null ) {
+          return;
+        }
+        this.compressedText = null;
+        // found again, since an attribute may have been added to the revision since
+        byte[] data = this.revision;
+        int[] text = XmlFields.element(data, 0, data.length, textElement);
+        // the start tag ends with '>', since the element has content
+        int tagEnd = text[XmlFields.CONTENT_START] - 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length - (text[XmlFields.CONTENT_END] - text[XmlFields.CONTENT_START]) + compressed.length + 64);
+        out.write(data, 0, tagEnd);
+        if ( XmlFields.longAttribute(data, text[XmlFields.TAG_START], tagEnd, bytesAttribute) < 0 ) {
+          byte[] bytes = XmlFields.ascii(" bytes=\"" + this.compressedTextBytes + "\"");
+          out.write(bytes, 0, bytes.length);
+        }
+        out.write(' ');
+        out.write(TextCodec.compressedAttribute, 0, TextCodec.compressedAttribute.length);
+        out.write('>');
+        out.write(compressed, 0, compressed.length);
+        out.write(data, text[XmlFields.CONTENT_END], data.length - text[XmlFields.CONTENT_END]);
+        this.revision = out.toByteArray();
+        this.compressed = true;
+      }
+
+      void await() throws IOException {
+        if ( this.future == null ) {
+          return;
+        }
+        try {
+          this.future.get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted while parsing a revision");
+        } catch (ExecutionException e) {
+          IOException ioe = new IOException("failed to parse a revision: " + e.getCause());
+          ioe.initCause(e.getCause());
+          throw ioe;
+        }
+      }
+    }
+
     public synchronized void seekNextRecordBoundary() throws IOException {
       if ( this.getReadBytes() < this.nextPageBegin() ) {
         long len = this.nextPageBegin() - this.getReadBytes();
@@ -473,49 +1410,105 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     private int currentPageNum;
     private final Pattern exclude;
     private final boolean recordPrevRevision;
+    private final boolean keyIds;
+    private long recordPageId;
+    private long recordRevisionId;
+    private final int batchRevisions;
+    private final long batchBytes;
+    private final LinkedList<RevisionTask> tasks;
+    private final ExecutorService workers;
+    private final int taskWindow;
+    private boolean pageChanged;
+    private boolean finished;
+    private long records;
+    private byte[] currentHeader;
+    private byte[] prevRevision;
+    private final boolean tagReverts;
+    private final boolean elideDuplicates;
+    private final Sha1Table revisionHashes;
+    private final Map<String,Integer> tokenIds;
+    private final StringBuilder pendingTokens;
+    private int pendingTokensFrom;
+    private final int compressTextBytes;
+    private final BlockStats.Filter filter;
+    private final PageSample sample;
+    private final EditAggregates aggregates;
+    private final int maxAggregates;
+    private final LinkedList<String[]> aggregateOutput;
+    private boolean aggregated;
+    private final boolean skipText;
+    private int pageNamespace;
+    private long prevTextBytes;
+    private long textBytes;
+    private long pairingTextBytes;
+    private final BlockStats blockStats;
+    private final List<Long> pagePositions;
+    private long lastRevisionId;
     private final long start;
     private final long end;
     private final List<Long> pageBytes;
-    private final SeekableInputStream  istream;
+    private final InputStream istream;
+    private final String pageBeginPattern;
+    private final String pageEndPattern;
+    private final DumpStreamFactory streams;
+    private final boolean wholePages;
     private final String revisionBeginPattern;
     private final String revisionEndPattern;
     private final DataOutputBuffer pageHeader;
     private final DataOutputBuffer revHeader;
-    private final DataOutputBuffer prevRevision;
     private final DataOutputBuffer pageFooter;
-    private final DataOutputBuffer firstDummyRevision;
-    private final DataOutputBuffer bufInRev;
+    private final byte[] firstDummyRevision;
+    private DataOutputBuffer bufInRev;
+    private DataOutputBuffer bufPairing;
+    private boolean hasPairing;
+    private long pageId;
+    private long pageWatermark;
+    private final Watermarks watermarks;
+    private final LongLongHashMap newWatermarks;
+    private final Path watermarkOutput;
+    private final FileSystem watermarkFs;
     private final DataOutputBuffer bufBeforeRev;
+    private final DataOutputBuffer bufScratch;
+    private final DataOutputBuffer bufRecord;
     private final FileSystem fs;
     private final FileSplit split;
+    private final PageRangeFileSplit pageRange;
     private final Reporter reporter;
     private final ByteMatcher matcher;
   }
 
-  private static byte[] writeInSequence(DataOutputBuffer[] array) {
-    int size = 0;
-    for (DataOutputBuffer buf: array) {
-      size += buf.getLength();
-    }
-    byte[] dest = new byte[size];
-    int n = 0;
-    for (DataOutputBuffer buf: array) {
-      System.arraycopy(buf.getData(), 0, dest, n, buf.getLength());
-      n += buf.getLength();
+  private static void escapeXml(StringBuilder buf, String str) {
+    for ( int i = 0; i < str.length(); ++i ) {
+      char c = str.charAt(i);
+      if ( c == '&' ) {
+        buf.append("&amp;");
+      } else if ( c == '<' ) {
+        buf.append("&lt;");
+      } else if ( c == '>' ) {
+        buf.append("&gt;");
+      } else {
+        buf.append(c);
+      }
     }
-    return dest;
   }
-  
+
+  private static byte[] copyOf(DataOutputBuffer buf) {
+    byte[] ret = new byte[buf.getLength()];
+    System.arraycopy(buf.getData(), 0, ret, 0, ret.length);
+    return ret;
+  }
+
   private static DataOutputBuffer getBuffer(byte[] bytes) throws IOException {
     DataOutputBuffer ret = new DataOutputBuffer(bytes.length);
     ret.write(bytes);
     return ret;
   }
 
-  private static List<Long> getPageBytes(FileSplit split, FileSystem fs, CompressionCodecFactory compressionCodecs, Reporter reporter) throws IOException {
+  /** Finds the offsets of the beginnings and ends of the pages in a split, counted in decompressed bytes.  When positions is given, the stream positions right after each page beginning are also added to it. */
+  private static List<Long> getPageBytes(FileSplit split, DumpStreamFactory streams, final Reporter reporter, List<Long> positions, String pageBeginPattern, String pageEndPattern, long heartbeatBytes) throws IOException {
     SeekableInputStream in = null;
     try {
-      in = SeekableInputStream.getInstance(split, fs, compressionCodecs);
+      in = streams.open(split);
       long start = split.getStart();
       long end   = start + split.getLength();
       SplitCompressionInputStream cin = in.getSplitCompressionInputStream();
@@ -523,13 +1516,34 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
         start = cin.getAdjustedStart();
         end   = cin.getAdjustedEnd() + 1;
       }
-      ByteMatcher matcher = new ByteMatcher(in, in);
-      List<Long> ret = new ArrayList<Long>();
+      final ByteMatcher matcher = new ByteMatcher(in, in);
+      final List<Long> ret = new ArrayList<Long>();
+      final long from = start;
+      final long to = end;
+      // a page can be too long to be found within the task timeout without telling the framework
+      matcher.setProgress(new Progressable() {
+          public void progress() {
+            long bytes = matcher.getReadBytes();
+            long pageBegin = ret.size() % 2 == 1 ? ret.get(ret.size() - 1): bytes;
+            long pos;
+            try {
+              pos = matcher.getPos();
+            } catch (IOException e) {
+              pos = from;
+            }
+            reporter.setStatus(String.format("StreamWikiDumpInputFormat: find page %6d pageBytes=%d start=%d pos=%d end=%d bytes=%d of about %d",
+                                             ret.size() / 2 + 1, bytes - pageBegin, from, pos, to, bytes, estimateTotal(bytes, pos - from, to - from)));
+            reporter.progress();
+          }
+        }, heartbeatBytes);
       while ( true ) {
         if ( matcher.getPos() >= end || !matcher.readUntilMatch(pageBeginPattern, null, end) ) {
           break;
         }
         ret.add(matcher.getReadBytes() - pageBeginPattern.getBytes("UTF-8").length);
+        if ( positions != null ) {
+          positions.add(matcher.getPos());
+        }
         if ( matcher.getPos() >= end || !matcher.readUntilMatch(pageEndPattern, null, end) ) {
           System.err.println("could not find "+pageEndPattern+", page over a split?  pos=" + matcher.getPos() + " bytes=" + matcher.getReadBytes());
           //ret.add(end);
@@ -553,6 +1567,14 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     }
   }
 
+  /** Estimates the decompressed bytes of a split from those decompressed out of the first compressed bytes of it. */
+  static long estimateTotal(long decompressed, long compressed, long total) {
+    if ( compressed <= 0 ) {
+      return total;
+    }
+    return (long)((double)decompressed / compressed * total);
+  }
+
   private static void offsetWrite(DataOutputBuffer to, int fromOffset, DataOutputBuffer from) throws IOException {
     if ( from.getLength() <= fromOffset || fromOffset < 0 ) {
       throw new IllegalArgumentException(String.format("invalid offset: offset=%d length=%d", fromOffset, from.getLength()));
@@ -562,9 +1584,6 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     to.reset();
     to.write(bytes);
   }
-  private static void allWrite(DataOutputBuffer to, DataOutputBuffer from) throws IOException {
-    offsetWrite(to, 0, from);
-  }
 
   private static int findIndex(byte[] match, DataOutputBuffer from_) throws IOException {
     // TODO: faster string pattern match (KMP etc)
@@ -586,10 +1605,77 @@ public class StreamWikiDumpInputFormat extends KeyValueTextInputFormat {
     return -1;
   }
 
+  /** The SHA-1s of the revisions of a page, by which identical texts are found.
+   * A SHA-1 is looked up by its fingerprint and then compared in full, so that texts of colliding fingerprints are never taken for the same, which would lose a text elided by <code>elideDuplicateText</code>.
+   */
+  static class Sha1Table {
+    private final LongLongHashMap slots = new LongLongHashMap();
+    private final DataOutputBuffer sha1s = new DataOutputBuffer();
+    private int[] ends = new int[16];
+    private long[] revisionIds = new long[16];
+    private int size;
+
+    void clear() {
+      this.slots.clear();
+      this.sha1s.reset();
+      this.size = 0;
+    }
+
+    /** Stores the revision under its SHA-1, and returns the id of the last earlier revision of the same SHA-1, or -1. */
+    long put(long fingerprint, byte[] sha1, long revisionId) throws IOException {
+      long slot = this.slots.get(fingerprint);
+      if ( slot >= 0 ) {
+        int i = (int)slot;
+        int begin = i == 0 ? 0: this.ends[i - 1];
+        if ( WritableComparator.compareBytes(this.sha1s.getData(), begin, this.ends[i] - begin, sha1, 0, sha1.length) != 0 ) {
+          // another SHA-1 of the same fingerprint, which is not kept; at worst a revert to it is missed
+          return -1;
+        }
+        long earlier = this.revisionIds[i];
+        this.revisionIds[i] = revisionId;
+        return earlier;
+      }
+      if ( this.size == this.ends.length ) {
+        int[] ends = new int[this.size * 2];
+        System.arraycopy(this.ends, 0, ends, 0, this.size);
+        this.ends = ends;
+        long[] ids = new long[this.size * 2];
+        System.arraycopy(this.revisionIds, 0, ids, 0, this.size);
+        this.revisionIds = ids;
+      }
+      this.sha1s.write(sha1);
+      this.ends[this.size] = this.sha1s.getLength();
+      this.revisionIds[this.size] = revisionId;
+      this.slots.put(fingerprint, this.size);
+      ++this.size;
+      return -1;
+    }
+  }
+
+  /** 64-bit FNV-1a hash of the base-36 SHA-1 of a revision text, by which {@link Sha1Table} finds it. */
+  private static long fingerprint(byte[] data, int from, int to) {
+    long h = 0xcbf29ce484222325L;
+    for ( int i = from; i < to; ++i ) {
+      h ^= data[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
   private static enum WikiDumpCounters {
-    FOUND_PAGES, WRITTEN_REVISIONS, WRITTEN_PAGES, SKIPPED_PAGES
+    FOUND_PAGES, WRITTEN_REVISIONS, WRITTEN_PAGES, SKIPPED_PAGES, IDENTITY_REVERTS, ELIDED_TEXTS, NEW_TOKENS, PRUNED_PAGES, SKIPPED_REVISIONS, OLD_REVISIONS, UNSAMPLED_PAGES, AGGREGATED_REVISIONS, STREAM_OPENS, STREAM_REUSES, COMPRESSED_TEXTS
   }
 
-  private static final String pageBeginPattern = "<page>";
-  private static final String pageEndPattern   = "</page>";
+  private static final int STATUS_INTERVAL = 1000;
+  /** Larger than a compressed bzip2 block, by which the pages of a split can be found off its boundaries. */
+  private static final long STATS_MARGIN = 1L << 20;
+  private static final String textBeginPattern = "<text";
+  private static final String textEndPattern   = "</text>";
+  private static final byte[] bytesAttribute = XmlFields.ascii("bytes=\"");
+  private static final byte[] contributorElement = XmlFields.ascii("contributor");
+  private static final byte[] ipElement   = XmlFields.ascii("ip");
+  private static final byte[] idElement   = XmlFields.ascii("id");
+  private static final byte[] sha1Element = XmlFields.ascii("sha1");
+  private static final byte[] textElement = XmlFields.ascii("text");
+  private static final byte[] timestampElement = XmlFields.ascii("timestamp");
 }
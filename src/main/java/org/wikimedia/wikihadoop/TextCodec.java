@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Compresses revision texts inside records, so that large texts cost fewer bytes in spills and the shuffle.
+ * A compressed text element has the attribute <code>compressed="deflate"</code>, and its content is the Base64 of the deflated bytes of the original content, which is still XML-escaped.  The content is only decompressed when the text is asked for, by {@link WikiPageRecord.Revision#getText}.
+ */
+public class TextCodec {
+  static final byte[] compressedAttribute = XmlFields.ascii("compressed=\"deflate\"");
+
+  private static final byte[] ALPHABET = XmlFields.ascii("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+  private static final int[] VALUES = new int[128];
+  static {
+    java.util.Arrays.fill(VALUES, -1);
+    for ( int i = 0; i < ALPHABET.length; ++i ) {
+      VALUES[ALPHABET[i]] = i;
+    }
+  }
+
+  /** Tells if the text element whose start tag is data[tagStart, contentStart) holds compressed content. */
+  public static boolean isCompressed(byte[] data, int tagStart, int contentStart) {
+    return XmlFields.indexOf(data, tagStart, contentStart, compressedAttribute) >= 0;
+  }
+
+  /** Returns the Base64 of data[from, to) deflated for speed rather than size. */
+  public static byte[] compress(byte[] data, int from, int to) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data, from, to - from);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, (to - from) / 4));
+      byte[] chunk = new byte[1 << 14];
+      while ( !deflater.finished() ) {
+        int n = deflater.deflate(chunk);
+        out.write(chunk, 0, n);
+      }
+      return encode(out.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Returns the original bytes of the compressed content data[from, to).  Empty content, such as of a text emptied by {@link SharedScanMapper}, gives no bytes. */
+  public static byte[] decompress(byte[] data, int from, int to) throws IOException {
+    if ( from >= to ) {
+      return new byte[0];
+    }
+    byte[] deflated = decode(data, from, to);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+      byte[] chunk = new byte[1 << 14];
+      while ( !inflater.finished() ) {
+        int n = inflater.inflate(chunk);
+        if ( n == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+          throw new EOFException("truncated compressed text");
+        }
+        out.write(chunk, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      IOException ioe = new IOException("corrupt compressed text: " + e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  static byte[] encode(byte[] data) {
+    byte[] ret = new byte[(data.length + 2) / 3 * 4];
+    int o = 0;
+    for ( int i = 0; i < data.length; i += 3 ) {
+      int n = data.length - i;
+      int b = (data[i] & 0xff) << 16 | (n > 1 ? (data[i + 1] & 0xff) << 8: 0) | (n > 2 ? data[i + 2] & 0xff: 0);
+      ret[o++] = ALPHABET[b >>> 18 & 0x3f];
+      ret[o++] = ALPHABET[b >>> 12 & 0x3f];
+      ret[o++] = n > 1 ? ALPHABET[b >>> 6 & 0x3f]: (byte)'=';
+      ret[o++] = n > 2 ? ALPHABET[b & 0x3f]: (byte)'=';
+    }
+    return ret;
+  }
+
+  static byte[] decode(byte[] data, int from, int to) throws IOException {
+    while ( to > from && data[to - 1] == '=' ) {
+      --to;
+    }
+    byte[] ret = new byte[(to - from) * 3 / 4];
+    int o = 0;
+    int b = 0;
+    int bits = 0;
+    for ( int i = from; i < to; ++i ) {
+      int v = data[i] >= 0 ? VALUES[data[i]]: -1;
+      if ( v < 0 ) {
+        throw new IOException("invalid character in compressed text: " + (data[i] & 0xff));
+      }
+      b = b << 6 | v;
+      bits += 6;
+      if ( bits >= 8 ) {
+        bits -= 8;
+        ret[o++] = (byte)(b >>> bits);
+      }
+    }
+    return ret;
+  }
+}
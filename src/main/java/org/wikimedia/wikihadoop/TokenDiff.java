@@ -0,0 +1,443 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.util.*;
+
+/** Diffs two sequences of interned tokens.
+ * This follows <code>diff_main</code> of <code>python/diff_match_patch.py</code> with <code>checklines=False</code> (common prefix and suffix trimming, the half-match speedup, Myers' bisection and the final merge), so that it gives the same operations as the Python differ.
+ */
+public class TokenDiff {
+  public static final int DELETE = -1;
+  public static final int EQUAL  = 0;
+  public static final int INSERT = 1;
+
+  public static class Diff {
+    public final int op;
+    public final int[] tokens;
+    public Diff(int op, int[] tokens) {
+      this.op = op;
+      this.tokens = tokens;
+    }
+    @Override public String toString() {
+      return this.op + ":" + Arrays.toString(this.tokens);
+    }
+  }
+
+  private static final int[] EMPTY = new int[0];
+
+  private final long timeout;
+
+  /** @param timeout milliseconds after which the bisection gives up and reports the rest as one deletion and one insertion; 0 or less for no limit */
+  public TokenDiff(long timeout) {
+    this.timeout = timeout;
+  }
+
+  public List<Diff> diff(int[] a, int[] b) {
+    long deadline = this.timeout <= 0 ? Long.MAX_VALUE: System.currentTimeMillis() + this.timeout;
+    return main(a, b, deadline);
+  }
+
+  private List<Diff> main(int[] a, int[] b, long deadline) {
+    List<Diff> diffs = new ArrayList<Diff>();
+    if ( Arrays.equals(a, b) ) {
+      if ( a.length > 0 ) {
+        diffs.add(new Diff(EQUAL, a));
+      }
+      return diffs;
+    }
+
+    int prefix = commonPrefix(a, b);
+    int[] commonPrefix = slice(a, 0, prefix);
+    a = slice(a, prefix, a.length);
+    b = slice(b, prefix, b.length);
+
+    int suffix = commonSuffix(a, b);
+    int[] commonSuffix = slice(a, a.length - suffix, a.length);
+    a = slice(a, 0, a.length - suffix);
+    b = slice(b, 0, b.length - suffix);
+
+    if ( commonPrefix.length > 0 ) {
+      diffs.add(new Diff(EQUAL, commonPrefix));
+    }
+    diffs.addAll(compute(a, b, deadline));
+    if ( commonSuffix.length > 0 ) {
+      diffs.add(new Diff(EQUAL, commonSuffix));
+    }
+    cleanupMerge(diffs);
+    return diffs;
+  }
+
+  private List<Diff> compute(int[] a, int[] b, long deadline) {
+    List<Diff> diffs = new ArrayList<Diff>();
+    if ( a.length == 0 ) {
+      diffs.add(new Diff(INSERT, b));
+      return diffs;
+    }
+    if ( b.length == 0 ) {
+      diffs.add(new Diff(DELETE, a));
+      return diffs;
+    }
+
+    int[] longer  = a.length > b.length ? a: b;
+    int[] shorter = a.length > b.length ? b: a;
+    int i = indexOf(longer, shorter, 0);
+    if ( i >= 0 ) {
+      // the shorter one is inside the longer one
+      int op = a.length > b.length ? DELETE: INSERT;
+      diffs.add(new Diff(op, slice(longer, 0, i)));
+      diffs.add(new Diff(EQUAL, shorter));
+      diffs.add(new Diff(op, slice(longer, i + shorter.length, longer.length)));
+      return diffs;
+    }
+    if ( shorter.length == 1 ) {
+      diffs.add(new Diff(DELETE, a));
+      diffs.add(new Diff(INSERT, b));
+      return diffs;
+    }
+
+    int[][] hm = halfMatch(a, b);
+    if ( hm != null ) {
+      diffs.addAll(main(hm[0], hm[2], deadline));
+      diffs.add(new Diff(EQUAL, hm[4]));
+      diffs.addAll(main(hm[1], hm[3], deadline));
+      return diffs;
+    }
+    return bisect(a, b, deadline);
+  }
+
+  /** Finds a common substring at least half as long as the longer sequence.
+   * @return the prefix of a, the suffix of a, the prefix of b, the suffix of b and the common middle, or null
+   */
+  private int[][] halfMatch(int[] a, int[] b) {
+    if ( this.timeout <= 0 ) {
+      // the result may not be minimal, which is only acceptable when we are in a hurry
+      return null;
+    }
+    int[] longer  = a.length > b.length ? a: b;
+    int[] shorter = a.length > b.length ? b: a;
+    if ( longer.length < 4 || shorter.length * 2 < longer.length ) {
+      return null;
+    }
+    int[][] hm1 = halfMatch(longer, shorter, (longer.length + 3) / 4);
+    int[][] hm2 = halfMatch(longer, shorter, (longer.length + 1) / 2);
+    int[][] hm;
+    if ( hm1 == null && hm2 == null ) {
+      return null;
+    } else if ( hm2 == null ) {
+      hm = hm1;
+    } else if ( hm1 == null ) {
+      hm = hm2;
+    } else {
+      hm = hm1[4].length > hm2[4].length ? hm1: hm2;
+    }
+    if ( a.length > b.length ) {
+      return hm;
+    }
+    return new int[][]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+  }
+
+  private int[][] halfMatch(int[] longer, int[] shorter, int i) {
+    int[] seed = slice(longer, i, i + longer.length / 4);
+    int[][] best = null;
+    int bestLength = 0;
+    int j = indexOf(shorter, seed, 0);
+    while ( j >= 0 ) {
+      int prefix = commonPrefix(slice(longer, i, longer.length), slice(shorter, j, shorter.length));
+      int suffix = commonSuffix(slice(longer, 0, i), slice(shorter, 0, j));
+      if ( bestLength < suffix + prefix ) {
+        bestLength = suffix + prefix;
+        best = new int[][]{
+          slice(longer, 0, i - suffix),
+          slice(longer, i + prefix, longer.length),
+          slice(shorter, 0, j - suffix),
+          slice(shorter, j + prefix, shorter.length),
+          slice(shorter, j - suffix, j + prefix),
+        };
+      }
+      j = indexOf(shorter, seed, j + 1);
+    }
+    if ( bestLength * 2 >= longer.length ) {
+      return best;
+    }
+    return null;
+  }
+
+  /** Finds the middle snake of Myers' O(ND) algorithm and recurses on both halves. */
+  private List<Diff> bisect(int[] a, int[] b, long deadline) {
+    int alen = a.length;
+    int blen = b.length;
+    int maxD = (alen + blen + 1) / 2;
+    int vOffset = maxD;
+    int vLength = 2 * maxD;
+    int[] v1 = new int[vLength];
+    int[] v2 = new int[vLength];
+    Arrays.fill(v1, -1);
+    Arrays.fill(v2, -1);
+    v1[vOffset + 1] = 0;
+    v2[vOffset + 1] = 0;
+    int delta = alen - blen;
+    // when the total length is odd, the front path collides with the reverse path
+    boolean front = delta % 2 != 0;
+    int k1start = 0;
+    int k1end = 0;
+    int k2start = 0;
+    int k2end = 0;
+    for ( int d = 0; d < maxD; ++d ) {
+      if ( System.currentTimeMillis() > deadline ) {
+        break;
+      }
+
+      for ( int k1 = -d + k1start; k1 < d + 1 - k1end; k1 += 2 ) {
+        int k1Offset = vOffset + k1;
+        int x1;
+        if ( k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1]) ) {
+          x1 = v1[k1Offset + 1];
+        } else {
+          x1 = v1[k1Offset - 1] + 1;
+        }
+        int y1 = x1 - k1;
+        while ( x1 < alen && y1 < blen && a[x1] == b[y1] ) {
+          ++x1;
+          ++y1;
+        }
+        v1[k1Offset] = x1;
+        if ( x1 > alen ) {
+          k1end += 2;
+        } else if ( y1 > blen ) {
+          k1start += 2;
+        } else if ( front ) {
+          int k2Offset = vOffset + delta - k1;
+          if ( k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1 ) {
+            int x2 = alen - v2[k2Offset];
+            if ( x1 >= x2 ) {
+              return bisectSplit(a, b, x1, y1, deadline);
+            }
+          }
+        }
+      }
+
+      for ( int k2 = -d + k2start; k2 < d + 1 - k2end; k2 += 2 ) {
+        int k2Offset = vOffset + k2;
+        int x2;
+        if ( k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1]) ) {
+          x2 = v2[k2Offset + 1];
+        } else {
+          x2 = v2[k2Offset - 1] + 1;
+        }
+        int y2 = x2 - k2;
+        while ( x2 < alen && y2 < blen && a[alen - x2 - 1] == b[blen - y2 - 1] ) {
+          ++x2;
+          ++y2;
+        }
+        v2[k2Offset] = x2;
+        if ( x2 > alen ) {
+          k2end += 2;
+        } else if ( y2 > blen ) {
+          k2start += 2;
+        } else if ( !front ) {
+          int k1Offset = vOffset + delta - k2;
+          if ( k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1 ) {
+            int x1 = v1[k1Offset];
+            int y1 = vOffset + x1 - k1Offset;
+            x2 = alen - x2;
+            if ( x1 >= x2 ) {
+              return bisectSplit(a, b, x1, y1, deadline);
+            }
+          }
+        }
+      }
+    }
+    // out of time, or nothing in common
+    List<Diff> diffs = new ArrayList<Diff>();
+    diffs.add(new Diff(DELETE, a));
+    diffs.add(new Diff(INSERT, b));
+    return diffs;
+  }
+
+  private List<Diff> bisectSplit(int[] a, int[] b, int x, int y, long deadline) {
+    List<Diff> diffs = main(slice(a, 0, x), slice(b, 0, y), deadline);
+    diffs.addAll(main(slice(a, x, a.length), slice(b, y, b.length), deadline));
+    return diffs;
+  }
+
+  /** Merges adjacent operations of the same kind, factors common prefixes and suffixes out of replacements, and shifts single edits over equalities where that removes an equality. */
+  static void cleanupMerge(List<Diff> diffs) {
+    diffs.add(new Diff(EQUAL, EMPTY));
+    int pointer = 0;
+    int countDelete = 0;
+    int countInsert = 0;
+    int[] textDelete = EMPTY;
+    int[] textInsert = EMPTY;
+    while ( pointer < diffs.size() ) {
+      Diff cur = diffs.get(pointer);
+      if ( cur.op == INSERT ) {
+        ++countInsert;
+        textInsert = concat(textInsert, cur.tokens);
+        ++pointer;
+      } else if ( cur.op == DELETE ) {
+        ++countDelete;
+        textDelete = concat(textDelete, cur.tokens);
+        ++pointer;
+      } else {
+        if ( countDelete + countInsert > 1 ) {
+          if ( countDelete != 0 && countInsert != 0 ) {
+            int common = commonPrefix(textInsert, textDelete);
+            if ( common != 0 ) {
+              int x = pointer - countDelete - countInsert - 1;
+              if ( x >= 0 && diffs.get(x).op == EQUAL ) {
+                diffs.set(x, new Diff(EQUAL, concat(diffs.get(x).tokens, slice(textInsert, 0, common))));
+              } else {
+                diffs.add(0, new Diff(EQUAL, slice(textInsert, 0, common)));
+                ++pointer;
+              }
+              textInsert = slice(textInsert, common, textInsert.length);
+              textDelete = slice(textDelete, common, textDelete.length);
+            }
+            common = commonSuffix(textInsert, textDelete);
+            if ( common != 0 ) {
+              diffs.set(pointer, new Diff(EQUAL, concat(slice(textInsert, textInsert.length - common, textInsert.length), diffs.get(pointer).tokens)));
+              textInsert = slice(textInsert, 0, textInsert.length - common);
+              textDelete = slice(textDelete, 0, textDelete.length - common);
+            }
+          }
+          if ( countDelete == 0 ) {
+            replace(diffs, pointer - countInsert, pointer, new Diff(INSERT, textInsert));
+          } else if ( countInsert == 0 ) {
+            replace(diffs, pointer - countDelete, pointer, new Diff(DELETE, textDelete));
+          } else {
+            replace(diffs, pointer - countDelete - countInsert, pointer, new Diff(DELETE, textDelete), new Diff(INSERT, textInsert));
+          }
+          pointer = pointer - countDelete - countInsert + 1;
+          if ( countDelete != 0 ) {
+            ++pointer;
+          }
+          if ( countInsert != 0 ) {
+            ++pointer;
+          }
+        } else if ( pointer != 0 && diffs.get(pointer - 1).op == EQUAL ) {
+          diffs.set(pointer - 1, new Diff(EQUAL, concat(diffs.get(pointer - 1).tokens, cur.tokens)));
+          diffs.remove(pointer);
+        } else {
+          ++pointer;
+        }
+        countInsert = 0;
+        countDelete = 0;
+        textDelete = EMPTY;
+        textInsert = EMPTY;
+      }
+    }
+    if ( diffs.get(diffs.size() - 1).tokens.length == 0 ) {
+      diffs.remove(diffs.size() - 1);
+    }
+
+    // e.g. A<ins>BA</ins>C -> <ins>AB</ins>AC
+    boolean changes = false;
+    pointer = 1;
+    while ( pointer < diffs.size() - 1 ) {
+      Diff prev = diffs.get(pointer - 1);
+      Diff cur  = diffs.get(pointer);
+      Diff next = diffs.get(pointer + 1);
+      if ( prev.op == EQUAL && next.op == EQUAL ) {
+        if ( endsWith(cur.tokens, prev.tokens) ) {
+          diffs.set(pointer, new Diff(cur.op, concat(prev.tokens, slice(cur.tokens, 0, cur.tokens.length - prev.tokens.length))));
+          diffs.set(pointer + 1, new Diff(EQUAL, concat(prev.tokens, next.tokens)));
+          diffs.remove(pointer - 1);
+          changes = true;
+        } else if ( startsWith(cur.tokens, next.tokens) ) {
+          diffs.set(pointer - 1, new Diff(EQUAL, concat(prev.tokens, next.tokens)));
+          diffs.set(pointer, new Diff(cur.op, concat(slice(cur.tokens, next.tokens.length, cur.tokens.length), next.tokens)));
+          diffs.remove(pointer + 1);
+          changes = true;
+        }
+      }
+      ++pointer;
+    }
+    if ( changes ) {
+      cleanupMerge(diffs);
+    }
+  }
+
+  private static void replace(List<Diff> diffs, int from, int to, Diff... with) {
+    diffs.subList(from, to).clear();
+    diffs.addAll(from, Arrays.asList(with));
+  }
+
+  static int commonPrefix(int[] a, int[] b) {
+    int n = Math.min(a.length, b.length);
+    for ( int i = 0; i < n; ++i ) {
+      if ( a[i] != b[i] ) {
+        return i;
+      }
+    }
+    return n;
+  }
+
+  static int commonSuffix(int[] a, int[] b) {
+    int n = Math.min(a.length, b.length);
+    for ( int i = 1; i <= n; ++i ) {
+      if ( a[a.length - i] != b[b.length - i] ) {
+        return i - 1;
+      }
+    }
+    return n;
+  }
+
+  static int indexOf(int[] data, int[] pattern, int from) {
+    int last = data.length - pattern.length;
+    OUTER:
+    for ( int i = from; i <= last; ++i ) {
+      for ( int j = 0; j < pattern.length; ++j ) {
+        if ( data[i + j] != pattern[j] ) {
+          continue OUTER;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(int[] data, int[] prefix) {
+    return prefix.length <= data.length && commonPrefix(data, prefix) == prefix.length;
+  }
+
+  private static boolean endsWith(int[] data, int[] suffix) {
+    return suffix.length <= data.length && commonSuffix(data, suffix) == suffix.length;
+  }
+
+  static int[] slice(int[] data, int from, int to) {
+    if ( from == 0 && to == data.length ) {
+      return data;
+    }
+    int[] ret = new int[to - from];
+    System.arraycopy(data, from, ret, 0, ret.length);
+    return ret;
+  }
+
+  static int[] concat(int[] a, int[] b) {
+    if ( a.length == 0 ) {
+      return b;
+    }
+    if ( b.length == 0 ) {
+      return a;
+    }
+    int[] ret = new int[a.length + b.length];
+    System.arraycopy(a, 0, ret, 0, a.length);
+    System.arraycopy(b, 0, ret, a.length, b.length);
+    return ret;
+  }
+}
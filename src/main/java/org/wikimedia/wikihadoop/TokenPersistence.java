@@ -0,0 +1,253 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wikimedia.wikihadoop;
+
+import java.io.IOException;
+import java.util.*;
+
+/** Follows the tokens of a page through its revisions, for the persistence of the tokens each revision adds and the authorship of the latest text.
+ * Revisions are given in order, one page at a time.  Only the current text is kept, as the ids of its tokens and the index of the revision which added each of them, and the results are counted in arrays indexed by revision, so that the memory used is bounded by the largest page rather than by the input.
+ * A token survives a revision when the diff from the text before that revision keeps it.  A token removed and added back, as by a revert, belongs to the revision adding it back.
+ */
+public class TokenPersistence {
+  private final TokenDiff differ;
+  private final int window;
+  private final Map<String,Integer> tokenIds = new HashMap<String,Integer>();
+
+  private int[] tokens = new int[0];
+  /** The index of the revision which added each of the tokens, or -1; only the first tokens.length entries are used. */
+  private int[] owners = new int[0];
+  private int[] nextOwners = new int[0];
+
+  private int revisions;
+  private long[] revisionIds = new long[16];
+  private long[] timestamps = new long[16];
+  private long[] userIds = new long[16];
+  private String[] userNames = new String[16];
+  private int[] textTokens = new int[16];
+  private int[] added = new int[16];
+  private int[] removed = new int[16];
+  private int[] persisted = new int[16];
+  private int[] censored = new int[16];
+  private long[] tokenRevisions = new long[16];
+  private int[] authored = new int[16];
+
+  /** @param timeoutMs the limit of diffing one revision pair, as for {@link TokenDiff}
+   *  @param window the number of later revisions a token needs to survive to count as persisted
+   */
+  public TokenPersistence(long timeoutMs, int window) {
+    this.differ = new TokenDiff(timeoutMs);
+    this.window = window;
+  }
+
+  /** Forgets the previous page. */
+  public void startPage() {
+    this.tokenIds.clear();
+    this.tokens = new int[0];
+    this.owners = new int[0];
+    this.revisions = 0;
+  }
+
+  /** Sets the text before the first revision given, such as the last revision processed by a previous run.  Its tokens belong to no revision. */
+  public void setBase(String text) {
+    this.tokens = this.intern(text);
+    this.owners = new int[this.tokens.length];
+    Arrays.fill(this.owners, -1);
+  }
+
+  public void addRevision(WikiPageRecord.Revision rev) throws IOException {
+    int r = this.revisions;
+    this.grow(r + 1);
+    this.revisionIds[r] = rev.id;
+    this.timestamps[r] = rev.timestamp;
+    this.userIds[r] = rev.userId;
+    this.userNames[r] = rev.userName;
+    this.added[r] = 0;
+    this.removed[r] = 0;
+    this.persisted[r] = 0;
+    this.censored[r] = 0;
+    this.tokenRevisions[r] = 0;
+    this.authored[r] = 0;
+    this.revisions = r + 1;
+
+    int[] cur = this.intern(rev.getText());
+    if ( this.nextOwners.length < cur.length ) {
+      this.nextOwners = new int[Math.max(cur.length, this.nextOwners.length * 2)];
+    }
+    int i = 0;
+    int j = 0;
+    for ( TokenDiff.Diff d: this.differ.diff(this.tokens, cur) ) {
+      int n = d.tokens.length;
+      if ( d.op == TokenDiff.EQUAL ) {
+        System.arraycopy(this.owners, i, this.nextOwners, j, n);
+        i += n;
+        j += n;
+      } else if ( d.op == TokenDiff.DELETE ) {
+        for ( int k = i; k < i + n; ++k ) {
+          // survived the revisions between the one adding it and this one
+          this.retire(this.owners[k], r - this.owners[k] - 1);
+        }
+        this.removed[r] += n;
+        i += n;
+      } else {
+        Arrays.fill(this.nextOwners, j, j + n, r);
+        this.added[r] += n;
+        j += n;
+      }
+    }
+    // the owners of the new text become the current ones, and the old array is reused next time
+    int[] swap = this.owners;
+    this.owners = this.nextOwners;
+    this.nextOwners = swap;
+    this.tokens = cur;
+    this.textTokens[r] = cur.length;
+  }
+
+  /** Counts the tokens of the latest text, which have survived all the revisions after the ones adding them.
+   * Those added by one of the last <code>window</code> revisions may still be removed later, and are counted as censored rather than persisted.
+   */
+  public void finishPage() {
+    int last = this.revisions - 1;
+    for ( int k = 0; k < this.tokens.length; ++k ) {
+      int owner = this.owners[k];
+      if ( owner < 0 ) {
+        continue;
+      }
+      this.authored[owner]++;
+      this.tokenRevisions[owner] += last - owner;
+      if ( last - owner >= this.window ) {
+        this.persisted[owner]++;
+      } else {
+        this.censored[owner]++;
+      }
+    }
+  }
+
+  private void retire(int owner, int survived) {
+    if ( owner < 0 ) {
+      return;
+    }
+    this.tokenRevisions[owner] += survived;
+    if ( survived >= this.window ) {
+      this.persisted[owner]++;
+    }
+  }
+
+  /** The number of revisions given since the page started. */
+  public int size() {
+    return this.revisions;
+  }
+
+  public long getRevisionId(int i) {
+    return this.revisionIds[i];
+  }
+
+  public long getTimestamp(int i) {
+    return this.timestamps[i];
+  }
+
+  public long getUserId(int i) {
+    return this.userIds[i];
+  }
+
+  public String getUserName(int i) {
+    return this.userNames[i];
+  }
+
+  /** The number of tokens in the text of the revision. */
+  public int getTokens(int i) {
+    return this.textTokens[i];
+  }
+
+  /** The number of tokens the revision added. */
+  public int getAdded(int i) {
+    return this.added[i];
+  }
+
+  /** The number of tokens the revision removed. */
+  public int getRemoved(int i) {
+    return this.removed[i];
+  }
+
+  /** The number of tokens added by the revision which survived at least <code>window</code> later revisions. */
+  public int getPersisted(int i) {
+    return this.persisted[i];
+  }
+
+  /** The number of tokens added by the revision which are still in the latest text but have survived fewer than <code>window</code> later revisions. */
+  public int getCensored(int i) {
+    return this.censored[i];
+  }
+
+  /** The sum of the numbers of later revisions each token added by the revision has survived. */
+  public long getTokenRevisions(int i) {
+    return this.tokenRevisions[i];
+  }
+
+  /** The number of tokens in the latest text added by the revision. */
+  public int getAuthored(int i) {
+    return this.authored[i];
+  }
+
+  private void grow(int size) {
+    if ( size <= this.revisionIds.length ) {
+      return;
+    }
+    int n = Math.max(size, this.revisionIds.length * 2);
+    this.revisionIds = copy(this.revisionIds, n);
+    this.timestamps = copy(this.timestamps, n);
+    this.userIds = copy(this.userIds, n);
+    String[] names = new String[n];
+    System.arraycopy(this.userNames, 0, names, 0, this.userNames.length);
+    this.userNames = names;
+    this.textTokens = copy(this.textTokens, n);
+    this.added = copy(this.added, n);
+    this.removed = copy(this.removed, n);
+    this.persisted = copy(this.persisted, n);
+    this.censored = copy(this.censored, n);
+    this.tokenRevisions = copy(this.tokenRevisions, n);
+    this.authored = copy(this.authored, n);
+  }
+
+  private static long[] copy(long[] a, int n) {
+    long[] ret = new long[n];
+    System.arraycopy(a, 0, ret, 0, a.length);
+    return ret;
+  }
+
+  private static int[] copy(int[] a, int n) {
+    int[] ret = new int[n];
+    System.arraycopy(a, 0, ret, 0, a.length);
+    return ret;
+  }
+
+  private int[] intern(String text) {
+    List<String> list = WikiTokenizer.tokenize(text);
+    int[] ret = new int[list.size()];
+    for ( int i = 0; i < ret.length; ++i ) {
+      String t = list.get(i);
+      Integer id = this.tokenIds.get(t);
+      if ( id == null ) {
+        id = this.tokenIds.size();
+        this.tokenIds.put(t, id);
+      }
+      ret[i] = id;
+    }
+    return ret;
+  }
+}
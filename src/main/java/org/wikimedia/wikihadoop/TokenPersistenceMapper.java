@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+/** A mapper writing the token persistence and authorship of every revision, from the page-like elements of {@link StreamWikiDumpInputFormat}, with {@link TokenPersistence}.
+ * The records of a page come to one mapper in order, so the page is followed through its history in the mapper alone, and its rows are written when the next page begins.  No reducer is needed.
+ * Each row has the tab-separated fields rev_id, page_id, namespace, timestamp, user_id, user_text, tokens, added, removed, persisted, censored, token_revisions and authored, formatted as the diffdb rows are (see fileformat.rst).
+ * Batched records are accepted, and so are those with <code>previousRevision=true</code>, whose first revisions are only used as the text before a page resumed by watermarks.  All the revisions of a page need to be given, without a time window.
+ */
+public class TokenPersistenceMapper extends MapReduceBase implements Mapper<Text, Text, Text, NullWritable> {
+  private static final String KEY_PERSISTENCE_WINDOW = "org.wikimedia.wikihadoop.persistenceWindow";
+  private static final String COUNTER_GROUP = "TokenPersistenceMapper";
+
+  private TokenPersistence tracker;
+  private boolean previousRevision;
+  private long pageId;
+  private int namespace;
+  private String title;
+  private OutputCollector<Text, NullWritable> output;
+  private Reporter reporter;
+  private final Text row = new Text();
+
+  @Override public void configure(JobConf job) {
+    this.tracker = new TokenPersistence(job.getLong(RevisionDiffMapper.KEY_DIFF_TIMEOUT, 1000), job.getInt(KEY_PERSISTENCE_WINDOW, 7));
+    this.previousRevision = job.getBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, true);
+  }
+
+  public void map(Text key, Text value, OutputCollector<Text, NullWritable> output, Reporter reporter) throws IOException {
+    WikiPageRecord page = WikiPageRecord.parse(key.getBytes(), key.getLength());
+    if ( this.output == null || page.pageId != this.pageId || !equals(page.title, this.title) ) {
+      this.flush();
+      this.tracker.startPage();
+      this.pageId = page.pageId;
+      this.namespace = page.namespace;
+      this.title = page.title;
+    }
+    this.output = output;
+    this.reporter = reporter;
+    for ( int i = 0; i < page.revisions.size(); ++i ) {
+      WikiPageRecord.Revision rev = page.revisions.get(i);
+      if ( rev.beginningOfPage ) {
+        continue;
+      }
+      if ( this.previousRevision && i == 0 ) {
+        // already given with the record before, unless the page is resumed from a previous run
+        if ( this.tracker.size() == 0 ) {
+          this.tracker.setBase(rev.getText());
+        }
+        continue;
+      }
+      this.tracker.addRevision(rev);
+      // diffing a long history can take a while between records
+      reporter.progress();
+    }
+  }
+
+  /** Writes the rows of the page followed so far. */
+  private void flush() throws IOException {
+    if ( this.tracker.size() == 0 ) {
+      return;
+    }
+    this.tracker.finishPage();
+    for ( int i = 0; i < this.tracker.size(); ++i ) {
+      this.row.set(this.formatRow(i));
+      this.output.collect(this.row, NullWritable.get());
+    }
+    this.reporter.incrCounter(COUNTER_GROUP, "PAGES", 1);
+    this.reporter.incrCounter(COUNTER_GROUP, "REVISIONS", this.tracker.size());
+  }
+
+  private String formatRow(int i) {
+    TokenPersistence t = this.tracker;
+    StringBuilder buf = new StringBuilder();
+    buf.append(PyRepr.number(t.getRevisionId(i))).append('\t');
+    buf.append(PyRepr.number(this.pageId)).append('\t');
+    buf.append(this.namespace).append('\t');
+    buf.append(PyRepr.number(t.getTimestamp(i))).append('\t');
+    buf.append(PyRepr.number(t.getUserId(i))).append('\t');
+    buf.append(PyRepr.unicode(t.getUserName(i))).append('\t');
+    buf.append(t.getTokens(i)).append('\t');
+    buf.append(t.getAdded(i)).append('\t');
+    buf.append(t.getRemoved(i)).append('\t');
+    buf.append(t.getPersisted(i)).append('\t');
+    buf.append(t.getCensored(i)).append('\t');
+    buf.append(t.getTokenRevisions(i)).append('\t');
+    buf.append(t.getAuthored(i));
+    return buf.toString();
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null: a.equals(b);
+  }
+
+  @Override public void close() throws IOException {
+    this.flush();
+  }
+}
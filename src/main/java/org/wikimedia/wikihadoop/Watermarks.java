@@ -0,0 +1,150 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/** The last revision id processed for each page by a previous run, for processing only the revisions added since.
+ * A watermark file is binary: a magic number, the number of pages and the smallest and largest page ids, followed by pairs of a page id and a revision id.  Each record reader writes one file for its split, and a directory of them is read back as a whole.  A file is loaded only when a page within its page ids is looked up, so that a reader holds little more than the watermarks of the pages it reads.
+ */
+public class Watermarks {
+  private static final int MAGIC = 0x574b574d;
+
+  private static class Part {
+    Path path;
+    long minPageId;
+    long maxPageId;
+    /** The largest maxPageId of this part and the ones before it. */
+    long coveredPageId;
+    boolean loaded;
+  }
+
+  private final FileSystem fs;
+  private final List<Part> parts = new ArrayList<Part>();
+  private final LongLongHashMap marks = new LongLongHashMap(1024, -1L);
+
+  /** Opens a watermark file, or all the watermark files in a directory except the hidden ones. */
+  public Watermarks(FileSystem fs, Path path) throws IOException {
+    this.fs = fs;
+    FileStatus[] files = fs.isFile(path) ? new FileStatus[]{fs.getFileStatus(path)}: fs.listStatus(path);
+    for ( FileStatus f: files ) {
+      String name = f.getPath().getName();
+      if ( f.isDir() || name.startsWith("_") || name.startsWith(".") ) {
+        continue;
+      }
+      DataInputStream in = fs.open(f.getPath());
+      try {
+        if ( in.readInt() != MAGIC ) {
+          throw new IOException("not a watermark file: " + f.getPath());
+        }
+        in.readLong();
+        Part part = new Part();
+        part.path = f.getPath();
+        part.minPageId = in.readLong();
+        part.maxPageId = in.readLong();
+        this.parts.add(part);
+      } finally {
+        in.close();
+      }
+    }
+    Collections.sort(this.parts, new Comparator<Part>() {
+        public int compare(Part a, Part b) {
+          return a.minPageId < b.minPageId ? -1: a.minPageId > b.minPageId ? 1: 0;
+        }
+      });
+    long covered = Long.MIN_VALUE;
+    for ( Part part: this.parts ) {
+      covered = Math.max(covered, part.maxPageId);
+      part.coveredPageId = covered;
+    }
+  }
+
+  /** Returns the last revision id processed for the page, or -1. */
+  public long get(long pageId) throws IOException {
+    // the last part beginning at or before the page
+    int lo = 0;
+    int hi = this.parts.size() - 1;
+    while ( lo <= hi ) {
+      int mid = (lo + hi) >>> 1;
+      if ( this.parts.get(mid).minPageId <= pageId ) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    // parts overlap only when a page is found in more than one split, so this goes back a few parts at most
+    for ( int i = hi; i >= 0 && this.parts.get(i).coveredPageId >= pageId; --i ) {
+      Part part = this.parts.get(i);
+      if ( !part.loaded && pageId <= part.maxPageId ) {
+        this.load(part);
+      }
+    }
+    return this.marks.get(pageId);
+  }
+
+  private void load(Part part) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(this.fs.open(part.path)));
+    try {
+      in.readInt();
+      long n = in.readLong();
+      in.readLong();
+      in.readLong();
+      for ( long i = 0; i < n; ++i ) {
+        long page = in.readLong();
+        long rev = in.readLong();
+        // pages found in more than one split keep the largest
+        if ( rev > this.marks.get(page) ) {
+          this.marks.put(page, rev);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    part.loaded = true;
+  }
+
+  /** Writes a watermark file.  It is written under a hidden name and renamed when complete, so that an attempt failing halfway leaves no truncated file to be read. */
+  public static void write(FileSystem fs, Path path, LongLongHashMap marks) throws IOException {
+    long[] pages = marks.keys();
+    Arrays.sort(pages);
+    Path tmp = new Path(path.getParent(), "_" + path.getName() + "-" + Long.toHexString(System.nanoTime()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeLong(pages.length);
+      out.writeLong(pages.length > 0 ? pages[0]: 0);
+      out.writeLong(pages.length > 0 ? pages[pages.length - 1]: -1);
+      for ( long page: pages ) {
+        out.writeLong(page);
+        out.writeLong(marks.get(page));
+      }
+    } finally {
+      out.close();
+    }
+    // another attempt at the same split may have written it already
+    fs.delete(path, false);
+    if ( !fs.rename(tmp, path) ) {
+      fs.delete(tmp, false);
+      throw new IOException("cannot rename " + tmp + " to " + path);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/** {@link StreamWikiDumpInputFormat} for the <code>org.apache.hadoop.mapreduce</code> API.
+ * Splits are made and read by {@link StreamWikiDumpInputFormat} with the same settings, and they are given to the framework as they are, since the splits of the old API are also splits of the new one.
+ */
+public class WikiDumpInputFormat extends FileInputFormat<Text,Text> {
+
+  @Override public List<InputSplit> getSplits(JobContext context) throws IOException {
+    JobConf job = new JobConf(context.getConfiguration());
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    List<InputSplit> ret = new ArrayList<InputSplit>();
+    for ( org.apache.hadoop.mapred.InputSplit split: format.getSplits(job, job.getNumMapTasks()) ) {
+      ret.add((FileSplit)split);
+    }
+    return ret;
+  }
+
+  @Override public RecordReader<Text,Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    return new DumpRecordReader();
+  }
+
+  /** Opens a record reader of the old API over a split, reporting to the context. */
+  static org.apache.hadoop.mapred.RecordReader<Text,Text> open(FileSplit split, TaskAttemptContext context) throws IOException {
+    JobConf job = new JobConf(context.getConfiguration());
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    return format.getRecordReader(split, job, new ContextReporter(context, split));
+  }
+
+  private static class DumpRecordReader extends RecordReader<Text,Text> {
+    private org.apache.hadoop.mapred.RecordReader<Text,Text> reader;
+    private final Text key = new Text();
+    private final Text value = new Text();
+
+    @Override public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      this.reader = open((FileSplit)split, context);
+    }
+
+    @Override public boolean nextKeyValue() throws IOException {
+      return this.reader.next(this.key, this.value);
+    }
+
+    @Override public Text getCurrentKey() {
+      return this.key;
+    }
+
+    @Override public Text getCurrentValue() {
+      return this.value;
+    }
+
+    @Override public float getProgress() throws IOException {
+      return this.reader.getProgress();
+    }
+
+    @Override public void close() throws IOException {
+      if ( this.reader != null ) {
+        this.reader.close();
+      }
+    }
+  }
+
+  /** Passes the status and the counters of a record reader to a task context of the new API, and tells the split being read. */
+  static class ContextReporter implements Reporter {
+    private final TaskAttemptContext context;
+    private final FileSplit split;
+
+    ContextReporter(TaskAttemptContext context, FileSplit split) {
+      this.context = context;
+      this.split = split;
+    }
+
+    public void setStatus(String status) {
+      this.context.setStatus(status);
+    }
+
+    public void progress() {
+      this.context.progress();
+    }
+
+    public float getProgress() {
+      return 0;
+    }
+
+    public Counters.Counter getCounter(Enum<?> name) {
+      return null;
+    }
+
+    public Counters.Counter getCounter(String group, String name) {
+      return null;
+    }
+
+    public void incrCounter(Enum<?> key, long amount) {
+      increment(this.context.getCounter(key), amount);
+    }
+
+    public void incrCounter(String group, String counter, long amount) {
+      increment(this.context.getCounter(group, counter), amount);
+    }
+
+    private static void increment(Counter counter, long amount) {
+      // contexts made outside of tasks may have no counters
+      if ( counter != null ) {
+        counter.increment(amount);
+      }
+    }
+
+    public org.apache.hadoop.mapred.InputSplit getInputSplit() {
+      return this.split;
+    }
+  }
+}
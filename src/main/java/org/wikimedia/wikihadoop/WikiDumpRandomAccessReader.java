@@ -0,0 +1,237 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+
+/** Looks up the revisions of single pages of a dump file, using its {@link PageOffsetIndex}.
+ * A lookup decompresses the dump only from the indexed offset up to the end of the page, and returns the page in the same records as {@link StreamWikiDumpInputFormat} writes with its default settings.
+ *
+ * The regions decoded by recent lookups are kept with their input streams open, so that looking up a page again, or a page after it in the same region, reads little or nothing.
+ */
+public class WikiDumpRandomAccessReader implements Closeable {
+  private static final String KEY_CACHE_REGIONS = "org.wikimedia.wikihadoop.randomAccessCache";
+  private static final String KEY_MAX_REGION_BYTES = "org.wikimedia.wikihadoop.randomAccessMaxBytes";
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private static final byte[] pageBegin     = XmlFields.ascii("<page>");
+  private static final byte[] pageEnd       = XmlFields.ascii("</page>");
+  private static final byte[] revisionBegin = XmlFields.ascii("<revision");
+  private static final byte[] revisionEnd   = XmlFields.ascii("</revision>");
+  private static final byte[] idElement     = XmlFields.ascii("id");
+  private static final byte[] pageFooter    = XmlFields.ascii("\n</page>\n");
+  private static final byte[] firstDummyRevision = XmlFields.ascii(" beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n");
+
+  private final FileSystem fs;
+  private final Path path;
+  private final CompressionCodecFactory codecs;
+  private final PageOffsetIndex index;
+  private final boolean seekable;
+  private final boolean recordPrevRevision;
+  private final int maxRegionBytes;
+  private final Map<Long,Region> regions;
+
+  public WikiDumpRandomAccessReader(Configuration conf, Path path, Path indexDir) throws IOException {
+    this.fs = path.getFileSystem(conf);
+    this.path = path;
+    this.codecs = new CompressionCodecFactory(conf);
+    long length = this.fs.getFileStatus(path).getLen();
+    this.index = PageOffsetIndex.forFile(indexDir.getFileSystem(conf), indexDir, path, length);
+    if ( this.index == null ) {
+      throw new IOException("no page offset index of " + path + " in " + indexDir);
+    }
+    CompressionCodec codec = this.codecs.getCodec(path);
+    this.seekable = codec == null || codec instanceof SplittableCompressionCodec;
+    this.recordPrevRevision = conf.getBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, true);
+    this.maxRegionBytes = conf.getInt(KEY_MAX_REGION_BYTES, 1 << 28);
+    final int cacheRegions = conf.getInt(KEY_CACHE_REGIONS, 4);
+    this.regions = new LinkedHashMap<Long,Region>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long,Region> eldest) {
+        if ( size() > cacheRegions ) {
+          eldest.getValue().close();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Returns the records of the page, or null if the page is not in the dump. */
+  public synchronized List<Text> getRevisions(long pageId) throws IOException {
+    long offset = this.index.getOffset(pageId);
+    if ( offset < 0 ) {
+      return null;
+    }
+    if ( !this.seekable ) {
+      // a stream of a non-splittable codec can only be read from the beginning
+      offset = 0;
+    }
+    Region region = this.regions.get(offset);
+    if ( region == null ) {
+      region = new Region(offset);
+      this.regions.put(offset, region);
+    }
+    int[] page = region.find(pageId);
+    if ( page == null ) {
+      return null;
+    }
+    return records(region.data.getData(), page[0], page[1]);
+  }
+
+  /** Splits the page in data[from, to) into records, as the record reader does. */
+  private List<Text> records(byte[] data, int from, int to) throws IOException {
+    List<Text> ret = new ArrayList<Text>();
+    int headerEnd = XmlFields.indexOf(data, from, to, revisionBegin);
+    if ( headerEnd < 0 ) {
+      return ret;
+    }
+    headerEnd += revisionBegin.length;
+    DataOutputBuffer buf = new DataOutputBuffer();
+    int prevFrom = -1;
+    int prevTo = -1;
+    int pos = headerEnd;
+    while ( true ) {
+      int end = XmlFields.indexOf(data, pos, to, revisionEnd);
+      if ( end < 0 ) {
+        break;
+      }
+      end += revisionEnd.length;
+      buf.reset();
+      buf.write(data, from, headerEnd - from);
+      if ( this.recordPrevRevision ) {
+        if ( prevFrom < 0 ) {
+          buf.write(firstDummyRevision);
+        } else {
+          buf.write(data, prevFrom, prevTo - prevFrom);
+        }
+        buf.write(revisionBegin);
+      }
+      buf.write(data, pos, end - pos);
+      buf.write(pageFooter);
+      Text record = new Text();
+      record.set(buf.getData(), 0, buf.getLength());
+      ret.add(record);
+      prevFrom = pos;
+      prevTo = end;
+      pos = XmlFields.indexOf(data, end, to, revisionBegin);
+      if ( pos < 0 ) {
+        break;
+      }
+      pos += revisionBegin.length;
+    }
+    return ret;
+  }
+
+  public synchronized void close() {
+    for ( Region region: this.regions.values() ) {
+      region.close();
+    }
+    this.regions.clear();
+  }
+
+  /** The bytes decoded from an offset of the dump, with the pages located in them so far. */
+  private class Region {
+    private final long offset;
+    private final DataOutputBuffer data = new DataOutputBuffer();
+    private final Map<Long,int[]> pages = new HashMap<Long,int[]>();
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private SeekableInputStream in;
+    private int scanned = 0;
+
+    Region(long offset) throws IOException {
+      this.offset = offset;
+      this.in = SeekableInputStream.getInstance(path, offset, index.getLength(), fs, codecs);
+    }
+
+    /** Returns the beginning and the end of the page, reading further as needed. */
+    int[] find(long pageId) throws IOException {
+      int[] page = this.pages.get(pageId);
+      while ( page == null ) {
+        int begin = this.indexOf(pageBegin, this.scanned);
+        if ( begin < 0 ) {
+          return null;
+        }
+        int end = this.indexOf(pageEnd, begin);
+        if ( end < 0 ) {
+          return null;
+        }
+        end += pageEnd.length;
+        this.scanned = end;
+        byte[] bytes = this.data.getData();
+        int headerEnd = XmlFields.indexOf(bytes, begin, end, revisionBegin);
+        long id = XmlFields.longElement(bytes, begin, headerEnd < 0 ? end: headerEnd, idElement);
+        if ( !this.pages.containsKey(id) ) {
+          this.pages.put(id, new int[]{begin, end});
+        }
+        if ( id == pageId ) {
+          page = this.pages.get(id);
+        }
+      }
+      return page;
+    }
+
+    /** Finds the pattern at or after from, decoding more of the dump until it is found or the dump ends. */
+    private int indexOf(byte[] pattern, int from) throws IOException {
+      int i;
+      while ( (i = XmlFields.indexOf(this.data.getData(), from, this.data.getLength(), pattern)) < 0 ) {
+        // the pattern may straddle the end of the decoded bytes
+        from = Math.max(from, this.data.getLength() - pattern.length + 1);
+        if ( !this.fill() ) {
+          return -1;
+        }
+      }
+      return i;
+    }
+
+    private boolean fill() throws IOException {
+      if ( this.in == null ) {
+        return false;
+      }
+      if ( this.data.getLength() >= maxRegionBytes ) {
+        throw new IOException("more than " + maxRegionBytes + " bytes decoded from " + this.offset + " of " + path);
+      }
+      int n = this.in.read(this.chunk);
+      if ( n < 0 ) {
+        this.close();
+        return false;
+      }
+      this.data.write(this.chunk, 0, n);
+      return true;
+    }
+
+    void close() {
+      if ( this.in != null ) {
+        try {
+          this.in.close();
+        } catch (IOException e) {
+          // nothing more is read from it anyway
+        }
+        this.in = null;
+      }
+    }
+  }
+}
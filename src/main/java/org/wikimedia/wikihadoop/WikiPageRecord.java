@@ -0,0 +1,192 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.IOException;
+import java.util.*;
+
+/** The fields of a page-like element written by {@link StreamWikiDumpInputFormat}.
+ * Only the fields used by the Java mappers are extracted.  Missing numbers are -1.
+ */
+public class WikiPageRecord {
+  public static class Revision {
+    public long id;
+    public long timestamp;
+    public String comment;
+    public boolean minor;
+    public long userId;
+    public String userName;
+    /** The text, or null while it is compressed; see {@link #getText}. */
+    public String text;
+    /** The length of the unescaped text in UTF-8 bytes given by the <code>bytes</code> attribute, such as of text skipped by the record reader, or -1; see {@link #getTextBytes}. */
+    public long textBytes;
+    /** True for the empty revision written before the first revision of a page. */
+    public boolean beginningOfPage;
+    private byte[] compressedText;
+
+    /** Returns the text, decompressing it on the first call when the record reader has compressed it. */
+    public String getText() throws IOException {
+      if ( this.text == null && this.compressedText != null ) {
+        byte[] raw = TextCodec.decompress(this.compressedText, 0, this.compressedText.length);
+        this.text = XmlFields.text(raw, 0, raw.length);
+        this.compressedText = null;
+      }
+      return this.text;
+    }
+
+    /** Returns the length of the text in UTF-8 bytes, taken from the <code>bytes</code> attribute when there is one, as in the dumps. */
+    public long getTextBytes() throws IOException {
+      if ( this.textBytes >= 0 ) {
+        return this.textBytes;
+      }
+      return this.getText().getBytes("UTF-8").length;
+    }
+  }
+
+  /** The namespaces of the English Wikipedia, used for the dumps without <code>&lt;ns&gt;</code>. */
+  private static final Map<String,Integer> NAMESPACES = new HashMap<String,Integer>();
+  static {
+    String[] names = {"Media", "Special", "Talk", "User", "User talk", "Wikipedia", "Wikipedia talk", "File", "File talk", "MediaWiki", "MediaWiki talk", "Template", "Template talk", "Help", "Help talk", "Category", "Category talk", "Portal", "Portal talk", "Book", "Book talk"};
+    int[] keys = {-2, -1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 100, 101, 108, 109};
+    for ( int i = 0; i < names.length; ++i ) {
+      NAMESPACES.put(names[i], keys[i]);
+    }
+  }
+
+  private static final byte[] revisionElement    = XmlFields.ascii("revision");
+  private static final byte[] titleElement       = XmlFields.ascii("title");
+  private static final byte[] nsElement          = XmlFields.ascii("ns");
+  private static final byte[] idElement          = XmlFields.ascii("id");
+  private static final byte[] timestampElement   = XmlFields.ascii("timestamp");
+  private static final byte[] commentElement     = XmlFields.ascii("comment");
+  private static final byte[] minorElement       = XmlFields.ascii("minor");
+  private static final byte[] contributorElement = XmlFields.ascii("contributor");
+  private static final byte[] usernameElement    = XmlFields.ascii("username");
+  private static final byte[] ipElement          = XmlFields.ascii("ip");
+  private static final byte[] textElement        = XmlFields.ascii("text");
+  private static final byte[] beginningAttribute = XmlFields.ascii("beginningofpage=");
+  private static final byte[] bytesAttribute     = XmlFields.ascii("bytes=\"");
+
+  public long pageId;
+  public int namespace;
+  /** The title without the namespace prefix. */
+  public String title;
+  public final List<Revision> revisions = new ArrayList<Revision>();
+
+  public static WikiPageRecord parse(byte[] data, int length) {
+    WikiPageRecord page = new WikiPageRecord();
+    int[] first = XmlFields.element(data, 0, length, revisionElement);
+    int headerEnd = first == null ? length: first[XmlFields.TAG_START];
+    page.pageId = XmlFields.longElement(data, 0, headerEnd, idElement);
+    String title = XmlFields.stringElement(data, 0, headerEnd, titleElement);
+    page.namespace = namespace(data, 0, headerEnd, title);
+    int colon = title == null ? -1: title.indexOf(':');
+    page.title = page.namespace != 0 && colon >= 0 ? title.substring(colon + 1): title;
+
+    int pos = headerEnd;
+    int[] e;
+    while ( (e = XmlFields.element(data, pos, length, revisionElement)) != null ) {
+      page.revisions.add(parseRevision(data, e));
+      pos = e[XmlFields.ELEMENT_END];
+    }
+    return page;
+  }
+
+  /** Returns the namespace of the page whose header is in data[from, to), taken from <code>&lt;ns&gt;</code> or, when it is missing, from the prefix of the title. */
+  public static int namespace(byte[] data, int from, int to) {
+    return namespace(data, from, to, null);
+  }
+
+  private static int namespace(byte[] data, int from, int to, String title) {
+    long ns = XmlFields.longElement(data, from, to, nsElement);
+    if ( ns >= 0 ) {
+      return (int)ns;
+    }
+    if ( title == null ) {
+      title = XmlFields.stringElement(data, from, to, titleElement);
+    }
+    int colon = title == null ? -1: title.indexOf(':');
+    if ( colon >= 0 && NAMESPACES.containsKey(title.substring(0, colon)) ) {
+      return NAMESPACES.get(title.substring(0, colon));
+    }
+    return 0;
+  }
+
+  private static Revision parseRevision(byte[] data, int[] e) {
+    Revision rev = new Revision();
+    int from = e[XmlFields.CONTENT_START];
+    int to = e[XmlFields.CONTENT_END];
+    rev.beginningOfPage = XmlFields.indexOf(data, e[XmlFields.TAG_START], from, beginningAttribute) >= 0;
+    rev.id = XmlFields.longElement(data, from, to, idElement);
+    rev.timestamp = parseTimestamp(XmlFields.stringElement(data, from, to, timestampElement));
+    rev.minor = XmlFields.element(data, from, to, minorElement) != null;
+
+    int[] comment = XmlFields.element(data, from, to, commentElement);
+    if ( comment != null && comment[XmlFields.CONTENT_START] != comment[XmlFields.ELEMENT_END] ) {
+      rev.comment = XmlFields.text(data, comment[XmlFields.CONTENT_START], comment[XmlFields.CONTENT_END]);
+    }
+
+    int[] contributor = XmlFields.element(data, from, to, contributorElement);
+    rev.userId = -1;
+    if ( contributor != null ) {
+      int cfrom = contributor[XmlFields.CONTENT_START];
+      int cto = contributor[XmlFields.CONTENT_END];
+      rev.userId = XmlFields.longElement(data, cfrom, cto, idElement);
+      rev.userName = XmlFields.stringElement(data, cfrom, cto, usernameElement);
+      if ( rev.userName == null ) {
+        rev.userName = XmlFields.stringElement(data, cfrom, cto, ipElement);
+      }
+    }
+
+    int[] text = XmlFields.element(data, from, to, textElement);
+    if ( text != null && TextCodec.isCompressed(data, text[XmlFields.TAG_START], text[XmlFields.CONTENT_START]) ) {
+      rev.compressedText = new byte[text[XmlFields.CONTENT_END] - text[XmlFields.CONTENT_START]];
+      System.arraycopy(data, text[XmlFields.CONTENT_START], rev.compressedText, 0, rev.compressedText.length);
+    } else {
+      rev.text = text == null ? "": XmlFields.text(data, text[XmlFields.CONTENT_START], text[XmlFields.CONTENT_END]);
+    }
+    rev.textBytes = text == null ? -1: XmlFields.longAttribute(data, text[XmlFields.TAG_START], text[XmlFields.CONTENT_START], bytesAttribute);
+    return rev;
+  }
+
+  /** Converts a timestamp such as 2011-04-05T12:34:56Z into seconds since the epoch, or -1. */
+  public static long parseTimestamp(String ts) {
+    if ( ts == null || ts.length() < 19 ) {
+      return -1;
+    }
+    try {
+      int y = Integer.parseInt(ts.substring(0, 4));
+      int m = Integer.parseInt(ts.substring(5, 7));
+      int d = Integer.parseInt(ts.substring(8, 10));
+      int hh = Integer.parseInt(ts.substring(11, 13));
+      int mm = Integer.parseInt(ts.substring(14, 16));
+      int ss = Integer.parseInt(ts.substring(17, 19));
+      // days from 1970-01-01 in the proleptic Gregorian calendar
+      if ( m <= 2 ) {
+        y -= 1;
+      }
+      long era = (y >= 0 ? y: y - 399) / 400;
+      long yoe = y - era * 400;
+      long doy = (153 * (m + (m > 2 ? -3: 9)) + 2) / 5 + d - 1;
+      long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+      long days = era * 146097 + doe - 719468;
+      return days * 86400 + hh * 3600 + mm * 60 + ss;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
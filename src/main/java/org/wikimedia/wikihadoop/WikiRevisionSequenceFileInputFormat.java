@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+/** Reads the SequenceFiles written by {@link RevisionCacheTool} into the same records as {@link StreamWikiDumpInputFormat}.
+ * <code>previousRevision</code>, <code>namespaces</code>, <code>minTimestamp</code> and <code>maxTimestamp</code> apply as to the dumps.
+ * Since a record may refer to the records before it, a split starts from the first keyframe after its first sync mark, and reads past its end up to the next keyframe.
+ */
+public class WikiRevisionSequenceFileInputFormat extends FileInputFormat<Text,Text> {
+  private static final byte[] revisionBegin = XmlFields.ascii("<revision");
+  private static final byte[] pageFooter = XmlFields.ascii("\n</page>\n");
+  private static final byte[] firstDummyRevision = XmlFields.ascii(" beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n");
+
+  public RecordReader<Text,Text> getRecordReader(InputSplit genericSplit, JobConf job, Reporter reporter) throws IOException {
+    FileSplit split = (FileSplit) genericSplit;
+    reporter.setStatus(split.toString());
+    return new RevisionRecordReader(split, job);
+  }
+
+  private static class RevisionRecordReader implements RecordReader<Text,Text> {
+    private final SequenceFile.Reader in;
+    private final long start;
+    private final long end;
+    private boolean started;
+    private boolean pastEnd;
+    private final boolean recordPrevRevision;
+    private final BlockStats.Filter filter;
+    private final PageRevisionKey key = new PageRevisionKey();
+    private final RevisionWritable value = new RevisionWritable();
+    private final DataOutputBuffer header = new DataOutputBuffer();
+    private final DataOutputBuffer previous = new DataOutputBuffer();
+    private final DataOutputBuffer current = new DataOutputBuffer();
+    private final DataOutputBuffer record = new DataOutputBuffer();
+
+    RevisionRecordReader(FileSplit split, JobConf job) throws IOException {
+      Path path = split.getPath();
+      this.in = new SequenceFile.Reader(path.getFileSystem(job), path, job);
+      this.start = split.getStart();
+      this.end = split.getStart() + split.getLength();
+      if ( this.start > 0 ) {
+        this.in.sync(this.start);
+      }
+      this.started = false;
+      this.pastEnd = false;
+      this.recordPrevRevision = job.getBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, true);
+      this.filter = StreamWikiDumpInputFormat.getFilter(job);
+    }
+
+    public boolean next(Text k, Text v) throws IOException {
+      while ( true ) {
+        long pos = this.in.getPosition();
+        if ( !this.in.next(this.key, this.value) ) {
+          return false;
+        }
+        // the records from the first sync mark after the end belong to the next split, once it reaches a keyframe
+        if ( pos >= this.end && this.in.syncSeen() ) {
+          this.pastEnd = true;
+        }
+        if ( this.value.isKeyframe() ) {
+          if ( this.pastEnd ) {
+            return false;
+          }
+          this.started = true;
+        } else if ( !this.started ) {
+          continue;
+        }
+        if ( this.value.has(RevisionWritable.HEADER) ) {
+          copy(this.value.getHeader(), this.header);
+        }
+        if ( this.value.has(RevisionWritable.BEGINNING) ) {
+          this.previous.reset();
+          this.previous.write(firstDummyRevision);
+        } else if ( this.value.has(RevisionWritable.PREVIOUS) ) {
+          copy(this.value.getPrevious(), this.previous);
+        }
+        // otherwise the previous revision is the one of the record before
+        DataOutputBuffer revision = this.value.getRevision();
+        if ( this.value.has(RevisionWritable.DELTA) ) {
+          this.current.reset();
+          ByteDelta.decode(this.previous.getData(), this.previous.getLength(), revision.getData(), 0, revision.getLength(), this.current);
+          revision = this.current;
+        }
+        boolean selected = this.filter == null
+          || (this.filter.matchesNamespace(this.value.getNamespace()) && this.filter.matchesTimestamp(this.value.getTimestamp()));
+        if ( selected ) {
+          this.record.reset();
+          this.record.write(this.header.getData(), 0, this.header.getLength());
+          if ( this.recordPrevRevision ) {
+            this.record.write(this.previous.getData(), 0, this.previous.getLength());
+            this.record.write(revisionBegin);
+          }
+          this.record.write(revision.getData(), 0, revision.getLength());
+          this.record.write(pageFooter);
+        }
+        copy(revision, this.previous);
+        if ( selected ) {
+          k.set(this.record.getData(), 0, this.record.getLength());
+          v.set("");
+          return true;
+        }
+      }
+    }
+
+    private static void copy(DataOutputBuffer from, DataOutputBuffer to) throws IOException {
+      to.reset();
+      to.write(from.getData(), 0, from.getLength());
+    }
+
+    public Text createKey() {
+      return new Text();
+    }
+
+    public Text createValue() {
+      return new Text();
+    }
+
+    public long getPos() throws IOException {
+      return this.in.getPosition();
+    }
+
+    public float getProgress() throws IOException {
+      if ( this.end == this.start ) {
+        return 1.0f;
+      }
+      return Math.min(1.0f, (float)(this.in.getPosition() - this.start) / (this.end - this.start));
+    }
+
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+}
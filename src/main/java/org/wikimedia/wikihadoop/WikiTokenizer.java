@@ -0,0 +1,89 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.util.*;
+
+/** Splits wikitext into the tokens used by the differ.
+ * This gives the same tokens as the regular expression of <code>tokenize</code> in <code>python/revision_differ.py</code>, whose alternatives are tried in order:
+ * words (ASCII only, as Python 2 does without re.UNICODE), <code>[[</code>, <code>]]</code>, <code>{{</code>, <code>}}</code>, line breaks, spaces, HTML entities, <code>'''</code>, <code>''</code>, <code>=</code>s, <code>{|</code>, <code>|}</code>, <code>|-</code> and any other single character.
+ */
+public class WikiTokenizer {
+  public static List<String> tokenize(String text) {
+    List<String> ret = new ArrayList<String>();
+    int len = text.length();
+    int i = 0;
+    while ( i < len ) {
+      int end = tokenEnd(text, i, len);
+      ret.add(text.substring(i, end));
+      i = end;
+    }
+    return ret;
+  }
+
+  /** Returns the end of the token beginning at i. */
+  public static int tokenEnd(String text, int i, int len) {
+    char c = text.charAt(i);
+    char d = i + 1 < len ? text.charAt(i + 1): 0;
+    if ( isWord(c) ) {
+      return run(text, i, len, c, true);
+    }
+    switch (c) {
+    case '[':
+      return d == '[' ? i + 2: i + 1;
+    case ']':
+      return d == ']' ? i + 2: i + 1;
+    case '{':
+      return d == '{' || d == '|' ? i + 2: i + 1;
+    case '}':
+      return d == '}' ? i + 2: i + 1;
+    case '\n':
+    case ' ':
+    case '=':
+      return run(text, i, len, c, false);
+    case '&': {
+      int j = i + 1;
+      while ( j < len && isWord(text.charAt(j)) ) {
+        ++j;
+      }
+      return j > i + 1 && j < len && text.charAt(j) == ';' ? j + 1: i + 1;
+    }
+    case '\'':
+      if ( d == '\'' ) {
+        return i + 2 < len && text.charAt(i + 2) == '\'' ? i + 3: i + 2;
+      }
+      return i + 1;
+    case '|':
+      return d == '}' || d == '-' ? i + 2: i + 1;
+    default:
+      // a character outside the BMP is one token, as on the wide Python builds the differ runs on
+      return i + Character.charCount(text.codePointAt(i));
+    }
+  }
+
+  private static int run(String text, int i, int len, char c, boolean word) {
+    int j = i + 1;
+    while ( j < len && (word ? isWord(text.charAt(j)): text.charAt(j) == c) ) {
+      ++j;
+    }
+    return j;
+  }
+
+  private static boolean isWord(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+/** Locates elements in raw dump bytes without parsing the whole XML.
+ * Like the rest of WikiHadoop, this only understands the flat element layout of Wikipedia dumps.
+ */
+public class XmlFields {
+  /** Offsets of an element found by {@link #element}. */
+  public static final int TAG_START = 0;
+  public static final int CONTENT_START = 1;
+  public static final int CONTENT_END = 2;
+  public static final int ELEMENT_END = 3;
+
+  public static byte[] ascii(String str) {
+    byte[] ret = new byte[str.length()];
+    for ( int i = 0; i < ret.length; ++i ) {
+      ret[i] = (byte)str.charAt(i);
+    }
+    return ret;
+  }
+
+  public static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+    int last = to - pattern.length;
+    OUTER:
+    for ( int i = from; i <= last; ++i ) {
+      for ( int j = 0; j < pattern.length; ++j ) {
+        if ( data[i + j] != pattern[j] ) {
+          continue OUTER;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /** Finds the first element with the given name in data[from, to).
+   * @return the offsets indexed by {@link #TAG_START}, {@link #CONTENT_START}, {@link #CONTENT_END} and {@link #ELEMENT_END}, or null when not found.  The content of an empty-element tag is empty.
+   */
+  public static int[] element(byte[] data, int from, int to, byte[] name) {
+    int i = from;
+    while ( true ) {
+      int tag = indexOf(data, i, to, name);
+      if ( tag < 0 ) {
+        return null;
+      }
+      int after = tag + name.length;
+      if ( tag == from || data[tag - 1] != '<' || after >= to
+           || !(data[after] == '>' || data[after] == ' ' || data[after] == '/') ) {
+        i = tag + 1;
+        continue;
+      }
+      int close = after;
+      while ( close < to && data[close] != '>' ) {
+        ++close;
+      }
+      if ( close >= to ) {
+        return null;
+      }
+      if ( data[close - 1] == '/' ) {
+        return new int[]{tag - 1, close + 1, close + 1, close + 1};
+      }
+      int end = close + 1;
+      while ( true ) {
+        end = indexOf(data, end, to, name);
+        if ( end < 0 ) {
+          return null;
+        }
+        if ( data[end - 1] == '/' && data[end - 2] == '<' && end + name.length < to && data[end + name.length] == '>' ) {
+          return new int[]{tag - 1, close + 1, end - 2, end + name.length + 1};
+        }
+        ++end;
+      }
+    }
+  }
+
+  /** Parses a non-negative decimal number surrounded by optional spaces.
+   * @return the number, or -1 when data[from, to) is not a number
+   */
+  public static long parseLong(byte[] data, int from, int to) {
+    while ( from < to && isSpace(data[from]) ) {
+      ++from;
+    }
+    while ( to > from && isSpace(data[to - 1]) ) {
+      --to;
+    }
+    if ( from == to ) {
+      return -1;
+    }
+    long ret = 0;
+    for ( int i = from; i < to; ++i ) {
+      int d = data[i] - '0';
+      if ( d < 0 || d > 9 ) {
+        return -1;
+      }
+      ret = ret * 10 + d;
+    }
+    return ret;
+  }
+
+  /** Returns the number in the first element with the given name, or -1. */
+  public static long longElement(byte[] data, int from, int to, byte[] name) {
+    int[] e = element(data, from, to, name);
+    if ( e == null ) {
+      return -1;
+    }
+    return parseLong(data, e[CONTENT_START], e[CONTENT_END]);
+  }
+
+  /** Returns the number in the first attribute starting with the given pattern, such as <code>bytes="</code>, or -1. */
+  public static long longAttribute(byte[] data, int from, int to, byte[] pattern) {
+    int i = indexOf(data, from, to, pattern);
+    if ( i < 0 ) {
+      return -1;
+    }
+    int begin = i + pattern.length;
+    int end = begin;
+    while ( end < to && data[end] != '"' ) {
+      ++end;
+    }
+    return parseLong(data, begin, end);
+  }
+
+  /** Returns the text in the first element with the given name with XML entities resolved, or null. */
+  public static String stringElement(byte[] data, int from, int to, byte[] name) {
+    int[] e = element(data, from, to, name);
+    if ( e == null ) {
+      return null;
+    }
+    return text(data, e[CONTENT_START], e[CONTENT_END]);
+  }
+
+  /** Decodes data[from, to) as UTF-8 and resolves the XML entities in it. */
+  public static String text(byte[] data, int from, int to) {
+    String str;
+    try {
+      str = new String(data, from, to - from, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    int amp = str.indexOf('&');
+    if ( amp < 0 ) {
+      return str;
+    }
+    StringBuilder buf = new StringBuilder(str.length());
+    int i = 0;
+    while ( amp >= 0 ) {
+      buf.append(str, i, amp);
+      int semi = str.indexOf(';', amp);
+      String entity = semi < 0 ? null: str.substring(amp + 1, semi);
+      int c = entity == null ? -1: entity(entity);
+      if ( c < 0 || c > Character.MAX_CODE_POINT ) {
+        buf.append('&');
+        i = amp + 1;
+      } else {
+        buf.appendCodePoint(c);
+        i = semi + 1;
+      }
+      amp = str.indexOf('&', i);
+    }
+    buf.append(str, i, str.length());
+    return buf.toString();
+  }
+
+  /** Returns the number of bytes data[from, to) takes in UTF-8 once its XML entities are resolved, as {@link #text} resolves them. */
+  public static long unescapedLength(byte[] data, int from, int to) {
+    long ret = 0;
+    int i = from;
+    while ( i < to ) {
+      if ( data[i] == '&' ) {
+        int semi = i + 1;
+        while ( semi < to && semi - i <= 12 && data[semi] != ';' ) {
+          ++semi;
+        }
+        int c = semi < to && data[semi] == ';' ? entity(new String(data, i + 1, semi - i - 1)): -1;
+        if ( c >= 0 && c <= Character.MAX_CODE_POINT ) {
+          ret += c < 0x80 ? 1: c < 0x800 ? 2: c < 0x10000 ? 3: 4;
+          i = semi + 1;
+          continue;
+        }
+      }
+      ++ret;
+      ++i;
+    }
+    return ret;
+  }
+
+  private static int entity(String name) {
+    if ( name.equals("amp") ) {
+      return '&';
+    } else if ( name.equals("lt") ) {
+      return '<';
+    } else if ( name.equals("gt") ) {
+      return '>';
+    } else if ( name.equals("quot") ) {
+      return '"';
+    } else if ( name.equals("apos") ) {
+      return '\'';
+    } else if ( name.startsWith("#x") || name.startsWith("#X") ) {
+      try {
+        return Integer.parseInt(name.substring(2), 16);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    } else if ( name.startsWith("#") ) {
+      try {
+        return Integer.parseInt(name.substring(1));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+  }
+}
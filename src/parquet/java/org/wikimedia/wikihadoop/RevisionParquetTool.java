@@ -0,0 +1,229 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import parquet.example.data.Group;
+import parquet.example.data.GroupWriter;
+import parquet.example.data.simple.SimpleGroupFactory;
+import parquet.hadoop.ParquetOutputFormat;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.api.WriteSupport;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.io.api.RecordConsumer;
+import parquet.schema.MessageType;
+import parquet.schema.MessageTypeParser;
+
+/** Writes the revisions of dumps, and optionally their diffs, into Parquet files with typed columns.
+ * Usage: <code>hadoop jar wikihadoop.jar org.wikimedia.wikihadoop.RevisionParquetTool OUTPUT DUMP...</code>
+ *
+ * Each map task writes <code>revisions-m-NNNNN.parquet</code>, and <code>diffs-m-NNNNN.parquet</code> when <code>org.wikimedia.wikihadoop.parquetDiffs</code> is true.  Since a split is read in the order of the dump, the row groups of a file are sorted by page id.  The text of revisions is written only when <code>org.wikimedia.wikihadoop.parquetText</code> is true.  The row group size, page size, dictionary encoding and codec are taken from <code>parquet.block.size</code>, <code>parquet.page.size</code>, <code>parquet.enable.dictionary</code> and <code>parquet.compression</code>.
+ */
+public class RevisionParquetTool extends Configured implements Tool {
+  private static final String KEY_PARQUET_DIFFS = "org.wikimedia.wikihadoop.parquetDiffs";
+  private static final String KEY_PARQUET_TEXT  = "org.wikimedia.wikihadoop.parquetText";
+  private static final String KEY_DIFF_TIMEOUT  = "org.wikimedia.wikihadoop.diffTimeout";
+
+  static final MessageType REVISION_SCHEMA = MessageTypeParser.parseMessageType
+    ("message revision {\n"
+     + "  required int64 page_id;\n"
+     + "  required int32 namespace;\n"
+     + "  optional binary title (UTF8);\n"
+     + "  required int64 rev_id;\n"
+     + "  optional int64 timestamp;\n"
+     + "  optional binary comment (UTF8);\n"
+     + "  required boolean minor;\n"
+     + "  optional int64 user_id;\n"
+     + "  optional binary user_text (UTF8);\n"
+     + "  required int32 text_length;\n"
+     + "  optional binary text (UTF8);\n"
+     + "}");
+
+  static final MessageType DIFF_SCHEMA = MessageTypeParser.parseMessageType
+    ("message diff {\n"
+     + "  required int64 page_id;\n"
+     + "  required int64 rev_id;\n"
+     + "  optional int64 timestamp;\n"
+     + "  repeated group operations {\n"
+     + "    required int64 position;\n"
+     + "    required int32 action;\n"
+     + "    required binary content (UTF8);\n"
+     + "  }\n"
+     + "}");
+
+  /** Writes groups of a schema given directly, rather than through the configuration. */
+  private static class GroupSupport extends WriteSupport<Group> {
+    private final MessageType schema;
+    private GroupWriter writer;
+
+    GroupSupport(MessageType schema) {
+      this.schema = schema;
+    }
+
+    @Override public WriteContext init(Configuration conf) {
+      return new WriteContext(this.schema, new HashMap<String,String>());
+    }
+
+    @Override public void prepareForWrite(RecordConsumer consumer) {
+      this.writer = new GroupWriter(consumer, this.schema);
+    }
+
+    @Override public void write(Group group) {
+      this.writer.write(group);
+    }
+  }
+
+  /** Converts the records of {@link StreamWikiDumpInputFormat}, skipping the previous revision of each. */
+  public static class ParquetMapper extends MapReduceBase implements Mapper<Text,Text,NullWritable,NullWritable> {
+    private JobConf job;
+    private boolean writeText;
+    private RevisionDiffer differ;
+    private ParquetWriter<Group> revisions;
+    private ParquetWriter<Group> diffs;
+    private SimpleGroupFactory revisionGroups;
+    private SimpleGroupFactory diffGroups;
+
+    @Override public void configure(JobConf job) {
+      this.job = job;
+      this.writeText = job.getBoolean(KEY_PARQUET_TEXT, false);
+      this.differ = job.getBoolean(KEY_PARQUET_DIFFS, false) ? new RevisionDiffer(job.getLong(KEY_DIFF_TIMEOUT, 1000)): null;
+      this.revisionGroups = new SimpleGroupFactory(REVISION_SCHEMA);
+      this.diffGroups = new SimpleGroupFactory(DIFF_SCHEMA);
+    }
+
+    public void map(Text key, Text value, OutputCollector<NullWritable,NullWritable> output, Reporter reporter) throws IOException {
+      if ( this.revisions == null ) {
+        // opened here, since the work output path is known only in a running task
+        this.revisions = this.open("revisions", REVISION_SCHEMA);
+        if ( this.differ != null ) {
+          this.diffs = this.open("diffs", DIFF_SCHEMA);
+        }
+      }
+      WikiPageRecord page = WikiPageRecord.parse(key.getBytes(), key.getLength());
+      for ( int i = 1; i < page.revisions.size(); ++i ) {
+        this.revisions.write(this.revisionRow(page, page.revisions.get(i)));
+      }
+      if ( this.differ != null ) {
+        List<List<RevisionDiffer.Operation>> ops = this.differ.diff(page);
+        for ( int i = 0; i < ops.size(); ++i ) {
+          this.diffs.write(this.diffRow(page, page.revisions.get(i + 1), ops.get(i)));
+        }
+      }
+      reporter.incrCounter(SkipBadRecords.COUNTER_GROUP, SkipBadRecords.COUNTER_MAP_PROCESSED_RECORDS, 1);
+    }
+
+    private ParquetWriter<Group> open(String name, MessageType schema) throws IOException {
+      Path file = new Path(FileOutputFormat.getWorkOutputPath(this.job), FileOutputFormat.getUniqueName(this.job, name) + ".parquet");
+      return new ParquetWriter<Group>(file, new GroupSupport(schema),
+                                      CompressionCodecName.fromConf(this.job.get(ParquetOutputFormat.COMPRESSION, "snappy")),
+                                      this.job.getInt(ParquetOutputFormat.BLOCK_SIZE, ParquetWriter.DEFAULT_BLOCK_SIZE),
+                                      this.job.getInt(ParquetOutputFormat.PAGE_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE),
+                                      this.job.getBoolean(ParquetOutputFormat.ENABLE_DICTIONARY, true),
+                                      false);
+    }
+
+    private Group revisionRow(WikiPageRecord page, WikiPageRecord.Revision rev) throws IOException {
+      Group g = this.revisionGroups.newGroup();
+      g.append("page_id", page.pageId);
+      g.append("namespace", page.namespace);
+      if ( page.title != null ) {
+        g.append("title", page.title);
+      }
+      g.append("rev_id", rev.id);
+      if ( rev.timestamp >= 0 ) {
+        g.append("timestamp", rev.timestamp);
+      }
+      if ( rev.comment != null ) {
+        g.append("comment", rev.comment);
+      }
+      g.append("minor", rev.minor);
+      if ( rev.userId >= 0 ) {
+        g.append("user_id", rev.userId);
+      }
+      if ( rev.userName != null ) {
+        g.append("user_text", rev.userName);
+      }
+      g.append("text_length", (int)rev.getTextBytes());
+      if ( this.writeText ) {
+        g.append("text", rev.getText());
+      }
+      return g;
+    }
+
+    private Group diffRow(WikiPageRecord page, WikiPageRecord.Revision rev, List<RevisionDiffer.Operation> ops) {
+      Group g = this.diffGroups.newGroup();
+      g.append("page_id", page.pageId);
+      g.append("rev_id", rev.id);
+      if ( rev.timestamp >= 0 ) {
+        g.append("timestamp", rev.timestamp);
+      }
+      for ( RevisionDiffer.Operation op: ops ) {
+        g.addGroup("operations")
+          .append("position", op.position)
+          .append("action", op.action)
+          .append("content", op.content);
+      }
+      return g;
+    }
+
+    @Override public void close() throws IOException {
+      if ( this.revisions != null ) {
+        this.revisions.close();
+      }
+      if ( this.diffs != null ) {
+        this.diffs.close();
+      }
+    }
+  }
+
+  public int run(String[] args) throws Exception {
+    if ( args.length < 2 ) {
+      System.err.println("usage: RevisionParquetTool OUTPUT DUMP...");
+      return 1;
+    }
+    JobConf job = new JobConf(getConf(), RevisionParquetTool.class);
+    job.setJobName("wikihadoop parquet");
+    job.setInputFormat(StreamWikiDumpInputFormat.class);
+    for ( int i = 1; i < args.length; ++i ) {
+      FileInputFormat.addInputPath(job, new Path(args[i]));
+    }
+    job.setBoolean(StreamWikiDumpInputFormat.KEY_PREVIOUS_REVISION, true);
+    job.setMapperClass(ParquetMapper.class);
+    job.setNumReduceTasks(0);
+    // the files are written by the mappers into the work output path, and committed with it
+    job.setOutputFormat(NullOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, new Path(args[0]));
+    JobClient.runJob(job);
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new RevisionParquetTool(), args));
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+import parquet.example.data.Group;
+import parquet.hadoop.ParquetReader;
+import parquet.hadoop.example.GroupReadSupport;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestRevisionParquetTool {
+
+  private static List<Group> read(Path file) throws IOException {
+    List<Group> ret = new ArrayList<Group>();
+    ParquetReader<Group> reader = new ParquetReader<Group>(file, new GroupReadSupport());
+    try {
+      Group g;
+      while ( (g = reader.read()) != null ) {
+        ret.add(g);
+      }
+    } finally {
+      reader.close();
+    }
+    return ret;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/parquet");
+    fs.delete(dir, true);
+    JobConf job = new JobConf(conf);
+    job.set("mapred.work.output.dir", dir.toString());
+    job.setInt("mapreduce.task.partition", 0);
+    job.setBoolean("org.wikimedia.wikihadoop.parquetText", true);
+    job.setBoolean("org.wikimedia.wikihadoop.parquetDiffs", true);
+    job.set("parquet.compression", "uncompressed");
+
+    RevisionParquetTool.ParquetMapper mapper = new RevisionParquetTool.ParquetMapper();
+    mapper.configure(job);
+    try {
+      mapper.map(new Text("<page>\n<title>Foo</title>\n<ns>0</ns>\n<id>12</id>\n"
+                          + "<revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n"
+                          + "<revision>\n<id>100</id>\n<timestamp>2007-05-25T05:16:33Z</timestamp>\n"
+                          + "<contributor><username>Bob</username><id>7</id></contributor>\n"
+                          + "<comment>Begin</comment>\n<text xml:space=\"preserve\">a b</text>\n</revision>"
+                          + "<revision>\n<id>101</id>\n<timestamp>2007-05-25T05:16:34Z</timestamp>\n"
+                          + "<contributor><ip>1.2.3.4</ip></contributor>\n<minor/>\n"
+                          + "<text xml:space=\"preserve\">a c b &lt;</text>\n</revision>\n</page>\n"),
+                 new Text(""), null, Reporter.NULL);
+      mapper.map(new Text("<page><title>Talk:Bar</title><ns>1</ns><id>13</id>"
+                          + "<revision><id>200</id><text xml:space=\"preserve\">x</text></revision>"
+                          + "<revision><id>201</id><text xml:space=\"preserve\">x é</text></revision></page>\n"),
+                 new Text(""), null, Reporter.NULL);
+    } finally {
+      mapper.close();
+    }
+
+    List<Group> revisions = read(new Path(dir, "revisions-m-00000.parquet"));
+    assertEquals(3, revisions.size());
+    Group r = revisions.get(0);
+    assertEquals(12, r.getLong("page_id", 0));
+    assertEquals(0, r.getInteger("namespace", 0));
+    assertEquals("Foo", r.getString("title", 0));
+    assertEquals(100, r.getLong("rev_id", 0));
+    assertEquals(1180070193, r.getLong("timestamp", 0));
+    assertEquals("Begin", r.getString("comment", 0));
+    assertFalse(r.getBoolean("minor", 0));
+    assertEquals(7, r.getLong("user_id", 0));
+    assertEquals("Bob", r.getString("user_text", 0));
+    assertEquals(3, r.getInteger("text_length", 0));
+    assertEquals("a b", r.getString("text", 0));
+    r = revisions.get(1);
+    assertEquals(101, r.getLong("rev_id", 0));
+    assertTrue(r.getBoolean("minor", 0));
+    assertEquals(0, r.getFieldRepetitionCount("user_id"));
+    assertEquals("1.2.3.4", r.getString("user_text", 0));
+    assertEquals(7, r.getInteger("text_length", 0));
+    assertEquals("a c b <", r.getString("text", 0));
+    r = revisions.get(2);
+    assertEquals(13, r.getLong("page_id", 0));
+    assertEquals(1, r.getInteger("namespace", 0));
+    assertEquals(201, r.getLong("rev_id", 0));
+    assertEquals(0, r.getFieldRepetitionCount("timestamp"));
+    assertEquals(4, r.getInteger("text_length", 0));
+    assertEquals("x é", r.getString("text", 0));
+
+    List<Group> diffs = read(new Path(dir, "diffs-m-00000.parquet"));
+    assertEquals(3, diffs.size());
+    String[] expected = {
+      "12 100 0:1:a b",
+      "12 101 2:1:c  5:1: <",
+      "13 201 1:1: é",
+    };
+    for ( int i = 0; i < expected.length; ++i ) {
+      Group d = diffs.get(i);
+      StringBuilder row = new StringBuilder(d.getLong("page_id", 0) + " " + d.getLong("rev_id", 0));
+      for ( int j = 0; j < d.getFieldRepetitionCount("operations"); ++j ) {
+        Group op = d.getGroup("operations", j);
+        row.append(" ").append(op.getLong("position", 0)).append(':').append(op.getInteger("action", 0)).append(':').append(op.getString("content", 0));
+      }
+      assertEquals(expected[i], row.toString());
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 Yusuke Matsubara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.wikihadoop;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestRevisionDiffMapper {
+
+  private static List<String> map(String record) throws IOException {
+    final List<String> rows = new ArrayList<String>();
+    RevisionDiffMapper mapper = new RevisionDiffMapper();
+    mapper.configure(new JobConf());
+    mapper.map(new Text(record), new Text(""), new OutputCollector<Text, NullWritable>() {
+        public void collect(Text key, NullWritable value) {
+          rows.add(key.toString());
+        }
+      }, Reporter.NULL);
+    return rows;
+  }
+
+  @Test
+  public void testTokenize() {
+    assertEquals(Arrays.asList(new String[]{"'''", "[[", "Foo", "]]", "'''", " ", "{{", "{", "x", "}}", "}", "\n\n", "&amp;", "==", "&", "b", "{|", "|-", "é"}),
+                 WikiTokenizer.tokenize("'''[[Foo]]''' {{{x}}}\n\n&amp;==&b{||-é"));
+  }
+
+  @Test
+  public void testRepr() {
+    assertEquals("u'it\\'s \"x\"\\n\\xe9\\u3042'", PyRepr.unicode("it's \"x\"\néあ"));
+    assertEquals("u\"it's\"", PyRepr.unicode("it's"));
+    assertEquals("u'\\U0001f600 \\ud83d'", PyRepr.unicode("\ud83d\ude00 \ud83d"));
+    assertEquals("'caf\\xc3\\xa9'", PyRepr.bytes("café"));
+    assertEquals("None", PyRepr.unicode(null));
+  }
+
+  @Test
+  public void testDiffRows() throws IOException {
+    List<String> rows = map("<page>\n<title>Talk:Foo &amp; bar</title>\n<id>12</id>\n"
+                            + "<revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n"
+                            + "<revision>\n<id>100</id>\n<timestamp>2007-05-25T05:16:33Z</timestamp>\n"
+                            + "<contributor><username>Bob</username><id>7</id></contributor>\n"
+                            + "<comment>Begin</comment>\n<text xml:space=\"preserve\">a b</text>\n</revision>"
+                            + "<revision>\n<id>101</id>\n<timestamp>2007-05-25T05:16:34Z</timestamp>\n"
+                            + "<contributor><ip>1.2.3.4</ip></contributor>\n<minor/>\n"
+                            + "<text xml:space=\"preserve\">a c b &lt;</text>\n</revision>\n</page>\n");
+    assertEquals(Arrays.asList(new String[]{
+          "100\t12\t1\t'Foo & bar'\t1180070193\tu'Begin'\tFalse\t7\tu'Bob'\t0:1:u'a b'",
+          "101\t12\t1\t'Foo & bar'\t1180070194\tNone\tTrue\tNone\tu'1.2.3.4'\t2:1:u'c '\t5:1:u' <'",
+        }), rows);
+  }
+
+  @Test
+  public void testDiffReplacement() throws IOException {
+    List<String> rows = map("<page><title>X</title><ns>0</ns><id>1</id>"
+                            + "<revision><id>1</id><text>the cat sat</text></revision>"
+                            + "<revision><id>2</id><text>the dog sat</text></revision></page>\n");
+    assertEquals(Arrays.asList(new String[]{
+          "2\t1\t0\t'X'\tNone\tNone\tFalse\tNone\tNone\t4:-1:u'cat'\t4:1:u'dog'",
+        }), rows);
+  }
+
+  @Test
+  public void testDiffOutsideBmp() throws IOException {
+    assertEquals(Arrays.asList(new String[]{"\ud83d\ude00", "a", "\ud83d\ude00"}), WikiTokenizer.tokenize("\ud83d\ude00a\ud83d\ude00"));
+    List<String> rows = map("<page><title>X</title><ns>0</ns><id>1</id>"
+                            + "<revision><id>1</id><text>a b</text></revision>"
+                            + "<revision><id>2</id><text>\ud83d\ude00a b c</text></revision></page>\n");
+    assertEquals(Arrays.asList(new String[]{
+          "2\t1\t0\t'X'\tNone\tNone\tFalse\tNone\tNone\t0:1:u'\\U0001f600'\t4:1:u' c'",
+        }), rows);
+  }
+
+  private static String revision(long id, String user, String text) {
+    return "<revision><id>" + id + "</id>" + (user == null ? "": "<contributor><username>" + user + "</username><id>" + id + "</id></contributor>")
+      + "<text xml:space=\"preserve\">" + text + "</text></revision>";
+  }
+
+  @Test
+  public void testTokenPersistence() throws IOException {
+    final List<String> rows = new ArrayList<String>();
+    OutputCollector<Text, NullWritable> output = new OutputCollector<Text, NullWritable>() {
+      public void collect(Text key, NullWritable value) {
+        rows.add(key.toString());
+      }
+    };
+    JobConf job = new JobConf();
+    job.setInt("org.wikimedia.wikihadoop.persistenceWindow", 1);
+    TokenPersistenceMapper mapper = new TokenPersistenceMapper();
+    mapper.configure(job);
+    String header = "<page><title>X</title><ns>0</ns><id>5</id>";
+    mapper.map(new Text(header + "<revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>" + revision(1, "U0", "a b") + "</page>\n"), new Text(""), output, Reporter.NULL);
+    mapper.map(new Text(header + revision(1, "U0", "a b") + revision(2, "U1", "a b c") + "</page>\n"), new Text(""), output, Reporter.NULL);
+    mapper.map(new Text(header + revision(2, "U1", "a b c") + revision(3, "U2", "a c") + "</page>\n"), new Text(""), output, Reporter.NULL);
+    assertEquals(0, rows.size());
+    // a page resumed after revision 9, whose tokens belong to no revision written here
+    mapper.map(new Text("<page><title>Y</title><ns>0</ns><id>6</id>" + revision(9, null, "x y") + revision(10, null, "x y z") + "</page>\n"), new Text(""), output, Reporter.NULL);
+    mapper.close();
+    assertEquals(Arrays.asList(new String[]{
+          "1\t5\t0\tNone\t1\tu'U0'\t3\t3\t0\t3\t0\t5\t2",
+          "2\t5\t0\tNone\t2\tu'U1'\t5\t2\t0\t1\t0\t1\t1",
+          "3\t5\t0\tNone\t3\tu'U2'\t3\t0\t2\t0\t0\t0\t0",
+          "10\t6\t0\tNone\tNone\tNone\t5\t2\t0\t0\t2\t0\t2",
+        }), rows);
+  }
+}
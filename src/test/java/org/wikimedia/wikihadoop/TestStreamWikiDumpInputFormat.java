@@ -23,18 +23,30 @@ import java.io.*;
 import java.util.*;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 import org.apache.hadoop.io.compress.*;
 import org.apache.hadoop.io.compress.bzip2.*;
 import java.util.regex.*;
@@ -84,6 +96,42 @@ public class TestStreamWikiDumpInputFormat {
         }), found);
   }
 
+  @Test
+  public void testFormatWithBatches() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision>first</revision><revision>second</revision><revision>third</revision><revision>n</revision><revision>n+1</revision></page>\n"
+                      + "<page><longlongheader/><revision>e</revision></page>\n"
+                      + "<page><long-long-long-header/><revision>f</revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setInt("org.wikimedia.wikihadoop.batchRevisions", 2);
+    format.configure(job);
+
+    List<String> found = collect(format, job, 1);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><header/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>first</revision><revision>second</revision>\n</page>\n",
+          "<page><header/><revision>second</revision><revision>third</revision><revision>n</revision>\n</page>\n",
+          "<page><header/><revision>n</revision><revision>n+1</revision>\n</page>\n",
+          "<page><longlongheader/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>e</revision>\n</page>\n",
+          "<page><long-long-long-header/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>f</revision>\n</page>\n",
+        }), found);
+  }
+
   @Test
   public void testFormatIgnorePattern() throws IOException {
     JobConf job = new JobConf(conf);
@@ -116,6 +164,356 @@ public class TestStreamWikiDumpInputFormat {
         }), found);
   }
 
+  @Test
+  public void testFormatIdentityReverts() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision><id>1</id><sha1>aaa</sha1><text>x</text></revision>"
+                      + "<revision><id>2</id><sha1>bbb</sha1><text>y</text></revision>"
+                      + "<revision><id>3</id><sha1>aaa</sha1><text>x</text></revision>"
+                      + "<revision><id>4</id><sha1>aaa</sha1><text>x</text></revision></page>\n"
+                      + "<page><longlongheader/><revision><id>5</id><sha1>aaa</sha1><text>x</text></revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setBoolean("org.wikimedia.wikihadoop.previousRevision", false);
+    job.setBoolean("org.wikimedia.wikihadoop.tagIdentityReverts", true);
+    job.setBoolean("org.wikimedia.wikihadoop.elideDuplicateText", true);
+    format.configure(job);
+
+    List<String> found = collect(format, job, 1);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><header/><revision><id>1</id><sha1>aaa</sha1><text>x</text></revision>\n</page>\n",
+          "<page><header/><revision><id>2</id><sha1>bbb</sha1><text>y</text></revision>\n</page>\n",
+          "<page><header/><revision revertedto=\"1\"><id>3</id><sha1>aaa</sha1><text sameas=\"1\"/></revision>\n</page>\n",
+          "<page><header/><revision><id>4</id><sha1>aaa</sha1><text sameas=\"3\"/></revision>\n</page>\n",
+          "<page><longlongheader/><revision><id>5</id><sha1>aaa</sha1><text>x</text></revision>\n</page>\n",
+        }), found);
+  }
+
+  @Test
+  public void testSha1Table() throws IOException {
+    StreamWikiDumpInputFormat.Sha1Table table = new StreamWikiDumpInputFormat.Sha1Table();
+    assertEquals(-1, table.put(7, "aaa".getBytes("UTF-8"), 1));
+    assertEquals(1, table.put(7, "aaa".getBytes("UTF-8"), 2));
+    // a fingerprint shared by another SHA-1 is no match
+    assertEquals(-1, table.put(7, "bbb".getBytes("UTF-8"), 3));
+    assertEquals(2, table.put(7, "aaa".getBytes("UTF-8"), 4));
+    for ( int i = 0; i < 100; ++i ) {
+      assertEquals(-1, table.put(100 + i, ("c" + i).getBytes("UTF-8"), 100 + i));
+    }
+    assertEquals(150, table.put(150, "c50".getBytes("UTF-8"), 300));
+    table.clear();
+    assertEquals(-1, table.put(7, "aaa".getBytes("UTF-8"), 5));
+  }
+
+  @Test
+  public void testFormatTokenized() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision><id>1</id><text>a b</text></revision>"
+                      + "<revision><id>2</id><text>a &amp;amp; b</text></revision></page>\n"
+                      + "<page><longlongheader/><revision><id>3</id><text>b</text></revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setBoolean("org.wikimedia.wikihadoop.previousRevision", false);
+    job.setBoolean("org.wikimedia.wikihadoop.tokenizeText", true);
+    format.configure(job);
+
+    List<String> found = collect(format, job, 1);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><header/><revision><id>1</id><tokens>0 1 2</tokens><newtokens from=\"0\"><t>a</t><t> </t><t>b</t></newtokens></revision>\n</page>\n",
+          "<page><header/><revision><id>2</id><tokens>0 1 3 1 2</tokens><newtokens from=\"3\"><t>&amp;amp;</t></newtokens></revision>\n</page>\n",
+          "<page><longlongheader/><revision><id>3</id><tokens>0</tokens><newtokens from=\"0\"><t>b</t></newtokens></revision>\n</page>\n",
+        }), found);
+
+    // the tokens first seen in revisions out of the time window are defined with the next revision written
+    fs.delete(dir, true);
+    txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision><id>1</id><timestamp>2010-01-01T00:00:00Z</timestamp><text>a</text></revision>"
+                      + "<revision><id>2</id><timestamp>2010-02-01T00:00:00Z</timestamp><text>a c</text></revision>"
+                      + "<revision><id>3</id><timestamp>2011-01-01T00:00:00Z</timestamp><text>a b</text></revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2011-01-01T00:00:00Z");
+    format.configure(job);
+    assertEquals(Arrays.asList(new String[]{
+          "<page><header/><revision><id>3</id><timestamp>2011-01-01T00:00:00Z</timestamp><tokens>0 1 3</tokens><newtokens from=\"0\"><t>a</t><t> </t><t>c</t><t>b</t></newtokens></revision>\n</page>\n",
+        }), collect(format, job, 1));
+  }
+
+  @Test
+  public void testFormatWithFilter() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path statsDir = new Path(System.getProperty("test.build.data", ".") + "/stats");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    fs.delete(statsDir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><title>A</title><ns>0</ns><id>1</id><revision><timestamp>2009-01-01T00:00:00Z</timestamp>a</revision>"
+                      + "<revision><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision></page>\n"
+                      + "<page><title>Talk:A</title><ns>1</ns><id>2</id><revision><timestamp>2010-06-01T00:00:00Z</timestamp>c</revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.set("org.wikimedia.wikihadoop.namespaces", "0");
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2010-01-01T00:00:00Z");
+    format.configure(job);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><title>A</title><ns>0</ns><id>1</id><revision><timestamp>2009-01-01T00:00:00Z</timestamp>a</revision><revision><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision>\n</page>\n",
+        }), collect(format, job, 1));
+
+    // one range for each page
+    long length = fs.getFileStatus(txtFile).getLen();
+    SeekableInputStream in = SeekableInputStream.getInstance(txtFile, 0, length, fs, new CompressionCodecFactory(job));
+    BlockStats stats = BlockStats.collect(in, length, 1);
+    in.close();
+    assertEquals(2, stats.getRanges().size());
+    assertEquals(1275350400L, stats.getRanges().get(1).minTimestamp);
+    assertEquals(new TreeSet<Integer>(Arrays.asList(1)), stats.getRanges().get(1).namespaces);
+    stats.write(fs, BlockStats.sidecar(statsDir, txtFile));
+
+    job = new JobConf(conf);
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+    job.set("org.wikimedia.wikihadoop.blockStats", statsDir.toString());
+    job.set("org.wikimedia.wikihadoop.namespaces", "1");
+    format.configure(job);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><title>Talk:A</title><ns>1</ns><id>2</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><timestamp>2010-06-01T00:00:00Z</timestamp>c</revision>\n</page>\n",
+        }), collect(format, job, 1));
+
+    job.set("org.wikimedia.wikihadoop.namespaces", "2");
+    format.configure(job);
+    assertEquals(0, format.getSplits(job, 1).length);
+  }
+
+  @Test
+  public void testFormatIncremental() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path marks1 = new Path(System.getProperty("test.build.data", ".") + "/watermarks1");
+    Path marks2 = new Path(System.getProperty("test.build.data", ".") + "/watermarks2");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(marks1, true);
+    fs.delete(marks2, true);
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+
+    String[] dumps = {
+      "<tree><page><id>1</id><revision><id>10</id>a</revision><revision><id>11</id>b</revision></page>\n"
+      + "<page><id>2</id><revision><id>20</id>c</revision></page></tree>\n",
+      "<tree><page><id>1</id><revision><id>10</id>a</revision><revision><id>11</id>b</revision><revision><id>12</id>d</revision></page>\n"
+      + "<page><id>2</id><revision><id>20</id>c</revision></page>\n"
+      + "<page><id>3</id><revision><id>30</id>e</revision></page></tree>\n",
+    };
+    for ( int i = 0; i < dumps.length; ++i ) {
+      fs.delete(dir, true);
+      Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+      try {
+        txtWriter.write(dumps[i]);
+      } finally {
+        txtWriter.flush();
+        txtWriter.close();
+      }
+      if ( i > 0 ) {
+        job.set("org.wikimedia.wikihadoop.watermarks", marks1.toString());
+      }
+      job.set("org.wikimedia.wikihadoop.watermarkOutput", (i == 0 ? marks1: marks2).toString());
+      format.configure(job);
+      List<String> found = collect(format, job, 1);
+      if ( i == 0 ) {
+        assertEquals(3, found.size());
+      } else {
+        assertEquals(Arrays.asList(new String[]{
+              "<page><id>1</id><revision><id>11</id>b</revision><revision><id>12</id>d</revision>\n</page>\n",
+              "<page><id>3</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>30</id>e</revision>\n</page>\n",
+            }), found);
+      }
+    }
+
+    Watermarks marks = new Watermarks(fs, marks2);
+    assertEquals(12, marks.get(1));
+    assertEquals(20, marks.get(2));
+    assertEquals(30, marks.get(3));
+    assertEquals(-1, marks.get(4));
+
+    // in a task writing files, a relative directory goes to the output of the attempt
+    Path work = new Path(System.getProperty("test.build.data", ".") + "/work");
+    fs.delete(work, true);
+    job.set("mapred.work.output.dir", work.toString());
+    job.set("org.wikimedia.wikihadoop.watermarkOutput", "watermarks");
+    format.configure(job);
+    collect(format, job, 1);
+    FileStatus[] files = fs.listStatus(new Path(work, "watermarks"));
+    assertEquals(1, files.length);
+    assertEquals("auto.txt-0", files[0].getPath().getName());
+    assertEquals(30, new Watermarks(fs, new Path(work, "watermarks")).get(3));
+
+    // revisions out of the time window are not written, and left to the next run
+    job = new JobConf(conf);
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+    fs.delete(dir, true);
+    fs.delete(marks1, true);
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><id>1</id><revision><id>10</id><timestamp>2010-01-01T00:00:00Z</timestamp>a</revision><revision><id>11</id><timestamp>2012-01-01T00:00:00Z</timestamp>b</revision></page>\n"
+                      + "<page><id>2</id><revision><id>20</id><timestamp>2012-01-01T00:00:00Z</timestamp>c</revision></page></tree>\n");
+    } finally {
+      txtWriter.close();
+    }
+    job.set("org.wikimedia.wikihadoop.maxTimestamp", "2011-01-01T00:00:00Z");
+    job.set("org.wikimedia.wikihadoop.watermarkOutput", marks1.toString());
+    format.configure(job);
+    assertEquals(1, collect(format, job, 1).size());
+    marks = new Watermarks(fs, marks1);
+    assertEquals(10, marks.get(1));
+    assertEquals(-1, marks.get(2));
+
+    // parts looked up by their page ranges, in any order of the files, one of them overlapping the others
+    fs.delete(marks1, true);
+    long[][] parts = { {50, 500, 60, 600}, {1, 100, 5, 50}, {7, 70, 55, 550}, {70, 700, 80, 800} };
+    for ( int i = 0; i < parts.length; ++i ) {
+      LongLongHashMap m = new LongLongHashMap(16, -1L);
+      for ( int j = 0; j < parts[i].length; j += 2 ) {
+        m.put(parts[i][j], parts[i][j + 1]);
+      }
+      Watermarks.write(fs, new Path(marks1, "part-" + i), m);
+    }
+    marks = new Watermarks(fs, marks1);
+    assertEquals(100, marks.get(1));
+    assertEquals(50, marks.get(5));
+    assertEquals(-1, marks.get(6));
+    assertEquals(70, marks.get(7));
+    assertEquals(-1, marks.get(40));
+    assertEquals(550, marks.get(55));
+    assertEquals(500, marks.get(50));
+    assertEquals(600, marks.get(60));
+    assertEquals(700, marks.get(70));
+    assertEquals(800, marks.get(80));
+    assertEquals(-1, marks.get(90));
+    assertEquals(-1, marks.get(0));
+  }
+
+  @Test
+  public void testFormatWithParseThreads() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision><id>1</id><sha1>aaa</sha1><text>x</text></revision>"
+                      + "<revision><id>2</id><sha1>bbb</sha1><text>y</text></revision>"
+                      + "<revision><id>3</id><sha1>aaa</sha1><text>x</text></revision>"
+                      + "<revision><id>4</id><sha1>aaa</sha1><text>x</text></revision></page>\n"
+                      + "<page><longlongheader/><revision><id>5</id><sha1>aaa</sha1><text>x</text></revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setBoolean("org.wikimedia.wikihadoop.tagIdentityReverts", true);
+    job.setInt("org.wikimedia.wikihadoop.batchRevisions", 2);
+    job.setInt("org.wikimedia.wikihadoop.parseThreads", 2);
+    job.setInt("org.wikimedia.wikihadoop.parseWindow", 3);
+    format.configure(job);
+
+    List<String> found = collect(format, job, 1);
+
+    assertEquals(Arrays.asList(new String[]{
+          "<page><header/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>1</id><sha1>aaa</sha1><text>x</text></revision><revision><id>2</id><sha1>bbb</sha1><text>y</text></revision>\n</page>\n",
+          "<page><header/><revision><id>2</id><sha1>bbb</sha1><text>y</text></revision><revision revertedto=\"1\"><id>3</id><sha1>aaa</sha1><text>x</text></revision><revision><id>4</id><sha1>aaa</sha1><text>x</text></revision>\n</page>\n",
+          "<page><longlongheader/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>5</id><sha1>aaa</sha1><text>x</text></revision>\n</page>\n",
+        }), found);
+  }
+
+  @Test
+  public void testFormatWithParseThreadsAndTimeWindow() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><header/><revision><id>1</id><timestamp>2011-03-01T00:00:00Z</timestamp><text>x</text></revision>"
+                      + "<revision><id>2</id><timestamp>2010-01-01T00:00:00Z</timestamp><text>y</text></revision>"
+                      + "<revision><id>3</id><timestamp>2011-04-01T00:00:00Z</timestamp><text>z</text></revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setBoolean("org.wikimedia.wikihadoop.previousRevision", false);
+    job.setInt("org.wikimedia.wikihadoop.batchRevisions", 3);
+    job.setInt("org.wikimedia.wikihadoop.parseThreads", 2);
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2011-01-01T00:00:00Z");
+    format.configure(job);
+
+    // the revision out of the window ends the batch, even while it is still being parsed when the batch is packed
+    for ( int i = 0; i < 20; ++i ) {
+      assertEquals(Arrays.asList(new String[]{
+            "<page><header/><revision><id>1</id><timestamp>2011-03-01T00:00:00Z</timestamp><text>x</text></revision>\n</page>\n",
+            "<page><header/><revision><id>3</id><timestamp>2011-04-01T00:00:00Z</timestamp><text>z</text></revision>\n</page>\n",
+          }), collect(format, job, 1));
+    }
+  }
+
   @Test
     public void testFormatWithOneSplitUncompressedFragmentsAndSpaces() throws IOException {
     JobConf job = new JobConf(conf);
@@ -378,6 +776,1058 @@ public class TestStreamWikiDumpInputFormat {
     }
   }
 
+  @Test
+  public void testFormatWithReadAhead() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+
+    for ( String name: new String[]{"auto.txt", "auto.bz2"} ) {
+      Path txtFile = new Path(dir, name);
+      fs.delete(dir, true);
+      StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+      byte[] bytes = ("<tree><page><header/><revision>first</revision>bugbug<revision>second</revision><revision>third</revision><revision>n</revision><revision>n+1</revision></page>\n"
+                      + "<page><longlongheader/><revision>e</revision></page></tree>\n").getBytes();
+      OutputStream writer = fs.create(txtFile);
+      try {
+        writer.write(name.endsWith(".bz2") ? bzip2(bytes): bytes);
+      } finally {
+        writer.flush();
+        writer.close();
+      }
+
+      StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+      job.setInt("org.wikimedia.wikihadoop.readAheadBlocks", 2);
+      job.setInt("org.wikimedia.wikihadoop.readAheadBlockSize", 16);
+      format.configure(job);
+      for ( Integer n: name.endsWith(".bz2") ? new Integer[]{1,2,3}: new Integer[]{1} ) {
+        List<String> found = collect(format, job, n);
+        assertEquals(Arrays.asList(new String[]{
+              "<page><header/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>first</revision>\n</page>\n",
+              "<page><header/><revision>first</revision><revision>second</revision>\n</page>\n",
+              "<page><header/><revision>second</revision><revision>third</revision>\n</page>\n",
+              "<page><header/><revision>third</revision><revision>n</revision>\n</page>\n",
+              "<page><header/><revision>n</revision><revision>n+1</revision>\n</page>\n",
+              "<page><longlongheader/><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>e</revision>\n</page>\n",
+            }), found);
+      }
+    }
+  }
+
+  @Test
+  public void testRevisionCache() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path cacheDir = new Path(System.getProperty("test.build.data", ".") + "/cache");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    fs.delete(cacheDir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><title>A</title><ns>0</ns><id>1</id><revision><id>10</id><timestamp>2009-01-01T00:00:00Z</timestamp>a</revision>"
+                      + "<revision><id>11</id><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision>"
+                      + "<revision><id>12</id><timestamp>2010-07-01T00:00:00Z</timestamp>c</revision></page>\n"
+                      + "<page><title>Talk:A</title><ns>1</ns><id>2</id><revision><id>20</id><timestamp>2010-06-01T00:00:00Z</timestamp>d</revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    job.setInt("org.wikimedia.wikihadoop.batchRevisions", 2);
+    format.configure(job);
+    List<String> records = collect(format, job, 1);
+    assertEquals(3, records.size());
+
+    List<PageRevisionKey> keys = cache(fs, job, records, new Path(cacheDir, "part-00000"));
+    assertEquals(Arrays.asList(new PageRevisionKey[]{
+          new PageRevisionKey(1, 10), new PageRevisionKey(1, 11), new PageRevisionKey(1, 12), new PageRevisionKey(2, 20),
+        }), keys);
+
+    job = new JobConf(conf);
+    WikiRevisionSequenceFileInputFormat.setInputPaths(job, cacheDir);
+    WikiRevisionSequenceFileInputFormat cached = new WikiRevisionSequenceFileInputFormat();
+    assertEquals(Arrays.asList(new String[]{
+          "<page><title>A</title><ns>0</ns><id>1</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>10</id><timestamp>2009-01-01T00:00:00Z</timestamp>a</revision>\n</page>\n",
+          "<page><title>A</title><ns>0</ns><id>1</id><revision><id>10</id><timestamp>2009-01-01T00:00:00Z</timestamp>a</revision><revision><id>11</id><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision>\n</page>\n",
+          "<page><title>A</title><ns>0</ns><id>1</id><revision><id>11</id><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision><revision><id>12</id><timestamp>2010-07-01T00:00:00Z</timestamp>c</revision>\n</page>\n",
+          "<page><title>Talk:A</title><ns>1</ns><id>2</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>20</id><timestamp>2010-06-01T00:00:00Z</timestamp>d</revision>\n</page>\n",
+        }), collect(cached, job, 1));
+
+    job.set("org.wikimedia.wikihadoop.namespaces", "0");
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2010-07-01T00:00:00Z");
+    assertEquals(Arrays.asList(new String[]{
+          "<page><title>A</title><ns>0</ns><id>1</id><revision><id>11</id><timestamp>2010-06-01T00:00:00Z</timestamp>b</revision><revision><id>12</id><timestamp>2010-07-01T00:00:00Z</timestamp>c</revision>\n</page>\n",
+        }), collect(cached, job, 1));
+  }
+
+  /** Writes the records as {@link RevisionCacheTool} does, and returns the keys written. */
+  private static List<PageRevisionKey> cache(FileSystem fs, JobConf job, List<String> records, Path file) throws IOException {
+    final SequenceFile.Writer writer = SequenceFile.createWriter(fs, job, file, PageRevisionKey.class, RevisionWritable.class);
+    final List<PageRevisionKey> keys = new ArrayList<PageRevisionKey>();
+    try {
+      RevisionCacheTool.CacheMapper mapper = new RevisionCacheTool.CacheMapper();
+      mapper.configure(job);
+      for ( String r: records ) {
+        mapper.map(new Text(r), new Text(""), new OutputCollector<PageRevisionKey,RevisionWritable>() {
+            public void collect(PageRevisionKey key, RevisionWritable value) throws IOException {
+              keys.add(new PageRevisionKey(key.getPageId(), key.getRevisionId()));
+              writer.append(key, value);
+            }
+          }, Reporter.NULL);
+      }
+    } finally {
+      writer.close();
+    }
+    return keys;
+  }
+
+  @Test
+  public void testRevisionCacheSplits() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path cacheDir = new Path(System.getProperty("test.build.data", ".") + "/cache");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    fs.delete(cacheDir, true);
+
+    StreamWikiDumpInputFormat.setInputPaths(job, dir);
+
+    // revisions long enough to be stored as deltas, spanning many sync marks
+    StringBuilder text = new StringBuilder();
+    for ( int i = 0; i < 20; ++i ) {
+      text.append("Sentence number ").append(i).append(" of the article. ");
+    }
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree>");
+      for ( int page = 1; page <= 3; ++page ) {
+        txtWriter.write("<page><title>P" + page + "</title><id>" + page + "</id>");
+        for ( int rev = 0; rev < 40; ++rev ) {
+          text.insert(rand(text.length()), "edit " + rev + " ");
+          txtWriter.write("<revision><id>" + (page * 100 + rev) + "</id><text>" + text + "</text></revision>");
+        }
+        txtWriter.write("</page>\n");
+      }
+      txtWriter.write("</tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    List<String> records = collect(format, job, 1);
+    assertEquals(120, records.size());
+
+    job.setInt("org.wikimedia.wikihadoop.keyframeInterval", 8);
+    cache(fs, job, records, new Path(cacheDir, "part-00000"));
+    assertTrue(fs.getFileStatus(new Path(cacheDir, "part-00000")).getLen() < fs.getFileStatus(txtFile).getLen() / 2);
+
+    job = new JobConf(conf);
+    WikiRevisionSequenceFileInputFormat.setInputPaths(job, cacheDir);
+    WikiRevisionSequenceFileInputFormat cached = new WikiRevisionSequenceFileInputFormat();
+    for ( int n: new int[]{1, 3, 7} ) {
+      assertEquals(records, collect(cached, job, n));
+    }
+  }
+
+  @Test
+  public void testByteDelta() throws IOException {
+    String base = "== History ==\nThe town was founded in 1820 by settlers from the east.  It grew quickly after the railway arrived.\n";
+    String[] targets = {
+      base,
+      "== History ==\nThe town was founded in 1821 by settlers from the east.  It grew quickly after the railway arrived in 1870.\n",
+      "Intro.\n" + base + base,
+      "short",
+      "",
+    };
+    ByteDelta delta = new ByteDelta();
+    byte[] b = base.getBytes("UTF-8");
+    for ( String t: targets ) {
+      byte[] target = ("xx" + t).getBytes("UTF-8");
+      DataOutputBuffer encoded = new DataOutputBuffer();
+      delta.encode(b, b.length, target, 2, target.length, encoded);
+      DataOutputBuffer decoded = new DataOutputBuffer();
+      ByteDelta.decode(b, b.length, encoded.getData(), 0, encoded.getLength(), decoded);
+      assertEquals(t, new String(decoded.getData(), 0, decoded.getLength(), "UTF-8"));
+      if ( t.length() > 64 ) {
+        assertTrue(encoded.getLength() < 32);
+      }
+    }
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path indexDir = new Path(System.getProperty("test.build.data", ".") + "/index");
+
+    for ( String name: new String[]{"auto.txt", "auto.bz2"} ) {
+      Path txtFile = new Path(dir, name);
+      fs.delete(dir, true);
+      fs.delete(indexDir, true);
+
+      byte[] bytes = ("<tree><page><title>A</title><id>3</id><revision>first</revision><revision>second</revision></page>\n"
+                      + "<page><title>B</title><id>7</id><revision>e</revision></page></tree>\n").getBytes();
+      OutputStream writer = fs.create(txtFile);
+      try {
+        writer.write(name.endsWith(".bz2") ? bzip2(bytes): bytes);
+      } finally {
+        writer.flush();
+        writer.close();
+      }
+
+      long length = fs.getFileStatus(txtFile).getLen();
+      SeekableInputStream in = SeekableInputStream.getInstance(txtFile, 0, length, fs, new CompressionCodecFactory(job));
+      PageOffsetIndex.Builder pages = new PageOffsetIndex.Builder(in.isCompressed());
+      BlockStats.collect(in, length, 1, pages);
+      in.close();
+      PageOffsetIndex index = pages.build(length);
+      assertEquals(2, index.size());
+      index.write(fs, PageOffsetIndex.sidecar(indexDir, txtFile));
+
+      WikiDumpRandomAccessReader reader = new WikiDumpRandomAccessReader(job, txtFile, indexDir);
+      try {
+        assertNull(reader.getRevisions(5));
+        for ( int i = 0; i < 2; ++i ) {
+          List<String> found = new ArrayList<String>();
+          for ( Text t: reader.getRevisions(7) ) {
+            found.add(t.toString());
+          }
+          assertEquals(Arrays.asList(new String[]{
+                "<page><title>B</title><id>7</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision>e</revision>\n</page>\n",
+              }), found);
+        }
+        assertEquals("<page><title>A</title><id>3</id><revision>first</revision><revision>second</revision>\n</page>\n",
+                     reader.getRevisions(3).get(1).toString());
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test
+  public void testPageRevisionKeys() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><id>12</id><revision><id>5</id>a</revision><revision><id>9</id>b</revision><revision><id>30</id>c</revision></page>\n"
+                      + "<page><id>3</id><revision><id>40</id>d</revision></page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.setInt("org.wikimedia.wikihadoop.batchRevisions", 2);
+    PageRevisionInputFormat format = new PageRevisionInputFormat();
+    format.configure(job);
+    List<PageRevisionKey> keys = new ArrayList<PageRevisionKey>();
+    for (InputSplit split : format.getSplits(job, 1)) {
+      RecordReader<PageRevisionKey,Text> reader = format.getRecordReader(split, job, getStderrReporter());
+      PageRevisionKey key = reader.createKey();
+      Text value = reader.createValue();
+      try {
+        while (reader.next(key, value)) {
+          assertTrue(value.toString().startsWith("<page><id>" + key.getPageId() + "</id>"));
+          keys.add(new PageRevisionKey(key.getPageId(), key.getRevisionId()));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(Arrays.asList(new PageRevisionKey[]{
+          new PageRevisionKey(12, 5), new PageRevisionKey(12, 30), new PageRevisionKey(3, 40),
+        }), keys);
+
+    // the serialized keys sort as the keys do
+    WritableComparator comparator = WritableComparator.get(PageRevisionKey.class);
+    WritableComparator pages = new PageRevisionKey.PageComparator();
+    PageRevisionKey.PagePartitioner<Text> partitioner = new PageRevisionKey.PagePartitioner<Text>();
+    keys.add(new PageRevisionKey(12, 6));
+    keys.add(new PageRevisionKey(-1, -1));
+    for ( PageRevisionKey a: keys ) {
+      for ( PageRevisionKey b: keys ) {
+        DataOutputBuffer x = new DataOutputBuffer();
+        DataOutputBuffer y = new DataOutputBuffer();
+        a.write(x);
+        b.write(y);
+        assertEquals(Integer.signum(a.compareTo(b)),
+                     Integer.signum(comparator.compare(x.getData(), 0, x.getLength(), y.getData(), 0, y.getLength())));
+        assertEquals(a.getPageId() == b.getPageId(),
+                     pages.compare(x.getData(), 0, x.getLength(), y.getData(), 0, y.getLength()) == 0);
+        if ( a.getPageId() == b.getPageId() ) {
+          assertEquals(partitioner.getPartition(a, null, 7), partitioner.getPartition(b, null, 7));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPageRangeSplits() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+
+    for ( String name: new String[]{"auto.txt", "auto.bz2"} ) {
+      Path txtFile = new Path(dir, name);
+      fs.delete(dir, true);
+      StringBuilder dump = new StringBuilder("<tree>\n");
+      for ( int i = 1; i <= 60; ++i ) {
+        dump.append("<page><title>P" + i + "</title><id>" + (i * 3) + "</id>");
+        for ( int j = 0; j < i % 4 + 1; ++j ) {
+          dump.append("<revision><id>" + (i * 100 + j) + "</id>" + upperCaseRegion("some revision text of page " + i, j, j + 3) + "</revision>");
+        }
+        dump.append("</page>\n");
+      }
+      dump.append("</tree>\n");
+      byte[] bytes = dump.toString().getBytes("UTF-8");
+      OutputStream writer = fs.create(txtFile);
+      try {
+        writer.write(name.endsWith(".bz2") ? bzip2(bytes, 1): bytes);
+      } finally {
+        writer.flush();
+        writer.close();
+      }
+      FileInputFormat.setInputPaths(job, dir);
+      StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+      job.setLong("org.wikimedia.wikihadoop.pageRangeSize", 0);
+      format.configure(job);
+      List<String> expected = collect(format, job, 1);
+      assertEquals(150, expected.size());
+
+      job.setLong("org.wikimedia.wikihadoop.pageRangeSize", 25);
+      format.configure(job);
+      for ( int n: new int[]{1, 4, 9} ) {
+        List<String> found = new ArrayList<String>();
+        for ( InputSplit split: format.getSplits(job, n) ) {
+          PageRangeFileSplit range = (PageRangeFileSplit)split;
+          assertTrue(range.getMinPageId() == Long.MIN_VALUE || range.getMinPageId() % 25 == 0);
+          assertTrue(range.getMaxPageId() == Long.MAX_VALUE || range.getMaxPageId() % 25 == 0);
+          RecordReader<Text,Text> reader = format.getRecordReader(split, job, getStderrReporter());
+          Text key = reader.createKey();
+          Text value = reader.createValue();
+          try {
+            while (reader.next(key, value)) {
+              long id = XmlFields.longElement(key.getBytes(), 0, key.getLength(), XmlFields.ascii("id"));
+              assertTrue(id + " in " + range, range.contains(id));
+              found.add(key.toString());
+            }
+          } finally {
+            reader.close();
+          }
+        }
+        assertEquals(expected, found);
+      }
+    }
+  }
+
+  @Test
+  public void testPageSample() {
+    PageSample small = new PageSample(0.05, 42);
+    PageSample large = new PageSample(0.2, 42);
+    PageSample other = new PageSample(0.05, 43);
+    int n = 0;
+    int m = 0;
+    int same = 0;
+    for ( long id = 1; id <= 100000; ++id ) {
+      if ( small.contains(id) ) {
+        assertTrue(large.contains(id));
+        ++n;
+        if ( other.contains(id) ) {
+          ++same;
+        }
+      }
+      if ( large.contains(id) ) {
+        ++m;
+      }
+    }
+    assertTrue("" + n, 4500 < n && n < 5500);
+    assertTrue("" + m, 19000 < m && m < 21000);
+    assertTrue("" + same, same < n / 5);
+  }
+
+  @Test
+  public void testFormatSampled() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path statsDir = new Path(System.getProperty("test.build.data", ".") + "/stats");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    fs.delete(statsDir, true);
+    StringBuilder dump = new StringBuilder("<tree>\n");
+    for ( int i = 1; i <= 200; ++i ) {
+      dump.append("<page><id>" + i + "</id><revision><id>" + (i * 10) + "</id>text of page " + i + "</revision></page>\n");
+    }
+    dump.append("</tree>\n");
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write(dump.toString());
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.setFloat("org.wikimedia.wikihadoop.sampleRate", 0.05F);
+    job.setLong("org.wikimedia.wikihadoop.sampleSeed", 7);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    PageSample sample = new PageSample(0.05F, 7);
+    List<String> expected = new ArrayList<String>();
+    for ( int i = 1; i <= 200; ++i ) {
+      if ( sample.contains(i) ) {
+        expected.add("<page><id>" + i + "</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>" + (i * 10) + "</id>text of page " + i + "</revision>\n</page>\n");
+      }
+    }
+    assertTrue(expected.size() > 0 && expected.size() < 40);
+    assertEquals(expected, collect(format, job, 1));
+    int unpruned = format.getSplits(job, 20).length;
+
+    long length = fs.getFileStatus(txtFile).getLen();
+    SeekableInputStream in = SeekableInputStream.getInstance(txtFile, 0, length, fs, new CompressionCodecFactory(job));
+    PageOffsetIndex.Builder pages = new PageOffsetIndex.Builder(in.isCompressed());
+    BlockStats.collect(in, length, 1 << 20, pages);
+    in.close();
+    pages.build(length).write(fs, PageOffsetIndex.sidecar(statsDir, txtFile));
+    job.set("org.wikimedia.wikihadoop.blockStats", statsDir.toString());
+    assertTrue(format.getSplits(job, 20).length < unpruned);
+    assertEquals(expected, collect(format, job, 20));
+  }
+
+  @Test
+  public void testNewApiCombined() throws IOException, InterruptedException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+
+    fs.delete(dir, true);
+    for ( int i = 0; i < 5; ++i ) {
+      Writer txtWriter = new OutputStreamWriter(fs.create(new Path(dir, "wiki" + i + ".xml")));
+      try {
+        txtWriter.write("<tree><page><id>" + i + "</id><revision><id>1</id>a</revision><revision><id>2</id>b</revision></page>\n"
+                        + "<page><id>" + (i + 10) + "</id><revision><id>3</id>c</revision></page></tree>\n");
+      } finally {
+        txtWriter.flush();
+        txtWriter.close();
+      }
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    List<String> expected = collect(format, job, 1);
+    assertEquals(15, expected.size());
+
+    JobContextImpl context = new JobContextImpl(job, new JobID());
+    assertEquals(format.getSplits(job, 1).length, new WikiDumpInputFormat().getSplits(context).size());
+    assertEquals(expected, collect(new WikiDumpInputFormat(), context));
+    // old-API code reading the split from its reporter sees the split being read
+    FileSplit first = (FileSplit)format.getSplits(job, 1)[0];
+    assertSame(first, new WikiDumpInputFormat.ContextReporter(new TaskAttemptContextImpl(job, new TaskAttemptID()), first).getInputSplit());
+    for ( long size: new long[]{1, 250, 1L << 20} ) {
+      job.setLong("org.wikimedia.wikihadoop.combineSplitSize", size);
+      context = new JobContextImpl(job, new JobID());
+      int n = new CombineWikiDumpInputFormat().getSplits(context).size();
+      assertTrue(size == 1 ? n == 5: size < 1000 ? 1 < n && n < 5: n == 1);
+      assertEquals(expected, collect(new CombineWikiDumpInputFormat(), context));
+    }
+  }
+
+  private static List<String> collect(org.apache.hadoop.mapreduce.InputFormat<Text,Text> format, JobContext context) throws IOException, InterruptedException {
+    List<String> found = new ArrayList<String>();
+    for ( org.apache.hadoop.mapreduce.InputSplit split: format.getSplits(context) ) {
+      TaskAttemptContext task = new TaskAttemptContextImpl(context.getConfiguration(), new TaskAttemptID());
+      org.apache.hadoop.mapreduce.RecordReader<Text,Text> reader = format.createRecordReader(split, task);
+      reader.initialize(split, task);
+      try {
+        while ( reader.nextKeyValue() ) {
+          found.add(reader.getCurrentKey().toString());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return found;
+  }
+
+  @Test
+  public void testRevisionRows() throws IOException, InterruptedException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    StringBuilder dump = new StringBuilder("<mediawiki>\n");
+    for ( int i = 1; i <= 6; ++i ) {
+      dump.append("<page><title>Page " + i + "</title><ns>" + (i % 2) + "</ns><id>" + i + "</id>\n");
+      for ( int j = 1; j <= 2; ++j ) {
+        dump.append("<revision><id>" + (i * 10 + j) + "</id><timestamp>2011-0" + j + "-01T00:00:00Z</timestamp>"
+                    + "<contributor><username>U" + j + "</username><id>" + j + "</id></contributor>"
+                    + "<text xml:space=\"preserve\">" + "text and more".substring(0, i + j) + "</text><sha1>x</sha1></revision>\n");
+      }
+      dump.append("</page>\n");
+    }
+    dump.append("</mediawiki>\n");
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write(dump.toString());
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    List<String> rows = collectRows(new JobContextImpl(job, new JobID()));
+    assertEquals(12, rows.size());
+    assertEquals("1 11 Page 1 U1 2 te", rows.get(0));
+    assertEquals("6 62 Page 6 U2 8 text and", rows.get(11));
+
+    // without the text column, the text is skipped but its length is kept
+    job.set("org.wikimedia.wikihadoop.columns", "page_id,rev_id,text_length");
+    job.set("org.wikimedia.wikihadoop.minPageId", "2");
+    job.set("org.wikimedia.wikihadoop.maxPageId", "5");
+    job.set("org.wikimedia.wikihadoop.namespaces", "0");
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2011-02-01T00:00:00Z");
+    assertEquals(Arrays.asList("2 22 null null 4 null", "4 42 null null 6 null"),
+                 collectRows(new JobContextImpl(job, new JobID())));
+
+    // the length is of the unescaped text in UTF-8, whether or not the text is read
+    fs.delete(dir, true);
+    txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<mediawiki>\n<page><title>Page 7</title><ns>0</ns><id>7</id>\n"
+                      + "<revision><id>71</id><timestamp>2011-01-01T00:00:00Z</timestamp>"
+                      + "<contributor><username>U1</username><id>1</id></contributor>"
+                      + "<text xml:space=\"preserve\">a &amp; b &#233;</text><sha1>x</sha1></revision>\n</page>\n</mediawiki>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    job = new JobConf(conf);
+    FileInputFormat.setInputPaths(job, dir);
+    assertEquals(Arrays.asList("7 71 Page 7 U1 8 a & b \u00e9"), collectRows(new JobContextImpl(job, new JobID())));
+    job.set("org.wikimedia.wikihadoop.columns", "page_id,rev_id,text_length");
+    assertEquals(Arrays.asList("7 71 null null 8 null"), collectRows(new JobContextImpl(job, new JobID())));
+  }
+
+  @Test
+  public void testCompressedText() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    StringBuilder longText = new StringBuilder();
+    for ( int i = 0; i < 100; ++i ) {
+      longText.append("line ").append(i).append(" &amp; more\n");
+    }
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><id>1</id><revision><id>1</id><sha1>a</sha1><text xml:space=\"preserve\">" + longText + "</text></revision>\n"
+                      + "<revision><id>2</id><sha1>b</sha1><text xml:space=\"preserve\">short</text></revision>\n"
+                      + "<revision><id>3</id><sha1>a</sha1><text xml:space=\"preserve\">" + longText + "</text></revision>\n"
+                      + "</page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.setInt("org.wikimedia.wikihadoop.compressText", 64);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    List<String> found = collect(format, job, 1);
+    assertEquals(3, found.size());
+    String expected = longText.toString().replace("&amp;", "&");
+    String compressed = found.get(0).substring(found.get(0).indexOf("<revision><id>1</id>"));
+    assertTrue(compressed.contains("<text xml:space=\"preserve\" bytes=\"" + expected.length() + "\" compressed=\"deflate\">"));
+    assertTrue(compressed.length() < longText.length());
+    // the text is compressed once, and carried as it is into the next record
+    assertTrue(found.get(1).contains(compressed.substring(0, compressed.indexOf("</revision>"))));
+    assertTrue(found.get(1).contains("<text xml:space=\"preserve\">short</text>"));
+
+    WikiPageRecord page = WikiPageRecord.parse(found.get(0).getBytes("UTF-8"), found.get(0).getBytes("UTF-8").length);
+    WikiPageRecord.Revision rev = page.revisions.get(1);
+    assertNull(rev.text);
+    assertEquals(expected.length(), rev.getTextBytes());
+    assertEquals(expected, rev.getText());
+    // a projection without texts leaves compressed elements empty
+    Text projected = new Text();
+    SharedScanMapper.withoutText(found.get(0).getBytes("UTF-8"), found.get(0).getBytes("UTF-8").length, projected);
+    rev = WikiPageRecord.parse(projected.getBytes(), projected.getLength()).revisions.get(1);
+    assertEquals("", rev.getText());
+    assertEquals(expected.length(), rev.getTextBytes());
+    assertEquals("short", WikiPageRecord.parse(found.get(1).getBytes("UTF-8"), found.get(1).getBytes("UTF-8").length).revisions.get(1).getText());
+
+    // elided texts are not compressed, and the others still are
+    job.setBoolean("org.wikimedia.wikihadoop.elideDuplicateText", true);
+    format.configure(job);
+    found = collect(format, job, 1);
+    assertTrue(found.get(0).contains("compressed=\"deflate\""));
+    assertTrue(found.get(2).endsWith("<revision><id>3</id><sha1>a</sha1><text xml:space=\"preserve\" sameas=\"1\"/></revision>\n</page>\n"));
+    // deflated by the parse workers, and put in place after the elision in the order of the input
+    job.setInt("org.wikimedia.wikihadoop.parseThreads", 2);
+    format.configure(job);
+    assertEquals(found, collect(format, job, 1));
+  }
+
+  @Test
+  public void testProgressAndHeartbeats() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    StringBuilder text = new StringBuilder();
+    for ( int i = 0; i < 10000; ++i ) {
+      text.append("long text ");
+    }
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<mediawiki>\n<page><title>A</title><id>1</id><revision><id>1</id><text>a</text></revision></page>\n"
+                      + "<page><title>B</title><id>2</id><revision><id>2</id><text>" + text + "</text></revision>"
+                      + "<revision><id>3</id><text>b</text></revision></page>\n</mediawiki>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.setLong("org.wikimedia.wikihadoop.heartbeatBytes", 4096);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    final List<String> statuses = new ArrayList<String>();
+    Reporter reporter = new Reporter() {
+      @Override public void setStatus(String s) {
+        statuses.add(s);
+      }
+      @Override public void progress() {
+      }
+      public float getProgress() {
+        return 0;
+      }
+      @Override public Counters.Counter getCounter(Enum<?> name) {
+        return null;
+      }
+      @Override public Counters.Counter getCounter(String group, String name) {
+        return null;
+      }
+      @Override public void incrCounter(Enum<?> key, long amount) {
+      }
+      @Override public void incrCounter(String group, String counter, long amount) {
+      }
+      @Override public InputSplit getInputSplit() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException();
+      }
+    };
+    InputSplit[] splits = format.getSplits(job, 1);
+    assertEquals(1, splits.length);
+    RecordReader<Text,Text> reader = format.getRecordReader(splits[0], job, reporter);
+    Text key = reader.createKey();
+    Text value = reader.createValue();
+    List<Float> progress = new ArrayList<Float>();
+    try {
+      while ( reader.next(key, value) ) {
+        progress.add(reader.getProgress());
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals(3, progress.size());
+    // measured in decompressed bytes, the long revision takes most of the split
+    assertTrue(progress.get(0) < 0.01f);
+    assertTrue(progress.get(1) > 0.9f);
+    assertEquals(1.0f, progress.get(2), 0.0001f);
+
+    boolean found = false;
+    boolean read = false;
+    for ( String s: statuses ) {
+      found |= s.contains("find page      2 pageBytes=");
+      read |= s.contains("read page id=2 pageBytes=");
+    }
+    assertTrue(found);
+    assertTrue(read);
+    assertEquals(400, StreamWikiDumpInputFormat.estimateTotal(100, 25, 100));
+  }
+
+  @Test
+  public void testLoggingAndStubDumps() throws IOException, InterruptedException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    StringBuilder dump = new StringBuilder("<mediawiki>\n<siteinfo><sitename>W</sitename></siteinfo>\n");
+    List<String> expected = new ArrayList<String>();
+    List<String> expectedLater = new ArrayList<String>();
+    for ( int i = 1; i <= 100; ++i ) {
+      String item = "<logitem><id>" + i + "</id><timestamp>2011-" + (i <= 50 ? "01": "02") + "-01T00:00:00Z</timestamp>"
+        + "<contributor><username>U</username><id>1</id></contributor><type>block</type><action>block</action><logtitle>User:X" + i + "</logtitle></logitem>";
+      dump.append("  " + item + "\n");
+      expected.add(item);
+      if ( i > 50 ) {
+        expectedLater.add(item);
+      }
+    }
+    dump.append("</mediawiki>\n");
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write(dump.toString());
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.set("org.wikimedia.wikihadoop.pageElement", "logitem");
+    job.set("org.wikimedia.wikihadoop.revisionElement", "");
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    assertEquals(expected, collect(format, job, 1));
+    assertTrue(format.getSplits(job, 5).length > 1);
+    assertEquals(expected, collect(format, job, 5));
+    job.set("org.wikimedia.wikihadoop.minTimestamp", "2011-02-01T00:00:00Z");
+    assertEquals(expectedLater, collect(format, job, 5));
+
+    // stub dumps have the layout of full dumps, with the lengths of the texts in place of the texts
+    fs.delete(dir, true);
+    txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<mediawiki>\n<page><title>A</title><ns>0</ns><id>1</id>\n"
+                      + "<revision><id>11</id><timestamp>2011-01-01T00:00:00Z</timestamp><text id=\"101\" bytes=\"30\" /></revision>\n"
+                      + "<revision><id>12</id><timestamp>2011-02-01T00:00:00Z</timestamp><text id=\"102\" bytes=\"45\" /><sha1>x</sha1></revision>\n"
+                      + "</page>\n</mediawiki>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    job = new JobConf(conf);
+    FileInputFormat.setInputPaths(job, dir);
+    format.configure(job);
+    assertEquals(Arrays.asList("<page><title>A</title><ns>0</ns><id>1</id>\n<revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n"
+                               + "<revision><id>11</id><timestamp>2011-01-01T00:00:00Z</timestamp><text id=\"101\" bytes=\"30\" /></revision>\n</page>\n",
+                               "<page><title>A</title><ns>0</ns><id>1</id>\n<revision><id>11</id><timestamp>2011-01-01T00:00:00Z</timestamp><text id=\"101\" bytes=\"30\" /></revision>"
+                               + "<revision><id>12</id><timestamp>2011-02-01T00:00:00Z</timestamp><text id=\"102\" bytes=\"45\" /><sha1>x</sha1></revision>\n</page>\n"),
+                 collect(format, job, 1));
+    assertEquals(Arrays.asList("1 11 A null 30 ", "1 12 A null 45 "), collectRows(new JobContextImpl(job, new JobID())));
+  }
+
+  @Test
+  public void testStreamFactory() throws IOException {
+    JobConf job = new JobConf(conf);
+    job.setBoolean("org.wikimedia.wikihadoop.mmap", false);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    CompressionCodecFactory codecs = new CompressionCodecFactory(job);
+
+    fs.delete(dir, true);
+    StringBuilder dump = new StringBuilder();
+    for ( int i = 0; i < 1000; ++i ) {
+      dump.append("<page><id>" + i + "</id></page>\n");
+    }
+    byte[] bytes = dump.toString().getBytes("UTF-8");
+    for ( String name: new String[]{"auto.txt", "auto.bz2"} ) {
+      Path file = new Path(dir, name);
+      OutputStream writer = fs.create(file);
+      try {
+        writer.write(name.endsWith(".bz2") ? bzip2(bytes): bytes);
+      } finally {
+        writer.close();
+      }
+      long length = fs.getFileStatus(file).getLen();
+      DumpStreamFactory streams = new DumpStreamFactory(fs, codecs, job);
+      try {
+        for ( long start: new long[]{0, length / 3, 0, length / 2} ) {
+          SeekableInputStream expected = SeekableInputStream.getInstance(file, start, length, fs, codecs, job);
+          SeekableInputStream in = streams.open(file, start, length);
+          try {
+            assertEquals(expected.getPos(), in.getPos());
+            assertTrue(name + " " + start, Arrays.equals(readSome(expected, 100), readSome(in, 100)));
+          } finally {
+            expected.close();
+            in.close();
+          }
+        }
+      } finally {
+        streams.close();
+      }
+      assertEquals(1, streams.getOpens());
+      assertEquals(3, streams.getReuses());
+    }
+  }
+
+  @Test
+  public void testSharedScanConsumers() {
+    JobConf job = new JobConf(conf);
+    job.set("org.wikimedia.wikihadoop.namespaces", "0,1");
+    SharedScanMapper.addConsumer(job, "diffs", RevisionDiffMapper.class, org.apache.hadoop.mapred.TextOutputFormat.class, Text.class, org.apache.hadoop.io.NullWritable.class);
+    SharedScanMapper.addConsumer(job, "talk", RevisionDiffMapper.class, org.apache.hadoop.mapred.TextOutputFormat.class, Text.class, org.apache.hadoop.io.NullWritable.class);
+    job.set("org.wikimedia.wikihadoop.consumer.talk.namespaces", "1");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.skipText", "true");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.mapred.task.timeout", "10");
+    assertEquals("diffs,talk", job.get("org.wikimedia.wikihadoop.consumers"));
+
+    JobConf diffs = SharedScanMapper.getConsumerConf(job, "diffs");
+    assertEquals("0,1", diffs.get("org.wikimedia.wikihadoop.namespaces"));
+    assertEquals(RevisionDiffMapper.class, diffs.getClass("org.wikimedia.wikihadoop.mapper", null));
+    JobConf talk = SharedScanMapper.getConsumerConf(job, "talk");
+    assertEquals("1", talk.get("org.wikimedia.wikihadoop.namespaces"));
+    assertTrue(talk.getBoolean("org.wikimedia.wikihadoop.skipText", false));
+    assertEquals("10", talk.get("mapred.task.timeout"));
+
+    String record = "<page><id>1</id><revision><id>2</id><text xml:space=\"preserve\">abc</text></revision><revision><id>3</id><text bytes=\"0\" /></revision></page>";
+    Text projected = new Text();
+    SharedScanMapper.withoutText(record.getBytes(), record.length(), projected);
+    assertEquals("<page><id>1</id><revision><id>2</id><text xml:space=\"preserve\"></text></revision><revision><id>3</id><text bytes=\"0\" /></revision></page>", projected.toString());
+  }
+
+  /** A consumer remembering the records given to it, and writing them to its named output. */
+  public static class RecordingMapper extends org.apache.hadoop.mapred.MapReduceBase implements org.apache.hadoop.mapred.Mapper<Text, Text, Text, org.apache.hadoop.io.NullWritable> {
+    static final List<String> consumed = new ArrayList<String>();
+    private String label;
+    @Override public void configure(JobConf job) {
+      this.label = job.get("test.label");
+    }
+    public void map(Text key, Text value, OutputCollector<Text, org.apache.hadoop.io.NullWritable> output, Reporter reporter) throws IOException {
+      consumed.add(this.label + " " + key.toString());
+      output.collect(new Text(key.toString()), org.apache.hadoop.io.NullWritable.get());
+    }
+    @Override public void close() {
+      consumed.add(this.label + " closed");
+    }
+  }
+
+  @Test
+  public void testSharedScanMapper() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    fs.delete(dir, true);
+    org.apache.hadoop.mapred.FileOutputFormat.setOutputPath(job, dir);
+    job.setInt("mapreduce.task.partition", 0);
+    job.set("org.wikimedia.wikihadoop.namespaces", "0,1");
+    SharedScanMapper.addConsumer(job, "all", RecordingMapper.class, org.apache.hadoop.mapred.TextOutputFormat.class, Text.class, org.apache.hadoop.io.NullWritable.class);
+    SharedScanMapper.addConsumer(job, "talk", RecordingMapper.class, org.apache.hadoop.mapred.TextOutputFormat.class, Text.class, org.apache.hadoop.io.NullWritable.class);
+    job.set("org.wikimedia.wikihadoop.consumer.all.test.label", "all");
+    job.set("org.wikimedia.wikihadoop.consumer.all.maxPageId", "3");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.test.label", "talk");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.namespaces", "1");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.minTimestamp", "2010-06-01T00:00:00Z");
+    job.set("org.wikimedia.wikihadoop.consumer.talk.skipText", "true");
+
+    String[] records = {
+      "<page><title>A</title><ns>0</ns><id>1</id><revision><id>10</id><timestamp>2010-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">a</text></revision></page>",
+      "<page><title>Talk:B</title><ns>1</ns><id>2</id><revision><id>20</id><timestamp>2010-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">b</text></revision><revision><id>21</id><timestamp>2011-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">bb</text></revision></page>",
+      "<page><title>Talk:C</title><ns>1</ns><id>3</id><revision><id>30</id><timestamp>2009-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">c</text></revision></page>",
+      "<page><title>User:D</title><ns>2</ns><id>4</id><revision><id>40</id><timestamp>2011-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">d</text></revision></page>",
+      "<page><title>Talk:E</title><ns>1</ns><id>5</id><revision><id>50</id><timestamp>2011-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\">e</text></revision></page>",
+    };
+    RecordingMapper.consumed.clear();
+    SharedScanMapper mapper = new SharedScanMapper();
+    mapper.configure(job);
+    try {
+      for ( String record: records ) {
+        mapper.map(new Text(record), new Text(""), null, getStderrReporter());
+      }
+    } finally {
+      mapper.close();
+    }
+
+    String talkB = "<page><title>Talk:B</title><ns>1</ns><id>2</id><revision><id>20</id><timestamp>2010-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\"></text></revision><revision><id>21</id><timestamp>2011-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\"></text></revision></page>";
+    String talkE = "<page><title>Talk:E</title><ns>1</ns><id>5</id><revision><id>50</id><timestamp>2011-01-01T00:00:00Z</timestamp><text xml:space=\"preserve\"></text></revision></page>";
+    assertEquals(Arrays.asList(new String[]{
+          "all " + records[0],
+          "all " + records[1],
+          "talk " + talkB,
+          "all " + records[2],
+          "talk " + talkE,
+          "all closed",
+          "talk closed",
+        }), RecordingMapper.consumed);
+
+    for ( String[] expected: new String[][]{ {"all", records[0], records[1], records[2]}, {"talk", talkB, talkE} } ) {
+      List<String> lines = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(dir, expected[0] + "-m-00000")), "UTF-8"));
+      try {
+        String line;
+        while ( (line = reader.readLine()) != null ) {
+          lines.add(line);
+        }
+      } finally {
+        reader.close();
+      }
+      assertEquals(Arrays.asList(expected).subList(1, expected.length), lines);
+    }
+  }
+
+  private static byte[] readSome(InputStream in, int n) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ( out.size() < n && (b = in.read()) >= 0 ) {
+      out.write(b);
+    }
+    return out.toByteArray();
+  }
+
+  private static List<String> collectRows(JobContext context) throws IOException, InterruptedException {
+    RevisionRowInputFormat format = new RevisionRowInputFormat();
+    List<String> found = new ArrayList<String>();
+    for ( org.apache.hadoop.mapreduce.InputSplit split: format.getSplits(context) ) {
+      TaskAttemptContext task = new TaskAttemptContextImpl(context.getConfiguration(), new TaskAttemptID());
+      org.apache.hadoop.mapreduce.RecordReader<PageRevisionKey,RevisionRow> reader = format.createRecordReader(split, task);
+      reader.initialize(split, task);
+      try {
+        while ( reader.nextKeyValue() ) {
+          RevisionRow r = reader.getCurrentValue();
+          assertEquals(r.pageId, reader.getCurrentKey().getPageId());
+          assertEquals(r.revId, reader.getCurrentKey().getRevisionId());
+          found.add(r.pageId + " " + r.revId + " " + r.title + " " + r.userText + " " + r.textLength + " " + r.text);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return found;
+  }
+
+  @Test
+  public void testFormatAggregated() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    Writer txtWriter = new OutputStreamWriter(fs.create(txtFile));
+    try {
+      txtWriter.write("<tree><page><title>A</title><id>1</id>"
+                      + "<revision><id>10</id><timestamp>2011-01-05T00:00:00Z</timestamp><contributor><username>U</username><id>5</id></contributor><text xml:space=\"preserve\">abc</text></revision>"
+                      + "<revision><id>11</id><timestamp>2011-01-20T00:00:00Z</timestamp><contributor><ip>1.2.3.4</ip></contributor><text xml:space=\"preserve\">abcdef</text></revision>"
+                      + "<revision><id>12</id><timestamp>2011-02-01T00:00:00Z</timestamp><contributor><username>U</username><id>5</id></contributor><text xml:space=\"preserve\">ab</text></revision>"
+                      + "</page>\n<page><title>Talk:B</title><id>2</id>"
+                      + "<revision><id>20</id><timestamp>2011-02-03T00:00:00Z</timestamp><contributor><username>V</username><id>7</id></contributor><text xml:space=\"preserve\" bytes=\"10\">abc&amp;defgh</text></revision>"
+                      + "<revision><id>21</id><timestamp>2011-02-04T00:00:00Z</timestamp><contributor><username>U</username><id>5</id></contributor><text bytes=\"4\" /></revision>"
+                      + "</page></tree>\n");
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    FileInputFormat.setInputPaths(job, dir);
+    job.set("org.wikimedia.wikihadoop.aggregate", "page,contributor,month,namespace");
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    List<String> expected = Arrays.asList(new String[]{
+        "page\t1\t3\t6", "page\t2\t2\t10",
+        "contributor\t5\t3\t3", "contributor\t7\t1\t10",
+        "month\t201101\t2\t6", "month\t201102\t3\t10",
+        "namespace\t0\t3\t6", "namespace\t1\t2\t10",
+        "contributor\t1.2.3.4\t1\t3",
+      });
+    assertEquals(expected, collectPairs(format, job));
+
+    // flushed more often, the partial counts add up to the same
+    job.setInt("org.wikimedia.wikihadoop.aggregateEntries", 2);
+    Map<String,long[]> sums = new TreeMap<String,long[]>();
+    List<String> partial = collectPairs(format, job);
+    assertTrue(partial.size() > expected.size());
+    for ( String line: partial ) {
+      String[] f = line.split("\t");
+      long[] sum = sums.get(f[0] + "\t" + f[1]);
+      if ( sum == null ) {
+        sum = new long[2];
+        sums.put(f[0] + "\t" + f[1], sum);
+      }
+      sum[0] += Long.parseLong(f[2]);
+      sum[1] += Long.parseLong(f[3]);
+    }
+    for ( String line: expected ) {
+      String[] f = line.split("\t");
+      assertEquals(Long.parseLong(f[2]), sums.get(f[0] + "\t" + f[1])[0]);
+      assertEquals(Long.parseLong(f[3]), sums.get(f[0] + "\t" + f[1])[1]);
+    }
+    assertEquals(expected.size(), sums.size());
+  }
+
+  @Test
+  public void testMappedAndBuffered() throws IOException {
+    JobConf job = new JobConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", ".") + "/mapred");
+    Path txtFile = new Path(dir, "auto.txt");
+
+    fs.delete(dir, true);
+    StringBuilder dump = new StringBuilder("<tree>\n");
+    List<String> expected = new ArrayList<String>();
+    for ( int i = 1; i <= 200; ++i ) {
+      dump.append("<page><id>" + i + "</id><revision><id>" + (i * 10) + "</id>text of page " + i + "</revision></page>\n");
+      expected.add("<page><id>" + i + "</id><revision beginningofpage=\"true\"><text xml:space=\"preserve\"></text></revision>\n<revision><id>" + (i * 10) + "</id>text of page " + i + "</revision>\n</page>\n");
+    }
+    dump.append("</tree>\n");
+    // written without a checksum file, which would keep the file from being mapped
+    Writer txtWriter = new OutputStreamWriter(((LocalFileSystem)fs).getRaw().create(txtFile));
+    try {
+      txtWriter.write(dump.toString());
+    } finally {
+      txtWriter.flush();
+      txtWriter.close();
+    }
+    CompressionCodecFactory codecs = new CompressionCodecFactory(job);
+    assertTrue(SeekableInputStream.isMapped(txtFile, fs, codecs, job));
+    FileInputFormat.setInputPaths(job, dir);
+    StreamWikiDumpInputFormat format = new StreamWikiDumpInputFormat();
+    format.configure(job);
+    assertEquals(expected, collect(format, job, 1));
+    assertEquals(expected, collect(format, job, 7));
+
+    // a file with a checksum is read through the checked stream
+    txtWriter = new OutputStreamWriter(fs.create(txtFile, true));
+    try {
+      txtWriter.write(dump.toString());
+    } finally {
+      txtWriter.close();
+    }
+    assertFalse(SeekableInputStream.isMapped(txtFile, fs, codecs, job));
+    assertEquals(expected, collect(format, job, 7));
+
+    // buffers much smaller than a page make matches straddle them
+    job.setBoolean("org.wikimedia.wikihadoop.mmap", false);
+    job.setInt("org.wikimedia.wikihadoop.bufferSize", 37);
+    assertEquals(expected, collect(format, job, 1));
+    assertEquals(expected, collect(format, job, 7));
+  }
+
+  private static List<String> collectPairs(FileInputFormat<Text,Text> format, JobConf job) throws IOException {
+    List<String> found = new ArrayList<String>();
+    for (InputSplit split : format.getSplits(job, 1)) {
+      RecordReader<Text,Text> reader = format.getRecordReader(split, job, getStderrReporter());
+      Text key = reader.createKey();
+      Text value = reader.createValue();
+      try {
+        while (reader.next(key, value)) {
+          found.add(key.toString() + "\t" + value.toString());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return found;
+  }
+
   private static List<String> collect(FileInputFormat<Text,Text> format, JobConf job, int n) throws IOException {
     return collect(format, job, n, getStderrReporter());
   }